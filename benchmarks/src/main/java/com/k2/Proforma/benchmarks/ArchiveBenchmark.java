@@ -0,0 +1,91 @@
+package com.k2.Proforma.benchmarks;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.k2.Proforma.ConcurrentProformaLibrary;
+import com.k2.Proforma.Proforma;
+import com.k2.Proforma.ProformaArchive;
+import com.k2.Proforma.ProformaParser;
+
+/**
+ * Measures the cost of making a catalogue of fifty frozen proformas ready to write at startup, either by parsing and compiling them
+ * from their templates or by restoring them from a proforma archive held in memory or memory mapped from a file
+ *
+ * @author simon
+ *
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class ArchiveBenchmark {
+
+	private static final int TEMPLATES = 50;
+
+	private String[] texts;
+	private ConcurrentProformaLibrary library;
+	private ByteBuffer archive;
+	private Path file;
+
+	@Setup
+	public void setup() throws IOException {
+		library = new ConcurrentProformaLibrary().add("item", new Proforma().setEmbedded(true).add("<", Proforma.param("name"), ">"));
+		texts = new String[TEMPLATES];
+		for (int t=0; t<TEMPLATES; t++) {
+			StringBuilder sb = new StringBuilder();
+			for (int i=0; i<5; i++) {
+				sb.append("Template ").append(t).append(" customer ${name} (${id:long}) ordered ${count:int} items costing ${total:double}\n");
+				sb.append("${?vip}${>}A valued customer since ${since}\n");
+				sb.append("${>}Items: ${@item:items}${note?noted}\n");
+				sb.append("Literal text that is written as it is without any parameters at all\n");
+			}
+			texts[t] = sb.toString();
+		}
+		archive = ByteBuffer.wrap(ProformaArchive.toBytes(build()));
+		file = Files.createTempFile("catalogue", ".pfma");
+		ProformaArchive.write(build(), file);
+	}
+
+	@TearDown
+	public void tearDown() throws IOException {
+		Files.delete(file);
+	}
+
+	@Benchmark
+	public List<Proforma> build() {
+		List<Proforma> catalogue = new ArrayList<Proforma>(TEMPLATES);
+		for (int t=0; t<TEMPLATES; t++) catalogue.add(ProformaParser.parse("template"+t, texts[t], library).freeze());
+		return catalogue;
+	}
+
+	@Benchmark
+	public List<Proforma> restore() {
+		return ProformaArchive.read(archive);
+	}
+
+	@Benchmark
+	public List<Proforma> mapped() {
+		return ProformaArchive.read(file);
+	}
+
+}
@@ -0,0 +1,28 @@
+package com.k2.Proforma.benchmarks;
+
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.CommandLineOptionException;
+import org.openjdk.jmh.runner.options.CommandLineOptions;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+/**
+ * Runs the Proforma benchmarks with the GC profiler attached so that the bytes allocated per render are reported alongside the
+ * operations per second
+ * 
+ * The standard JMH command line options are accepted e.g. a regular expression to select the benchmarks to run
+ * 
+ * @author simon
+ *
+ */
+public class BenchmarkRunner {
+
+	public static void main(String[] args) throws RunnerException, CommandLineOptionException {
+		new Runner(new OptionsBuilder()
+				.parent(new CommandLineOptions(args))
+				.addProfiler(GCProfiler.class)
+				.build()).run();
+	}
+
+}
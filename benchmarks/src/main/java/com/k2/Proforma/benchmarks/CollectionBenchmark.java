@@ -0,0 +1,78 @@
+package com.k2.Proforma.benchmarks;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.k2.Proforma.Proforma;
+
+/**
+ * Measures the cost of writing a proforma for each element of a large collection, both as the value source of the proforma output
+ * and through an embedded proforma bound to a collection valued parameter
+ * 
+ * @author simon
+ *
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class CollectionBenchmark {
+	
+	@Param({"1000", "100000"})
+	public int size;
+	
+	private Proforma rowProforma;
+	private Proforma parentProforma;
+	private Proforma collectionProforma;
+	private List<Row> rows;
+	private Row parent;
+	private NullWriter out;
+	
+	@Setup
+	public void setup() {
+		rowProforma = new Proforma("row")
+				.add(Proforma.param(Integer.class, "id"), ",", Proforma.param(String.class, "name"), ",", Proforma.param(Double.class, "amount"));
+		parentProforma = new Proforma("parent")
+				.add("Rows of ", Proforma.param(String.class, "name"))
+				.add(rowProforma.with(Proforma.param(List.class, "children")));
+		collectionProforma = new Proforma("collection")
+				.add(Proforma.param(List.class, "children"));
+		rows = Row.rows(size);
+		parent = new Row(0);
+		parent.children.addAll(rows);
+		out = new NullWriter();
+	}
+	
+	@Benchmark
+	public long valueSources() {
+		rowProforma.with(rows).write(out.reset());
+		return out.count();
+	}
+	
+	@Benchmark
+	public long withParameter() {
+		parentProforma.with(parent).write(out.reset());
+		return out.count();
+	}
+	
+	@Benchmark
+	public long collectionParameter() {
+		collectionProforma.with(parent).write(out.reset());
+		return out.count();
+	}
+
+}
@@ -0,0 +1,58 @@
+package com.k2.Proforma.benchmarks;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.k2.Proforma.Proforma;
+
+/**
+ * Measures the cost of writing a template in which most lines and parts are conditional on the same few boolean parameters
+ * 
+ * @author simon
+ *
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class ConditionalBenchmark {
+	
+	@Param({"true", "false"})
+	public boolean debug;
+	
+	private Proforma proforma;
+	private NullWriter out;
+	
+	@Setup
+	public void setup() {
+		proforma = new Proforma("conditional");
+		for (int i=0; i<20; i++) {
+			proforma.addIf(Proforma.param(Boolean.class, "debug"), "Debug line ", i, ": ", Proforma.param(String.class, "name"));
+			proforma.add("Line ", i, Proforma.includeIf("active", " is active"), Proforma.includeIf("debug", " (debug)"));
+		}
+		out = new NullWriter();
+	}
+	
+	@Benchmark
+	public long conditional() {
+		proforma.set(Boolean.class, "debug", debug)
+				.set(Boolean.class, "active", true)
+				.set(String.class, "name", "conditional")
+				.write(out.reset());
+		return out.count();
+	}
+
+}
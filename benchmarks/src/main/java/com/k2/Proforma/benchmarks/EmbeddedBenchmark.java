@@ -0,0 +1,62 @@
+package com.k2.Proforma.benchmarks;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.k2.Proforma.Proforma;
+
+/**
+ * Measures the cost of writing deeply embedded proformas, each level drawing its values from the children of the level above
+ * through a proforma bound to a collection valued parameter with with(Parameter)
+ * 
+ * @author simon
+ *
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class EmbeddedBenchmark {
+	
+	@Param({"2", "4", "6"})
+	public int depth;
+	
+	private Proforma proforma;
+	private Row root;
+	private NullWriter out;
+	
+	@Setup
+	public void setup() {
+		Proforma level = new Proforma("level"+depth)
+				.add("Node ", Proforma.param(Integer.class, "id"), ": ", Proforma.param(String.class, "name"));
+		for (int d=depth-1; d>=0; d--) {
+			level = new Proforma("level"+d)
+					.add("Node ", Proforma.param(Integer.class, "id"), ": ", Proforma.param(String.class, "name"))
+					.add(level.with(Proforma.param(List.class, "children")));
+		}
+		proforma = level;
+		root = Row.tree(1, depth, 2);
+		out = new NullWriter();
+	}
+	
+	@Benchmark
+	public long embedded() {
+		proforma.with(root).write(out.reset());
+		return out.count();
+	}
+
+}
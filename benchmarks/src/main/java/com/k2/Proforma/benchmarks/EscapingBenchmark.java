@@ -0,0 +1,90 @@
+package com.k2.Proforma.benchmarks;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.k2.Proforma.Escaping;
+import com.k2.Proforma.Proforma;
+
+/**
+ * Measures the cost of writing text into XML unescaped, escaped beforehand by a chain of String.replace(...) calls and escaped by the
+ * XML escaping of the proforma output as it is written
+ * 
+ * @author simon
+ *
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class EscapingBenchmark {
+	
+	/**
+	 * A row holding text that occasionally contains markup characters
+	 */
+	public static class Note {
+		private final String text;
+		public Note(int i) {
+			this.text = (i % 10 == 0) ? "Note " + i + " for Smith & Sons <urgent>" : "Note " + i + " for the accounts department";
+		}
+		public String getText() { return text; }
+		public String getReplaced() {
+			return text.replace("&", "&amp;").replace("<", "&lt;").replace(">", "&gt;").replace("\"", "&quot;").replace("'", "&apos;");
+		}
+	}
+	
+	private Proforma unescapedProforma;
+	private Proforma replacedProforma;
+	private Proforma escapedProforma;
+	private List<Note> rows;
+	private NullWriter out;
+	
+	@Setup
+	public void setup() {
+		unescapedProforma = new Proforma("unescaped")
+				.add("<note>", Proforma.param(String.class, "text"), "</note>")
+				.freeze();
+		replacedProforma = new Proforma("replaced")
+				.add("<note>", Proforma.param(String.class, "replaced"), "</note>")
+				.freeze();
+		escapedProforma = new Proforma("escaped")
+				.add("<note>", Proforma.param(String.class, "text"), "</note>")
+				.freeze();
+		rows = new ArrayList<Note>(1000);
+		for (int i=0; i<1000; i++) rows.add(new Note(i));
+		out = new NullWriter();
+	}
+	
+	@Benchmark
+	public long unescaped() {
+		unescapedProforma.with(rows).write(out.reset());
+		return out.count();
+	}
+	
+	@Benchmark
+	public long replaced() {
+		replacedProforma.with(rows).write(out.reset());
+		return out.count();
+	}
+	
+	@Benchmark
+	public long escaped() {
+		escapedProforma.with(rows).setEscaping(Escaping.XML).write(out.reset());
+		return out.count();
+	}
+
+}
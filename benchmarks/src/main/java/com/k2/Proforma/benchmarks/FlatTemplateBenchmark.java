@@ -0,0 +1,67 @@
+package com.k2.Proforma.benchmarks;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.k2.Proforma.Proforma;
+import com.k2.Proforma.RenderCache;
+
+/**
+ * Measures the cost of writing a flat template of literal lines and parameters set directly on the proforma output, with and
+ * without a render cache
+ * 
+ * @author simon
+ *
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class FlatTemplateBenchmark {
+	
+	private Proforma proforma;
+	private RenderCache cache;
+	private NullWriter out;
+	
+	@Setup
+	public void setup() {
+		proforma = new Proforma("flat");
+		for (int i=0; i<20; i++) {
+			proforma.add("public static final String ", Proforma.param(String.class, "name"), "_", i, " = \"", Proforma.param(String.class, "value"), "\";");
+			proforma.add("// Line ", i, " of the flat template has no parameters at all");
+		}
+		proforma = proforma.freeze();
+		cache = new RenderCache(16, 1000000);
+		out = new NullWriter();
+	}
+	
+	@Benchmark
+	public long flat() {
+		proforma.set(String.class, "name", "CONSTANT")
+				.set(String.class, "value", "value")
+				.write(1, out.reset());
+		return out.count();
+	}
+	
+	@Benchmark
+	public long cached() {
+		proforma.set(String.class, "name", "CONSTANT")
+				.set(String.class, "value", "value")
+				.setRenderCache(cache)
+				.write(1, out.reset());
+		return out.count();
+	}
+
+}
@@ -0,0 +1,88 @@
+package com.k2.Proforma.benchmarks;
+
+import java.time.LocalDate;
+import java.time.format.DateTimeFormatter;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.k2.Proforma.Proforma;
+import com.k2.Proforma.ValueFormatter;
+
+/**
+ * Measures the cost of writing dates converted to strings, written by a value formatter and written from the cached output of a
+ * value formatter
+ * 
+ * @author simon
+ *
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class FormatterBenchmark {
+	
+	/**
+	 * A row holding a date
+	 */
+	public static class Dated {
+		private final LocalDate date;
+		public Dated(int day) { this.date = LocalDate.of(2020, 1, 1).plusDays(day % 365); }
+		public LocalDate getDate() { return date; }
+	}
+	
+	private Proforma stringProforma;
+	private Proforma formattedProforma;
+	private Proforma cachedProforma;
+	private List<Dated> rows;
+	private NullWriter out;
+	
+	@Setup
+	public void setup() {
+		DateTimeFormatter pattern = DateTimeFormatter.ofPattern("dd/MM/yyyy");
+		stringProforma = new Proforma("string")
+				.add("Due ", Proforma.param(LocalDate.class, "date"))
+				.freeze();
+		formattedProforma = new Proforma("formatted")
+				.add("Due ", Proforma.param(LocalDate.class, "date").formatWith(ValueFormatter.<LocalDate>of(pattern)))
+				.freeze();
+		cachedProforma = new Proforma("cached")
+				.add("Due ", Proforma.param(LocalDate.class, "date").formatWith(ValueFormatter.cached(ValueFormatter.<LocalDate>of(pattern), 1000)))
+				.freeze();
+		rows = new ArrayList<Dated>(1000);
+		for (int i=0; i<1000; i++) rows.add(new Dated(i));
+		out = new NullWriter();
+	}
+	
+	@Benchmark
+	public long string() {
+		stringProforma.with(rows).write(out.reset());
+		return out.count();
+	}
+	
+	@Benchmark
+	public long formatted() {
+		formattedProforma.with(rows).write(out.reset());
+		return out.count();
+	}
+	
+	@Benchmark
+	public long cached() {
+		cachedProforma.with(rows).write(out.reset());
+		return out.count();
+	}
+
+}
@@ -0,0 +1,70 @@
+package com.k2.Proforma.benchmarks;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.k2.Proforma.OutputSink;
+import com.k2.Proforma.Proforma;
+
+/**
+ * Measures the cost of writing a template of short lines at increasing indent levels, as code generation templates nested in
+ * several blocks are written, to character and UTF-8 sinks
+ * 
+ * @author simon
+ *
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class IndentBenchmark {
+	
+	@Param({"1", "8", "16"})
+	public int indent;
+	
+	private Proforma proforma;
+	private NullWriter out;
+	private ByteArrayOutputStream bytes;
+	private OutputSink sink;
+	
+	@Setup
+	public void setup() {
+		proforma = new Proforma("indented");
+		for (int i=0; i<40; i++) {
+			proforma.add("x", i, " = ", Proforma.param(String.class, "value"), ";");
+		}
+		proforma = proforma.freeze();
+		out = new NullWriter();
+		bytes = new ByteArrayOutputStream(64*1024);
+		sink = OutputSink.of(bytes, StandardCharsets.UTF_8);
+	}
+	
+	@Benchmark
+	public long chars() {
+		proforma.set(String.class, "value", "y").setIndent("    ").write(indent, out.reset());
+		return out.count();
+	}
+	
+	@Benchmark
+	public long utf8() {
+		bytes.reset();
+		proforma.set(String.class, "value", "y").setIndent("    ").write(indent, sink);
+		return bytes.size();
+	}
+
+}
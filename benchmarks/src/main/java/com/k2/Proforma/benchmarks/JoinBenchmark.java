@@ -0,0 +1,114 @@
+package com.k2.Proforma.benchmarks;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.k2.Proforma.Proforma;
+
+/**
+ * Measures the cost of writing the tags of each row as a comma separated list joined beforehand with String.join(...), joined by the
+ * parameter as it is written, written by an embedded proforma for each tag and written by the template of the parameter for each tag
+ * 
+ * @author simon
+ *
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class JoinBenchmark {
+	
+	/**
+	 * A tag written by a proforma
+	 */
+	public static class Tag {
+		private final String name;
+		public Tag(String name) { this.name = name; }
+		public String getName() { return name; }
+	}
+	
+	/**
+	 * A row holding a list of tags
+	 */
+	public static class Tagged {
+		private final List<String> tags;
+		private final List<Tag> tagged;
+		public Tagged(int i) {
+			this.tags = Arrays.asList("red", "tag"+(i % 7), "row"+i, "green", "blue");
+			this.tagged = new ArrayList<Tag>();
+			for (String tag : tags) tagged.add(new Tag(tag));
+		}
+		public List<String> getTags() { return tags; }
+		public String getJoined() { return String.join(", ", tags); }
+		public List<Tag> getTagged() { return tagged; }
+	}
+	
+	private Proforma joinedProforma;
+	private Proforma separatedProforma;
+	private Proforma embeddedProforma;
+	private Proforma templatedProforma;
+	private List<Tagged> rows;
+	private NullWriter out;
+	
+	@Setup
+	public void setup() {
+		joinedProforma = new Proforma("joined")
+				.add("Tags [", Proforma.param(String.class, "joined"), "]")
+				.freeze();
+		separatedProforma = new Proforma("separated")
+				.add("Tags ", Proforma.param(List.class, "tags").join("[", ", ", "]"))
+				.freeze();
+		// Without a separator each tag is followed by the comma and the row closes with an extra comma
+		Proforma tag = new Proforma("tag").setEmbedded(true).add(Proforma.param(String.class, "name"), ", ");
+		embeddedProforma = new Proforma("embedded")
+				.add("Tags [", tag.with(Proforma.param(List.class, "tagged")), "]")
+				.freeze();
+		Proforma name = new Proforma("name").setEmbedded(true).add(Proforma.param(String.class, "name"));
+		templatedProforma = new Proforma("templated")
+				.add("Tags ", Proforma.param(List.class, "tagged").join("[", ", ", "]").eachWith(name))
+				.freeze();
+		rows = new ArrayList<Tagged>(1000);
+		for (int i=0; i<1000; i++) rows.add(new Tagged(i));
+		out = new NullWriter();
+	}
+	
+	@Benchmark
+	public long joined() {
+		joinedProforma.with(rows).write(out.reset());
+		return out.count();
+	}
+	
+	@Benchmark
+	public long separated() {
+		separatedProforma.with(rows).write(out.reset());
+		return out.count();
+	}
+	
+	@Benchmark
+	public long embedded() {
+		embeddedProforma.with(rows).write(out.reset());
+		return out.count();
+	}
+	
+	@Benchmark
+	public long templated() {
+		templatedProforma.with(rows).write(out.reset());
+		return out.count();
+	}
+
+}
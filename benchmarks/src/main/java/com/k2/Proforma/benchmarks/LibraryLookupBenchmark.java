@@ -0,0 +1,61 @@
+package com.k2.Proforma.benchmarks;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.k2.Proforma.ConcurrentProformaLibrary;
+import com.k2.Proforma.Proforma;
+
+/**
+ * Measures the cost of many threads looking up proformas by name in a library and in its included libraries
+ * 
+ * @author simon
+ *
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@Threads(8)
+@State(Scope.Benchmark)
+public class LibraryLookupBenchmark {
+	
+	private ConcurrentProformaLibrary library;
+	
+	@Setup
+	public void setup() {
+		library = new ConcurrentProformaLibrary();
+		ConcurrentProformaLibrary previous = library;
+		// A chain of included libraries with the looked up proforma in the last
+		for (int l=0; l<4; l++) {
+			ConcurrentProformaLibrary included = new ConcurrentProformaLibrary();
+			for (int i=0; i<100; i++) included.add(new Proforma("library"+l+"proforma"+i));
+			previous.include(included);
+			previous = included;
+		}
+		for (int i=0; i<100; i++) library.add(new Proforma("proforma"+i));
+	}
+	
+	@Benchmark
+	public Proforma local() {
+		return library.getProforma("proforma50");
+	}
+	
+	@Benchmark
+	public Proforma included() {
+		return library.getProforma("library3proforma50");
+	}
+
+}
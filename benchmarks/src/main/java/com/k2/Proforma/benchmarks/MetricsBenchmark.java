@@ -0,0 +1,79 @@
+package com.k2.Proforma.benchmarks;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.k2.Proforma.Proforma;
+import com.k2.Proforma.ProformaOutput;
+import com.k2.Proforma.RenderMetrics;
+
+/**
+ * Measures the cost of recording render metrics for a small template embedding four named templates, with no render metrics, with
+ * render metrics that are disabled and with render metrics recording
+ *
+ * @author simon
+ *
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class MetricsBenchmark {
+
+	private ProformaOutput<?> none;
+	private ProformaOutput<?> disabled;
+	private ProformaOutput<?> enabled;
+	private NullWriter out;
+
+	@Setup
+	public void setup() {
+		Proforma row = new Proforma("row").setEmbedded(true)
+				.add(Proforma.param(Integer.class, "id"), ",", Proforma.param(String.class, "name"), ",", Proforma.param(Double.class, "amount"));
+		Proforma header = new Proforma("header").setEmbedded(true).add("Rows of ", Proforma.param(String.class, "name"));
+		Proforma parent = new Proforma("parent")
+				.add(header)
+				.add(row.with(Proforma.param(List.class, "children")))
+				.add(row.with(Proforma.param(List.class, "children")))
+				.add(header);
+		Row source = new Row(0);
+		source.children.addAll(Row.rows(10));
+		none = parent.with(source);
+		RenderMetrics off = new RenderMetrics();
+		off.setEnabled(false);
+		disabled = parent.with(source).setMetrics(off);
+		enabled = parent.with(source).setMetrics(new RenderMetrics());
+		out = new NullWriter();
+	}
+
+	@Benchmark
+	public long none() {
+		none.write(out.reset());
+		return out.count();
+	}
+
+	@Benchmark
+	public long disabled() {
+		disabled.write(out.reset());
+		return out.count();
+	}
+
+	@Benchmark
+	public long enabled() {
+		enabled.write(out.reset());
+		return out.count();
+	}
+
+}
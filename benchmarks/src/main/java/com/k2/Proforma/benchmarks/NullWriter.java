@@ -0,0 +1,58 @@
+package com.k2.Proforma.benchmarks;
+
+import java.io.Writer;
+
+/**
+ * A writer that discards everything written to it while counting the number of characters written
+ * 
+ * The benchmarks write to a null writer so that the cost of the underlying writer is excluded from the measurements
+ * 
+ * @author simon
+ *
+ */
+public class NullWriter extends Writer {
+	
+	private long count = 0;
+
+	@Override
+	public void write(char[] cbuf, int off, int len) {
+		count += len;
+	}
+
+	@Override
+	public void write(String str, int off, int len) {
+		count += len;
+	}
+
+	@Override
+	public void write(String str) {
+		count += str.length();
+	}
+
+	@Override
+	public void write(int c) {
+		count++;
+	}
+
+	@Override
+	public void flush() {}
+
+	@Override
+	public void close() {}
+	
+	/**
+	 * Get the number of characters written to this writer since it was last reset
+	 * @return	The number of characters written
+	 */
+	public long count() { return count; }
+	
+	/**
+	 * Reset the character count of this writer
+	 * @return	This writer for method chaining
+	 */
+	public NullWriter reset() {
+		count = 0;
+		return this;
+	}
+
+}
@@ -0,0 +1,94 @@
+package com.k2.Proforma.benchmarks;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.k2.Proforma.Proforma;
+
+/**
+ * Measures the cost of writing a report of numeric cells read from primitive fields through boxed parameters and through numeric
+ * parameters, and of setting numeric values directly on the proforma output
+ * 
+ * @author simon
+ *
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class NumericBenchmark {
+	
+	/**
+	 * A row of numeric cells
+	 */
+	public static class Cells {
+		private final int id;
+		private final long version;
+		private final int quantity;
+		private final double price;
+		private final double amount;
+		public Cells(int id) {
+			this.id = id;
+			this.version = id * 1000003L;
+			this.quantity = id % 97;
+			this.price = (id % 1000) / 4.0;
+			this.amount = (id % 1000) * 1.25 * (id % 97);
+		}
+	}
+	
+	private Proforma boxedProforma;
+	private Proforma numericProforma;
+	private Proforma setProforma;
+	private List<Cells> rows;
+	private NullWriter out;
+	
+	@Setup
+	public void setup() {
+		boxedProforma = new Proforma("boxed")
+				.add(Proforma.param(Integer.class, "id"), ",", Proforma.param(Long.class, "version"), ",", Proforma.param(Integer.class, "quantity"), ",", 
+						Proforma.param(Double.class, "price"), ",", Proforma.param(Double.class, "amount"))
+				.freeze();
+		numericProforma = new Proforma("numeric")
+				.add(Proforma.intParam("id"), ",", Proforma.longParam("version"), ",", Proforma.intParam("quantity"), ",", 
+						Proforma.doubleParam("price"), ",", Proforma.doubleParam("amount"))
+				.freeze();
+		setProforma = numericProforma;
+		rows = new ArrayList<Cells>(1000);
+		for (int i=0; i<1000; i++) rows.add(new Cells(i));
+		out = new NullWriter();
+	}
+	
+	@Benchmark
+	public long boxed() {
+		boxedProforma.with(rows).write(out.reset());
+		return out.count();
+	}
+	
+	@Benchmark
+	public long numeric() {
+		numericProforma.with(rows).write(out.reset());
+		return out.count();
+	}
+	
+	@Benchmark
+	public long numericValues() {
+		setProforma.setInt("id", 12345).setLong("version", 1234567890123L).setInt("quantity", 42).setDouble("price", 12.25)
+				.setDouble("amount", 514.5).write(out.reset());
+		return out.count();
+	}
+
+}
@@ -0,0 +1,72 @@
+package com.k2.Proforma.benchmarks;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.k2.Proforma.Proforma;
+
+/**
+ * Measures writing a large collection of value sources sequentially and in parallel chunks of different sizes
+ * 
+ * A chunk size of 0 writes the collection sequentially
+ * 
+ * @author simon
+ *
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class ParallelCollectionBenchmark {
+	
+	@Param({"0", "256", "4096"})
+	public int chunkSize;
+	
+	private Proforma rowProforma;
+	private Proforma parentProforma;
+	private List<Row> rows;
+	private Row parent;
+	private NullWriter out;
+	
+	@Setup
+	public void setup() {
+		rowProforma = new Proforma("row")
+				.add(Proforma.param(Integer.class, "id"), ",", Proforma.param(String.class, "name"), ",", Proforma.param(Double.class, "amount"))
+				.freeze();
+		parentProforma = new Proforma("parent")
+				.add("Rows of ", Proforma.param(String.class, "name"))
+				.add(rowProforma.with(Proforma.param(List.class, "children")))
+				.freeze();
+		rows = Row.rows(200000);
+		parent = new Row(0);
+		parent.children.addAll(rows);
+		out = new NullWriter();
+	}
+	
+	@Benchmark
+	public long valueSources() {
+		rowProforma.with(rows).setParallel(chunkSize).write(out.reset());
+		return out.count();
+	}
+	
+	@Benchmark
+	public long withParameter() {
+		parentProforma.with(parent).setParallel(chunkSize).write(out.reset());
+		return out.count();
+	}
+
+}
@@ -0,0 +1,72 @@
+package com.k2.Proforma.benchmarks;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.k2.Proforma.Proforma;
+
+/**
+ * Measures the cost of resolving parameter values, either from a value source object or from values set on the proforma output
+ * 
+ * @author simon
+ *
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class ParameterLookupBenchmark {
+	
+	private static final String[] ALIASES = {"id", "name", "description", "amount", "active", "code", "owner", "status", "version", "comment"};
+	
+	private Proforma proforma;
+	private Row row;
+	private NullWriter out;
+	
+	@Setup
+	public void setup() {
+		Object[] parts = new Object[ALIASES.length*2];
+		for (int i=0; i<ALIASES.length; i++) {
+			parts[i*2] = Proforma.param(Object.class, ALIASES[i]);
+			parts[i*2+1] = ",";
+		}
+		proforma = new Proforma("lookup").add(parts);
+		row = new Row(42);
+		out = new NullWriter();
+	}
+	
+	@Benchmark
+	public long fromValueSource() {
+		proforma.with(row).write(out.reset());
+		return out.count();
+	}
+	
+	@Benchmark
+	public long fromSetValues() {
+		proforma.set(Integer.class, "id", row.id)
+				.set(String.class, "name", row.name)
+				.set(String.class, "description", row.description)
+				.set(Double.class, "amount", row.amount)
+				.set(Boolean.class, "active", row.active)
+				.set(String.class, "code", row.code)
+				.set(String.class, "owner", row.owner)
+				.set(String.class, "status", row.status)
+				.set(Long.class, "version", row.version)
+				.set(String.class, "comment", row.comment)
+				.write(out.reset());
+		return out.count();
+	}
+
+}
@@ -0,0 +1,79 @@
+package com.k2.Proforma.benchmarks;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.k2.Proforma.ConcurrentProformaLibrary;
+import com.k2.Proforma.Proforma;
+import com.k2.Proforma.ProformaParser;
+import com.k2.Proforma.TemplateCache;
+
+/**
+ * Measures the cost of parsing a typical template of twenty lines from its text and of finding it unchanged in a template cache
+ * 
+ * @author simon
+ *
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class ParserBenchmark {
+	
+	private String text;
+	private ConcurrentProformaLibrary library;
+	private Path directory;
+	private TemplateCache cache;
+	
+	@Setup
+	public void setup() throws IOException {
+		StringBuilder sb = new StringBuilder("${#flat}\n");
+		for (int i=0; i<5; i++) {
+			sb.append("Customer ${name} (${id:long}) ordered ${count:int} items costing ${total:double}\n");
+			sb.append("${?vip}${>}A valued customer since ${since}\n");
+			sb.append("${>}Items: ${@item:items}${note?noted}\n");
+			sb.append("Literal text with a $ sign and an escaped $${directive} but nothing else to parse at all\n");
+		}
+		text = sb.toString();
+		library = new ConcurrentProformaLibrary().add("item", new Proforma().setEmbedded(true).add("<", Proforma.param("name"), ">"));
+		directory = Files.createTempDirectory("templates");
+		Files.write(directory.resolve("order.proforma"), text.getBytes(StandardCharsets.UTF_8));
+		cache = new TemplateCache(directory);
+		cache.include(library);
+		cache.getProforma("order");
+	}
+	
+	@TearDown
+	public void tearDown() throws IOException {
+		Files.delete(directory.resolve("order.proforma"));
+		Files.delete(directory);
+	}
+	
+	@Benchmark
+	public Proforma parse() {
+		return ProformaParser.parse("order", text, library);
+	}
+	
+	@Benchmark
+	public Proforma cached() {
+		return cache.getProforma("order");
+	}
+
+}
@@ -0,0 +1,69 @@
+package com.k2.Proforma.benchmarks;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.k2.Proforma.Proforma;
+import com.k2.Proforma.ProformaOutput;
+import com.k2.Proforma.RenderProfiler;
+
+/**
+ * Measures the cost of profiling a small template embedding four named templates, without a render profiler and with a render
+ * profiler timing every line and part
+ *
+ * @author simon
+ *
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class ProfilerBenchmark {
+
+	private ProformaOutput<?> none;
+	private ProformaOutput<?> profiled;
+	private NullWriter out;
+
+	@Setup
+	public void setup() {
+		Proforma row = new Proforma("row").setEmbedded(true)
+				.add(Proforma.param(Integer.class, "id"), ",", Proforma.param(String.class, "name"), ",", Proforma.param(Double.class, "amount"));
+		Proforma header = new Proforma("header").setEmbedded(true).add("Rows of ", Proforma.param(String.class, "name"));
+		Proforma parent = new Proforma("parent")
+				.add(header)
+				.add(row.with(Proforma.param(List.class, "children")))
+				.add(row.with(Proforma.param(List.class, "children")))
+				.add(header);
+		Row source = new Row(0);
+		source.children.addAll(Row.rows(10));
+		none = parent.with(source);
+		profiled = parent.with(source).setProfiler(new RenderProfiler());
+		out = new NullWriter();
+	}
+
+	@Benchmark
+	public long none() {
+		none.write(out.reset());
+		return out.count();
+	}
+
+	@Benchmark
+	public long profiled() {
+		profiled.write(out.reset());
+		return out.count();
+	}
+
+}
@@ -0,0 +1,72 @@
+package com.k2.Proforma.benchmarks;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.k2.Proforma.Proforma;
+import com.k2.Proforma.ReloadingTemplateLibrary;
+import com.k2.Proforma.TemplateCache;
+
+/**
+ * Measures the cost of finding an unchanged template embedding another template in a template cache, which checks the template files,
+ * and in a watching reloading template library, which reads its current snapshot
+ *
+ * @author simon
+ *
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class ReloadingBenchmark {
+
+	private Path directory;
+	private TemplateCache cache;
+	private ReloadingTemplateLibrary library;
+
+	@Setup
+	public void setup() throws IOException {
+		directory = Files.createTempDirectory("templates");
+		Files.write(directory.resolve("order.proforma"), "Order ${id:long} for ${name}\n${>}Item: ${@item}\n".getBytes(StandardCharsets.UTF_8));
+		Files.write(directory.resolve("item.proforma"), "${#embedded}\n<${name}>".getBytes(StandardCharsets.UTF_8));
+		cache = new TemplateCache(directory);
+		cache.getProforma("order");
+		library = new ReloadingTemplateLibrary(directory).start();
+	}
+
+	@TearDown
+	public void tearDown() throws IOException {
+		library.close();
+		Files.delete(directory.resolve("order.proforma"));
+		Files.delete(directory.resolve("item.proforma"));
+		Files.delete(directory);
+	}
+
+	@Benchmark
+	public Proforma cached() {
+		return cache.getProforma("order");
+	}
+
+	@Benchmark
+	public Proforma reloading() {
+		return library.getProforma("order");
+	}
+
+}
@@ -0,0 +1,77 @@
+package com.k2.Proforma.benchmarks;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * A simple bean used as the source of values in the benchmarks
+ * 
+ * @author simon
+ *
+ */
+public class Row {
+	
+	public Integer id;
+	public String name;
+	public String description;
+	public Double amount;
+	public Boolean active;
+	public String code;
+	public String owner;
+	public String status;
+	public Long version;
+	public String comment;
+	public List<Row> children = new ArrayList<Row>();
+	
+	public Row(int id) {
+		this.id = id;
+		this.name = "Name "+id;
+		this.description = "The description of row "+id;
+		this.amount = id * 1.25;
+		this.active = (id % 2 == 0);
+		this.code = "R"+id;
+		this.owner = "Owner "+(id % 7);
+		this.status = (id % 3 == 0) ? "OPEN" : "CLOSED";
+		this.version = (long)id;
+		this.comment = "No comment";
+	}
+	
+	public Integer getId() { return id; }
+	public String getName() { return name; }
+	public String getDescription() { return description; }
+	public Double getAmount() { return amount; }
+	public Boolean getActive() { return active; }
+	public String getCode() { return code; }
+	public String getOwner() { return owner; }
+	public String getStatus() { return status; }
+	public Long getVersion() { return version; }
+	public String getComment() { return comment; }
+	public List<Row> getChildren() { return children; }
+
+	/**
+	 * Create a list of rows with sequential ids
+	 * @param size	The number of rows to create
+	 * @return	The list of rows
+	 */
+	public static List<Row> rows(int size) {
+		List<Row> rows = new ArrayList<Row>(size);
+		for (int i=0; i<size; i++) rows.add(new Row(i));
+		return rows;
+	}
+	
+	/**
+	 * Create a tree of rows with the given depth and number of children per row
+	 * @param id			The id of the root row
+	 * @param depth		The number of levels below the root row
+	 * @param breadth	The number of children of each row
+	 * @return	The root row of the tree
+	 */
+	public static Row tree(int id, int depth, int breadth) {
+		Row row = new Row(id);
+		if (depth > 0) {
+			for (int i=0; i<breadth; i++) row.children.add(tree(id*breadth+i, depth-1, breadth));
+		}
+		return row;
+	}
+
+}
@@ -0,0 +1,68 @@
+package com.k2.Proforma.benchmarks;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.k2.Proforma.Proforma;
+
+/**
+ * Measures the cost of writing a template embedding many static fragments of literal lines, which are memoised, compared with the
+ * same fragments made dynamic by a conditional line that is always included
+ * 
+ * @author simon
+ *
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class StaticFragmentBenchmark {
+	
+	private Proforma staticProforma;
+	private Proforma dynamicProforma;
+	private NullWriter out;
+	
+	@Setup
+	public void setup() {
+		Proforma fragment = new Proforma("static");
+		Proforma dynamic = new Proforma("dynamic").addIf(Proforma.param(Boolean.class, "always"), "");
+		for (int i=0; i<10; i++) {
+			fragment.add(" * Line ", i, " of a static comment block with", Proforma.indent(), "an indent part");
+			dynamic.add(" * Line ", i, " of a static comment block with", Proforma.indent(), "an indent part");
+		}
+		staticProforma = new Proforma("parent");
+		dynamicProforma = new Proforma("parent");
+		for (int i=0; i<10; i++) {
+			staticProforma.add("Section ", Proforma.param(String.class, "name"), " ", i).add(fragment);
+			dynamicProforma.add("Section ", Proforma.param(String.class, "name"), " ", i).add(dynamic);
+		}
+		staticProforma = staticProforma.freeze();
+		dynamicProforma = dynamicProforma.freeze();
+		out = new NullWriter();
+	}
+	
+	@Benchmark
+	public long memoised() {
+		staticProforma.set(String.class, "name", "section").set(Boolean.class, "always", true).write(out.reset());
+		return out.count();
+	}
+	
+	@Benchmark
+	public long dynamic() {
+		dynamicProforma.set(String.class, "name", "section").set(Boolean.class, "always", true).write(out.reset());
+		return out.count();
+	}
+
+}
@@ -0,0 +1,85 @@
+package com.k2.Proforma.benchmarks;
+
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.k2.Proforma.Proforma;
+
+/**
+ * Compares writing a literal heavy code generation template as UTF-8 bytes, where literals are encoded when the proforma is compiled,
+ * with writing it through an OutputStreamWriter which encodes every character as it is written
+ * 
+ * @author simon
+ *
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class Utf8Benchmark {
+	
+	private Proforma proforma;
+	private OutputStream out;
+	private Writer writer;
+	
+	@Setup
+	public void setup() {
+		Proforma method = new Proforma("method")
+				.add("/**")
+				.add(" * Get the value of the ", Proforma.param(String.class, "name"), " field of this class")
+				.add(" * @return The value of the field")
+				.add(" */")
+				.add("public ", Proforma.param(String.class, "type"), " get", Proforma.param(String.class, "name"), "() {")
+				.add(Proforma.indent(), "return this.", Proforma.param(String.class, "name"), ";")
+				.add("}");
+		proforma = new Proforma("class")
+				.add("package com.k2.generated;")
+				.add()
+				.add("public class ", Proforma.param(String.class, "className"), " {")
+				.add(method)
+				.add(method)
+				.add(method)
+				.add("}");
+		out = new OutputStream() {
+			@Override
+			public void write(int b) {}
+			@Override
+			public void write(byte[] b, int off, int len) {}
+		};
+		writer = new OutputStreamWriter(out, StandardCharsets.UTF_8);
+	}
+	
+	@Benchmark
+	public OutputStream utf8() {
+		return proforma.set(String.class, "className", "Generated")
+				.set(String.class, "name", "value")
+				.set(String.class, "type", "String")
+				.write(out, StandardCharsets.UTF_8);
+	}
+	
+	@Benchmark
+	public Writer writer() throws Exception {
+		proforma.set(String.class, "className", "Generated")
+				.set(String.class, "name", "value")
+				.set(String.class, "type", "String")
+				.write(writer).flush();
+		return writer;
+	}
+
+}
@@ -0,0 +1,76 @@
+package com.k2.Proforma.benchmarks;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.k2.Expressions.evaluators.ParamterOrObjectEvaluator;
+import com.k2.Proforma.Parameter;
+import com.k2.Proforma.Proforma;
+import com.k2.Proforma.ProformaOutput;
+
+/**
+ * Compares writing a line of parameter values read from a value source through the bound value accessors of the parameters with
+ * writing the same values evaluated against the value source by name on every lookup
+ * 
+ * @author simon
+ *
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class ValueLookupBenchmark {
+	
+	private static final String[] ALIASES = {"id", "name", "description", "amount", "active", "code", "owner", "status", "version", "comment"};
+	
+	private Parameter<?>[] params;
+	private ProformaOutput<?> po;
+	private ParamterOrObjectEvaluator<Row> evaluator;
+	private NullWriter out;
+	
+	@Setup
+	public void setup() {
+		params = new Parameter<?>[ALIASES.length];
+		Object[] parts = new Object[ALIASES.length*2];
+		for (int i=0; i<ALIASES.length; i++) {
+			params[i] = Proforma.param(Object.class, ALIASES[i]);
+			parts[i*2] = params[i];
+			parts[i*2+1] = ",";
+		}
+		Row row = new Row(42);
+		po = new Proforma("lookup").add(parts).with(row);
+		evaluator = new ParamterOrObjectEvaluator<Row>(row);
+		out = new NullWriter();
+	}
+	
+	@Benchmark
+	public long accessor() {
+		po.write(out.reset());
+		return out.count();
+	}
+	
+	@Benchmark
+	public long evaluator() throws IOException {
+		out.reset();
+		for (Parameter<?> param : params) {
+			out.write(String.valueOf(param.evaluate(evaluator)));
+			out.write(',');
+		}
+		out.write('\n');
+		return out.count();
+	}
+
+}
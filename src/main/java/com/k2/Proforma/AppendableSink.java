@@ -0,0 +1,35 @@
+package com.k2.Proforma;
+
+import java.io.Flushable;
+import java.io.IOException;
+import java.nio.CharBuffer;
+
+/**
+ * An output sink appending to an appendable. StringBuilders are appended to directly from the character array
+ * 
+ * @author simon
+ *
+ */
+class AppendableSink implements OutputSink {
+	
+	private final Appendable out;
+	
+	AppendableSink(Appendable out) {
+		this.out = out;
+	}
+
+	@Override
+	public void write(char[] chars, int off, int len) throws IOException {
+		if (out instanceof StringBuilder) {
+			((StringBuilder)out).append(chars, off, len);
+		} else {
+			out.append(CharBuffer.wrap(chars, off, len));
+		}
+	}
+
+	@Override
+	public void flush() throws IOException {
+		if (out instanceof Flushable) ((Flushable)out).flush();
+	}
+
+}
@@ -0,0 +1,58 @@
+package com.k2.Proforma;
+
+import java.io.CharArrayWriter;
+import java.io.IOException;
+import java.io.Writer;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * A value formatter caching the characters written by another value formatter for each value
+ *
+ * Cached output is read without locking so that the formatter can be shared by proformas written concurrently. The cache is filled
+ * until it holds the maximum number of values and is not changed thereafter.
+ *
+ * @author simon
+ *
+ * @param <T>	The type of the values formatted
+ */
+class CachingFormatter<T> implements ValueFormatter<T> {
+
+	private final ValueFormatter<T> formatter;
+	private final int maxEntries;
+	private final ConcurrentHashMap<T, char[]> cache = new ConcurrentHashMap<T, char[]>();
+
+	/**
+	 * Create a value formatter caching the output of the given formatter
+	 * @param formatter		The formatter whose output is cached
+	 * @param maxEntries		The maximum number of values for which output is cached
+	 */
+	CachingFormatter(ValueFormatter<T> formatter, int maxEntries) {
+		if (formatter == null) throw new NullPointerException("formatter");
+		if (maxEntries <= 0) throw new ProformaError("The maximum number of entries in a formatter cache must be positive, not {}", maxEntries);
+		this.formatter = formatter;
+		this.maxEntries = maxEntries;
+	}
+
+	@Override
+	public void format(T value, Writer out) throws IOException {
+		char[] output = cache.get(value);
+		if (output == null) {
+			if (cache.size() >= maxEntries) {
+				formatter.format(value, out);
+				return;
+			}
+			CharArrayWriter capture = new CharArrayWriter(32);
+			formatter.format(value, capture);
+			output = capture.toCharArray();
+			cache.putIfAbsent(value, output);
+		}
+		out.write(output);
+	}
+
+	/**
+	 * Get the number of values for which output is cached
+	 * @return	The number of cached values
+	 */
+	int size() { return cache.size(); }
+
+}
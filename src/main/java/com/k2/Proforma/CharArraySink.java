@@ -0,0 +1,36 @@
+package com.k2.Proforma;
+
+import java.util.Arrays;
+
+/**
+ * An output sink collecting the output in a growable character array
+ * 
+ * Used to hold output that is written somewhere else later, such as chunks written in parallel and output being cached
+ * 
+ * @author simon
+ *
+ */
+class CharArraySink implements OutputSink {
+	
+	char[] chars = new char[8192];
+	int count = 0;
+
+	@Override
+	public void write(char[] cbuf, int off, int len) {
+		if (count + len > chars.length) chars = Arrays.copyOf(chars, Math.max(chars.length * 2, count + len));
+		System.arraycopy(cbuf, off, chars, count, len);
+		count += len;
+	}
+
+	@Override
+	public void flush() {}
+	
+	/**
+	 * Get a copy of the characters collected by this sink
+	 * @return	The characters collected
+	 */
+	char[] toCharArray() {
+		return Arrays.copyOf(chars, count);
+	}
+
+}
@@ -0,0 +1,728 @@
+package com.k2.Proforma;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import com.k2.Expressions.expression.K2Expression;
+import com.k2.Expressions.expression.K2ParameterExpression;
+
+/**
+ * A compiled proforma is an immutable, flattened render plan for a proforma
+ *
+ * Compiling a proforma walks its lines and parts once and reduces them to a single array of opcodes and their operands.
+ * Adjacent unconditional string parts are merged into a single literal, the placement of indents and carriage returns is
+ * decided from the position of each line and whether the proforma is embedded, and conditional lines and parts are
+ * compiled into jumps over the opcodes they control.
+ *
+ * Writing a compiled proforma is then a single loop over the opcode array.
+ *
+ * Each distinct conditional expression is given a slot when the proforma is compiled. Boolean parameters with the same alias are the
+ * same condition however many parameters were created for them. When any condition controls more than one line or part its value is
+ * evaluated once each time the render plan is written for a value source and the value held in its slot for the remaining lines and
+ * parts it controls. A render plan written for the next value source, after with(...) has changed the value source, evaluates its
+ * conditions again.
+ *
+ * Literals are also encoded as UTF-8 when the proforma is compiled. When the proforma is written to a UTF-8 buffer the encoded
+ * literals are copied into the buffer and only the values of parameters are encoded as the proforma is written.
+ *
+ * Compiled proformas are obtained by calling the compile() method of the proforma
+ *
+ * @author simon
+ *
+ */
+public final class CompiledProforma {
+
+	/**
+	 * Jump to the given program counter if the conditional expression evaluates to false. Operands: expression, condition slot, target
+	 */
+	static final int IF = 0;
+	/**
+	 * Write the line indent. No operands
+	 */
+	static final int INDENT = 1;
+	/**
+	 * Write a literal string. Operands: the string
+	 */
+	static final int LITERAL = 2;
+	/**
+	 * Write a single instance of the indent string. No operands
+	 */
+	static final int INDENT_PART = 3;
+	/**
+	 * Write the value of a parameter part. Operands: the parameter part
+	 */
+	static final int PARAMETER = 4;
+	/**
+	 * Write an embedded proforma. Operands: the proforma
+	 */
+	static final int PROFORMA = 5;
+	/**
+	 * Write any other implementation of part if it is included. Operands: the part
+	 */
+	static final int PART = 6;
+	/**
+	 * Write the carriage return at the end of a line. No operands
+	 */
+	static final int CR = 7;
+
+	/**
+	 * The proforma from which this render plan was compiled
+	 */
+	private final Proforma proforma;
+	/**
+	 * The opcodes of this render plan. Each opcode is followed by the indexes of its operands
+	 */
+	private final int[] code;
+	/**
+	 * The operands referenced by the opcodes
+	 */
+	private final Object[] operands;
+	/**
+	 * The UTF-8 encoding of each literal operand indexed as the operands
+	 */
+	private final byte[][] utf8;
+	/**
+	 * The number of lines in the proforma when it was compiled
+	 */
+	private final int lineCount;
+	/**
+	 * Whether the proforma automatically increments the indent of its parts
+	 */
+	private final boolean autoIncrementIndent;
+	/**
+	 * The number of condition slots to hold evaluated conditions or 0 if no condition controls more than one line or part, in which case
+	 * conditions are evaluated as they are reached
+	 */
+	private final int conditions;
+
+	/**
+	 * Whether this render plan writes the same output whatever the parameter values. Null until first determined
+	 */
+	private Boolean memoisable;
+	/**
+	 * The memoised output of this render plan for each combination of indent, indent string and carriage return it has been written with
+	 */
+	private volatile Memo[] memos = new Memo[0];
+	/**
+	 * The frame names of the lines and opcodes of this render plan. Null until this render plan is first profiled
+	 */
+	private RenderProfiler.Plan plan;
+	/**
+	 * The maximum number of combinations of indent, indent string and carriage return for which output is memoised
+	 */
+	private static final int MAX_MEMOS = 8;
+
+	/**
+	 * Compile the given proforma into a render plan
+	 * @param proforma	The proforma to compile
+	 */
+	CompiledProforma(Proforma proforma) {
+		this.proforma = proforma;
+		this.autoIncrementIndent = proforma.autoIncrementIndent();
+
+		Compiler c = new Compiler();
+		List<Line> lines = proforma.getLines();
+		this.lineCount = lines.size();
+		for (int l=0; l<lineCount; l++) {
+			c.line(lines.get(l), l>0 || !proforma.embedded(), l<lineCount-1 || !proforma.embedded());
+		}
+		this.code = c.code();
+		this.operands = c.operands.toArray();
+		this.conditions = (c.repeated) ? c.slots.size() : 0;
+		this.utf8 = new byte[operands.length][];
+		for (int pc=0; pc<code.length; pc += width(code[pc])) {
+			if (code[pc] == LITERAL) utf8[code[pc+1]] = ((String)operands[code[pc+1]]).getBytes(StandardCharsets.UTF_8);
+		}
+	}
+
+	/**
+	 * Create a render plan for the given frozen proforma from the opcodes and operands restored from a proforma archive
+	 * @param proforma	The proforma whose render plan is restored
+	 * @param code		The opcodes of the render plan
+	 * @param operands	The operands referenced by the opcodes
+	 * @param utf8		The UTF-8 encoding of each literal operand indexed as the operands
+	 * @param conditions	The number of condition slots
+	 */
+	CompiledProforma(Proforma proforma, int[] code, Object[] operands, byte[][] utf8, int conditions) {
+		this.proforma = proforma;
+		this.autoIncrementIndent = proforma.autoIncrementIndent();
+		this.lineCount = proforma.getLines().size();
+		this.code = code;
+		this.operands = operands;
+		this.utf8 = utf8;
+		this.conditions = conditions;
+	}
+
+	/**
+	 * Get the proforma from which this render plan was compiled
+	 * @return	The compiled proforma
+	 */
+	public Proforma getProforma() { return proforma; }
+
+	/**
+	 * Get the number of lines in the proforma when it was compiled
+	 * @return	The number of compiled lines
+	 */
+	int lineCount() { return lineCount; }
+
+	/**
+	 * Get the opcodes of this render plan
+	 * @return	The opcodes, which must not be changed
+	 */
+	int[] code() { return code; }
+
+	/**
+	 * Get the operands referenced by the opcodes of this render plan
+	 * @return	The operands, which must not be changed
+	 */
+	Object[] operands() { return operands; }
+
+	/**
+	 * Get the number of condition slots held while this render plan is written
+	 * @return	The number of distinct conditions or 0 if each condition is evaluated as it is reached
+	 */
+	int conditions() { return conditions; }
+
+	/**
+	 * Get the number of opcodes in this render plan
+	 * @return	The number of opcodes
+	 */
+	int size() {
+		int size = 0;
+		for (int pc=0; pc<code.length; pc += width(code[pc])) size++;
+		return size;
+	}
+
+	/**
+	 * Get the number of ints occupied by the given opcode and its operands
+	 * @param op		The opcode
+	 * @return		The width of the opcode
+	 */
+	static int width(int op) {
+		switch (op) {
+		case IF:
+			return 4;
+		case LITERAL:
+		case PARAMETER:
+		case PROFORMA:
+		case PART:
+			return 2;
+		default:
+			return 1;
+		}
+	}
+
+	/**
+	 * Identify whether the output of this render plan can be memoised
+	 * 
+	 * The output can be memoised if it comprises only literals, indents and carriage returns with no conditional lines or parts and
+	 * any proformas embedded in it are memoisable and do not draw their values from a parameter. Since changes to embedded proformas
+	 * cannot be detected, render plans embedding proformas are only memoisable if the proforma is frozen.
+	 * 
+	 * @return	True if the output of this render plan is the same whatever the parameter values
+	 */
+	boolean memoisable() {
+		Boolean m = memoisable;
+		if (m == null) {
+			m = isStatic(new ArrayList<CompiledProforma>()) && (proforma.isFrozen() || !embeds());
+			memoisable = m;
+		}
+		return m;
+	}
+
+	/**
+	 * Identify whether this render plan and the render plans of its embedded proformas comprise only literals, indents and carriage returns
+	 * @param visiting	The render plans being checked, to detect proformas embedded in themselves
+	 * @return	True if the output of this render plan is the same whatever the parameter values
+	 */
+	private boolean isStatic(List<CompiledProforma> visiting) {
+		if (memoisable != null && memoisable) return true;
+		for (CompiledProforma c : visiting) if (c == this) return false;
+		visiting.add(this);
+		for (int pc=0; pc<code.length; pc += width(code[pc])) {
+			switch (code[pc]) {
+			case INDENT:
+			case LITERAL:
+			case INDENT_PART:
+			case CR:
+				break;
+			case PROFORMA:
+				Proforma embedded = (Proforma)operands[code[pc+1]];
+				if (embedded.valueSourceParameter() != null || !embedded.compile().isStatic(visiting)) return false;
+				break;
+			default:
+				return false;
+			}
+		}
+		return true;
+	}
+
+	private boolean embeds() {
+		for (int pc=0; pc<code.length; pc += width(code[pc])) {
+			if (code[pc] == PROFORMA) return true;
+		}
+		return false;
+	}
+
+	/**
+	 * Write the memoised output of this render plan, rendering and memoising it first if it has not been written with the given indent,
+	 * indent string and carriage return
+	 * 
+	 * Only call this method if the render plan is memoisable
+	 * 
+	 * @param i		The indent level at which to write the output
+	 * @param out	The writer on which to write the output
+	 * @param po		The proforma output providing the indent string and the carriage return
+	 * @param ctx	The render context applying the flush policy
+	 * @return		The given writer for method chaining
+	 */
+	Writer writeMemo(int i, Writer out, ProformaOutput<?> po, RenderContext ctx) {
+		String indent = po.getIndent();
+		String cr = po.getCarriageReturn();
+		Memo[] memos = this.memos;
+		Memo memo = null;
+		for (Memo m : memos) {
+			if (m.matches(i, indent, cr)) {
+				memo = m;
+				break;
+			}
+		}
+		if (memo == null) {
+			if (memos.length == MAX_MEMOS) return write(i, out, po, ctx);
+			memo = new Memo(i, indent, cr, render(i, po));
+			Memo[] grown = new Memo[memos.length+1];
+			System.arraycopy(memos, 0, grown, 0, memos.length);
+			grown[memos.length] = memo;
+			this.memos = grown;
+		}
+		try {
+			if (out instanceof Utf8Buffer) {
+				((Utf8Buffer)out).write(memo.utf8);
+			} else {
+				out.write(memo.chars);
+			}
+		} catch (IOException e) {
+			throw new ProformaError(e);
+		}
+		if (memo.lines) ctx.endEmbeddedLines(out);
+		return out;
+	}
+
+	/**
+	 * Render this render plan into a new character array
+	 */
+	private char[] render(int i, ProformaOutput<?> po) {
+		CharArraySink sink = new CharArraySink();
+		RenderContext ctx = new RenderContext();
+		Writer w = ctx.begin(sink, FlushPolicy.NEVER);
+		try {
+			write(i, w, po, ctx);
+			ctx.finish(w);
+		} finally {
+			ctx.end();
+		}
+		return sink.toCharArray();
+	}
+
+	/**
+	 * The memoised output of a render plan for an indent, indent string and carriage return
+	 */
+	private static final class Memo {
+		private final int i;
+		private final String indent;
+		private final String cr;
+		private final char[] chars;
+		private final byte[] utf8;
+		/**
+		 * Whether the output includes any carriage returns
+		 */
+		private final boolean lines;
+
+		private Memo(int i, String indent, String cr, char[] chars) {
+			this.i = i;
+			this.indent = indent;
+			this.cr = cr;
+			this.chars = chars;
+			this.utf8 = new String(chars).getBytes(StandardCharsets.UTF_8);
+			this.lines = i >= 0 && !cr.isEmpty() && new String(chars).contains(cr);
+		}
+
+		private boolean matches(int i, String indent, String cr) {
+			return this.i == i &&
+					(this.indent == indent || this.indent.equals(indent)) &&
+					(this.cr == cr || this.cr.equals(cr));
+		}
+	}
+
+	/**
+	 * Write this render plan onto the given writer with the given indent
+	 * @param i		The indent level at which to write the output
+	 * @param out	The writer on which to write the output
+	 * @param po		The proforma output providing values for the proformas parameters, the indent string and the carriage return
+	 * @return		The given writer for method chaining
+	 *
+	 * IO Exceptions thrown by the writer are converted into the unchecked ProformaError
+	 */
+	public Writer write(int i, Writer out, ProformaOutput<?> po) {
+		RenderContext ctx = po.context();
+		Writer w = ctx.begin(out, po.getFlushPolicy());
+		if (w == null) {
+			return write(i, out, po, ctx);
+		}
+		try {
+			write(i, w, po, ctx);
+			ctx.finish(w);
+		} finally {
+			ctx.end();
+		}
+		return out;
+	}
+
+	/**
+	 * Write this render plan onto the given writer with the given indent using the given render context for embedded proformas
+	 * @param i		The indent level at which to write the output
+	 * @param out	The writer on which to write the output
+	 * @param po		The proforma output providing values for the proformas parameters, the indent string and the carriage return
+	 * @param ctx	The render context providing frames for embedded proformas
+	 * @return		The given writer for method chaining
+	 */
+	@SuppressWarnings("unchecked")
+	Writer write(int i, Writer out, ProformaOutput<?> po, RenderContext ctx) {
+		final int[] code = this.code;
+		final Object[] operands = this.operands;
+		final int partIndent = (autoIncrementIndent) ? i+1 : i;
+		final Utf8Buffer bytes = (out instanceof Utf8Buffer) ? (Utf8Buffer)out : null;
+		ctx.enter();
+		final byte[] conditions = (this.conditions > 0) ? ctx.conditions(this.conditions) : null;
+		Indents indents = null;
+		final RenderProfiler profiler = po.getProfiler();
+		final RenderProfiler.Plan plan = (profiler != null) ? plan() : null;
+		final int depth = (profiler != null) ? profiler.enter(plan) : 0;
+		try {
+			int pc = 0;
+			int line = -1;
+			while (pc < code.length) {
+				if (profiler != null) line = profiler.enter(plan, pc, line);
+				switch (code[pc]) {
+				case IF:
+					if (condition(pc, po, conditions)) {
+						pc += 4;
+					} else {
+						ctx.suppressed++;
+						pc = code[pc+3];
+					}
+					break;
+				case INDENT:
+					if (i > 0) {
+						if (indents == null) indents = po.indents();
+						if (bytes != null) {
+							bytes.write(indents.utf8(i));
+						} else {
+							out.write(indents.get(i));
+						}
+					}
+					pc++;
+					break;
+				case LITERAL:
+					if (bytes != null) {
+						bytes.write(utf8[code[pc+1]]);
+					} else {
+						out.write((String)operands[code[pc+1]]);
+					}
+					pc += 2;
+					break;
+				case INDENT_PART:
+					if (bytes != null) {
+						bytes.writeIndent(po.getIndent());
+					} else {
+						out.write(po.getIndent());
+					}
+					pc++;
+					break;
+				case PARAMETER:
+					ParameterPart parameter = (ParameterPart)operands[code[pc+1]];
+					if (profiler == null) {
+						parameter.write(partIndent, out, po);
+					} else {
+						parameter.write(partIndent, out, po, profiler);
+					}
+					ctx.lookups++;
+					pc += 2;
+					break;
+				case PROFORMA:
+					((Proforma)operands[code[pc+1]]).write(partIndent, out, po, ctx);
+					pc += 2;
+					break;
+				case PART:
+					Part part = (Part)operands[code[pc+1]];
+					if (part.isIncluded(po)) {
+						part.write(partIndent, out, po);
+					} else {
+						ctx.suppressed++;
+					}
+					pc += 2;
+					break;
+				case CR:
+					if (i >= 0) {
+						if (bytes != null) {
+							bytes.writeCarriageReturn(po.getCarriageReturn());
+						} else {
+							out.write(po.getCarriageReturn());
+						}
+						ctx.endLine(out);
+					}
+					pc++;
+					break;
+				default:
+					throw new ProformaError("Unknown opcode {} at {}", code[pc], pc);
+				}
+				if (profiler != null) profiler.exit();
+			}
+		} catch (IOException e) {
+			throw new ProformaError(e);
+		} finally {
+			if (profiler != null) profiler.unwind(depth);
+		}
+		ctx.exit();
+		return out;
+	}
+
+	/**
+	 * Get the frame names of the lines and opcodes of this render plan, building them when this render plan is first profiled
+	 * @return	The frame names
+	 */
+	private RenderProfiler.Plan plan() {
+		RenderProfiler.Plan plan = this.plan;
+		if (plan == null) plan = this.plan = new RenderProfiler.Plan(proforma, code, operands);
+		return plan;
+	}
+
+	/**
+	 * Execute the opcode at the given program counter for a render cursor
+	 * 
+	 * Embedded proformas are not written but handed to the render cursor which writes them a step at a time
+	 * 
+	 * @param pc		The program counter of the opcode to execute
+	 * @param i		The indent level at which to write the output
+	 * @param out	The writer on which to write the output
+	 * @param po		The proforma output providing values for the proformas parameters, the indent string and the carriage return
+	 * @param conditions	The condition slots held for this render plan and proforma output or null if this render plan has none
+	 * @param cursor	The render cursor to which embedded proformas are handed
+	 * @return		The program counter of the next opcode or -1 if the render plan has been written
+	 * @throws IOException	If the writer throws an IOException
+	 */
+	int step(int pc, int i, Writer out, ProformaOutput<?> po, byte[] conditions, RenderCursor cursor) throws IOException {
+		if (pc >= code.length) return -1;
+		final int partIndent = (autoIncrementIndent) ? i+1 : i;
+		switch (code[pc]) {
+		case IF:
+			return condition(pc, po, conditions) ? pc+4 : code[pc+3];
+		case INDENT:
+			if (i > 0) out.write(po.indents().get(i));
+			return pc+1;
+		case LITERAL:
+			out.write((String)operands[code[pc+1]]);
+			return pc+2;
+		case INDENT_PART:
+			out.write(po.getIndent());
+			return pc+1;
+		case PARAMETER:
+			((ParameterPart)operands[code[pc+1]]).write(partIndent, out, po);
+			return pc+2;
+		case PROFORMA:
+			cursor.embed((Proforma)operands[code[pc+1]], partIndent, po);
+			return pc+2;
+		case PART:
+			Part part = (Part)operands[code[pc+1]];
+			if (part.isIncluded(po)) part.write(partIndent, out, po);
+			return pc+2;
+		case CR:
+			if (i >= 0) out.write(po.getCarriageReturn());
+			return pc+1;
+		default:
+			throw new ProformaError("Unknown opcode {} at {}", code[pc], pc);
+		}
+	}
+
+	/**
+	 * Evaluate the condition of the IF opcode at the given program counter, or take its value from its slot if it has already been evaluated
+	 * @param pc		The program counter of the IF opcode
+	 * @param po		The proforma output against which the condition is evaluated
+	 * @param conditions	The condition slots or null if conditions are evaluated as they are reached
+	 * @return	The value of the condition
+	 */
+	@SuppressWarnings("unchecked")
+	private boolean condition(int pc, ProformaOutput<?> po, byte[] conditions) {
+		K2Expression<Boolean> expression = (K2Expression<Boolean>)operands[code[pc+1]];
+		if (conditions == null) return expression.evaluate(po);
+		int slot = code[pc+2];
+		byte value = conditions[slot];
+		if (value == RenderContext.UNKNOWN) {
+			value = (expression.evaluate(po)) ? RenderContext.TRUE : RenderContext.FALSE;
+			conditions[slot] = value;
+		}
+		return value == RenderContext.TRUE;
+	}
+
+	/**
+	 * The compiler accumulates the opcodes and operands of a render plan
+	 *
+	 * @author simon
+	 *
+	 */
+	private static class Compiler {
+		private int[] code = new int[32];
+		private int size = 0;
+		private final List<Object> operands = new ArrayList<Object>();
+		/**
+		 * Literal text waiting to be emitted. Adjacent unconditional string parts accumulate here
+		 */
+		private final StringBuilder literal = new StringBuilder();
+		/**
+		 * The slot of each distinct conditional expression
+		 */
+		private final Map<Condition, Integer> slots = new HashMap<Condition, Integer>();
+		/**
+		 * Whether any conditional expression controls more than one line or part
+		 */
+		private boolean repeated = false;
+
+		private void emit(int value) {
+			if (size == code.length) {
+				int[] grown = new int[size*2];
+				System.arraycopy(code, 0, grown, 0, size);
+				code = grown;
+			}
+			code[size++] = value;
+		}
+
+		private int operand(Object operand) {
+			operands.add(operand);
+			return operands.size()-1;
+		}
+
+		private void flushLiteral() {
+			if (literal.length() > 0) {
+				emit(LITERAL);
+				emit(operand(literal.toString()));
+				literal.setLength(0);
+			}
+		}
+
+		/**
+		 * Emit a conditional jump for the given expression
+		 * @param conditionalExpression	The expression controlling the following opcodes
+		 * @return	The index of the jump target which must be patched once the controlled opcodes have been emitted
+		 */
+		private int jump(K2Expression<Boolean> conditionalExpression) {
+			emit(IF);
+			emit(operand(conditionalExpression));
+			emit(slot(conditionalExpression));
+			emit(-1);
+			return size-1;
+		}
+
+		private int slot(K2Expression<Boolean> conditionalExpression) {
+			Condition condition = new Condition(conditionalExpression);
+			Integer slot = slots.get(condition);
+			if (slot == null) {
+				slot = slots.size();
+				slots.put(condition, slot);
+			} else {
+				repeated = true;
+			}
+			return slot;
+		}
+
+		private void line(Line line, boolean indent, boolean cr) {
+			int target = (line.conditionalExpression != null) ? jump(line.conditionalExpression) : -1;
+			if (indent) emit(INDENT);
+			for (Part part : line.parts) {
+				part(part);
+			}
+			flushLiteral();
+			if (cr) emit(CR);
+			if (target >= 0) code[target] = size;
+		}
+
+		private void part(Part part) {
+			if (part instanceof StringPart && ((StringPart)part).conditionalExpression == null) {
+				literal.append(((StringPart)part).value());
+				return;
+			}
+			flushLiteral();
+			if (part instanceof StringPart && ((StringPart)part).value().isEmpty()) return;
+			if (!(part instanceof StringPart || part instanceof IndentPart || part instanceof ParameterPart || part.getClass() == Proforma.class)) {
+				// Parts implemented elsewhere decide their own inclusion when written
+				emit(PART);
+				emit(operand(part));
+				return;
+			}
+
+			K2Expression<Boolean> conditionalExpression = ((AbstractPart)part).conditionalExpression;
+			int target = (conditionalExpression != null) ? jump(conditionalExpression) : -1;
+			if (part instanceof StringPart) {
+				emit(LITERAL);
+				emit(operand(((StringPart)part).value()));
+			} else if (part instanceof IndentPart) {
+				emit(INDENT_PART);
+			} else if (part instanceof ParameterPart) {
+				emit(PARAMETER);
+				emit(operand(part));
+			} else {
+				emit(PROFORMA);
+				emit(operand(part));
+			}
+			if (target >= 0) code[target] = size;
+		}
+
+		private int[] code() {
+			int[] trimmed = new int[size];
+			System.arraycopy(code, 0, trimmed, 0, size);
+			return trimmed;
+		}
+	}
+
+	/**
+	 * Identifies a conditional expression when the compiler assigns condition slots
+	 *
+	 * Parameter expressions evaluate to the value of their alias so parameters of the same type and alias are the same condition.
+	 * Any other expression is only the same condition as itself.
+	 */
+	private static final class Condition {
+		private final K2Expression<Boolean> expression;
+		private final Class<?> javaType;
+		private final String alias;
+
+		private Condition(K2Expression<Boolean> expression) {
+			if (expression.getClass() == Parameter.class || expression.getClass() == K2ParameterExpression.class) {
+				this.expression = null;
+				this.javaType = expression.getJavaType();
+				this.alias = expression.getAlias();
+			} else {
+				this.expression = expression;
+				this.javaType = null;
+				this.alias = null;
+			}
+		}
+
+		@Override
+		public int hashCode() {
+			return (expression != null) ? System.identityHashCode(expression) : 31*javaType.hashCode() + alias.hashCode();
+		}
+
+		@Override
+		public boolean equals(Object obj) {
+			if (!(obj instanceof Condition)) return false;
+			Condition other = (Condition)obj;
+			if (expression != null || other.expression != null) return expression == other.expression;
+			return javaType == other.javaType && alias.equals(other.alias);
+		}
+	}
+
+}
@@ -0,0 +1,205 @@
+package com.k2.Proforma;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A thread safe proforma library in which proformas are held by name
+ *
+ * Proformas are held in a concurrent map so any number of threads can look up proformas by name without locking while other threads
+ * add or remove proformas. Included libraries are held in an array that is replaced rather than changed when libraries are included so
+ * lookups read the included libraries without locking.
+ *
+ * A proforma added to this library is found in preference to a proforma with the same name in an included library. Otherwise included
+ * libraries are searched in the order in which they were included. The proforma found for a name in an included library is cached so
+ * that later lookups for the same name do not search the included libraries again. The cache is cleared when libraries are included and
+ * whenever an included concurrent proforma library changes. If a library of another implementation is included and later changed then
+ * clearCache() must be called.
+ *
+ * @author simon
+ *
+ */
+public class ConcurrentProformaLibrary implements ProformaLibrary {
+
+	private static final ProformaLibrary[] NONE = new ProformaLibrary[0];
+
+	/**
+	 * The proformas added to this library indexed by name
+	 */
+	private final ConcurrentMap<String, Proforma> proformas = new ConcurrentHashMap<String, Proforma>();
+	/**
+	 * The included libraries in the order in which they were included. The array is never changed once assigned
+	 */
+	private volatile ProformaLibrary[] included = NONE;
+	/**
+	 * The proformas found in included libraries indexed by name
+	 */
+	private final ConcurrentMap<String, Proforma> resolved = new ConcurrentHashMap<String, Proforma>();
+	/**
+	 * Incremented each time the cache of resolved proformas is cleared
+	 */
+	private final AtomicInteger generation = new AtomicInteger();
+	/**
+	 * The concurrent proforma libraries including this library
+	 */
+	private final List<ConcurrentProformaLibrary> dependents = new CopyOnWriteArrayList<ConcurrentProformaLibrary>();
+
+	/**
+	 * Create a new empty proforma library
+	 */
+	public ConcurrentProformaLibrary() {}
+
+	/**
+	 * Create a new proforma library containing the given proformas
+	 * @param proformas	The named proformas to add to the library
+	 */
+	public ConcurrentProformaLibrary(Proforma ... proformas) {
+		for (Proforma proforma : proformas) add(proforma);
+	}
+
+	/**
+	 * Add the given proforma to this library under its name replacing any proforma already added with the same name
+	 * @param proforma	The proforma to add
+	 * @return	This library for method chaining
+	 */
+	public ConcurrentProformaLibrary add(Proforma proforma) {
+		if (proforma == null) throw new ProformaError("Unable to add a null proforma to the library");
+		return add(proforma.getName(), proforma);
+	}
+
+	/**
+	 * Add the given proforma to this library under the given name replacing any proforma already added with the same name
+	 * @param name		The name by which the proforma will be found
+	 * @param proforma	The proforma to add
+	 * @return	This library for method chaining
+	 */
+	public ConcurrentProformaLibrary add(String name, Proforma proforma) {
+		if (name == null) throw new ProformaError("Unable to add a proforma without a name to the library");
+		if (proforma == null) throw new ProformaError("Unable to add a null proforma to the library as {}", name);
+		if (proformas.put(name, proforma) != proforma) changed();
+		return this;
+	}
+
+	/**
+	 * Remove the proforma with the given name from this library. Proformas in included libraries are not removed
+	 * @param name	The name of the proforma to remove
+	 * @return	The removed proforma or null if no proforma was added with the given name
+	 */
+	public Proforma remove(String name) {
+		Proforma removed = proformas.remove(name);
+		if (removed != null) changed();
+		return removed;
+	}
+
+	/**
+	 * Get the proforma with the given name from this library or its included libraries
+	 * @param name	The name of the proforma
+	 * @return	The proforma or null if neither this library nor its included libraries contain a proforma with the given name
+	 */
+	@Override
+	public Proforma getProforma(String name) {
+		Proforma proforma = proformas.get(name);
+		if (proforma != null) return proforma;
+		proforma = resolved.get(name);
+		if (proforma != null) return proforma;
+
+		int generation = this.generation.get();
+		for (ProformaLibrary library : included) {
+			proforma = library.getProforma(name);
+			if (proforma != null) {
+				resolved.put(name, proforma);
+				// Discard the result if the cache was cleared while it was being resolved
+				if (generation != this.generation.get()) resolved.remove(name, proforma);
+				return proforma;
+			}
+		}
+		return null;
+	}
+
+	/**
+	 * Include the given libraries after any libraries already included
+	 * @param libraries	The libraries to include
+	 */
+	@Override
+	public synchronized void include(ProformaLibrary ... libraries) {
+		ProformaLibrary[] grown = new ProformaLibrary[included.length + libraries.length];
+		System.arraycopy(included, 0, grown, 0, included.length);
+		int i = included.length;
+		for (ProformaLibrary library : libraries) {
+			if (library == null) throw new ProformaError("Unable to include a null library");
+			if (library instanceof ConcurrentProformaLibrary && ((ConcurrentProformaLibrary)library).includes(this))
+				throw new ProformaError("Unable to include a library that includes this library");
+			grown[i++] = library;
+		}
+		for (ProformaLibrary library : libraries) {
+			if (library instanceof ConcurrentProformaLibrary) ((ConcurrentProformaLibrary)library).dependents.add(this);
+		}
+		included = grown;
+		changed();
+	}
+
+	/**
+	 * Identify whether this library is or includes the given library directly or through its included libraries
+	 * @param library	The library to look for
+	 * @return	True if this library is or includes the given library
+	 */
+	private boolean includes(ProformaLibrary library) {
+		if (library == this) return true;
+		for (ProformaLibrary inc : included) {
+			if (inc == library) return true;
+			if (inc instanceof ConcurrentProformaLibrary && ((ConcurrentProformaLibrary)inc).includes(library)) return true;
+		}
+		return false;
+	}
+
+	/**
+	 * Get the libraries included in this library in the order in which they were included
+	 * @return	An unmodifiable list of the included libraries
+	 */
+	public List<ProformaLibrary> getIncludedLibraries() {
+		return Collections.unmodifiableList(Arrays.asList(included));
+	}
+
+	/**
+	 * Get the proformas added to this library. Proformas in included libraries are not returned
+	 * @return	An unmodifiable view of the proformas added to this library
+	 */
+	@Override
+	public Collection<Proforma> getAllProfomas() {
+		return Collections.unmodifiableCollection(proformas.values());
+	}
+
+	/**
+	 * Get the names of the proformas added to this library
+	 * @return	A snapshot of the names of the proformas added to this library
+	 */
+	public Collection<String> getNames() {
+		return new ArrayList<String>(proformas.keySet());
+	}
+
+	/**
+	 * Clear the cache of proformas found in included libraries
+	 *
+	 * This is only necessary if an included library of another implementation has changed
+	 */
+	public void clearCache() {
+		generation.incrementAndGet();
+		resolved.clear();
+	}
+
+	/**
+	 * Clear the caches of this library and every library including it
+	 */
+	private void changed() {
+		clearCache();
+		for (ConcurrentProformaLibrary dependent : dependents) dependent.changed();
+	}
+
+}
@@ -0,0 +1,134 @@
+package com.k2.Proforma;
+
+import java.io.IOException;
+import java.io.Writer;
+
+import com.k2.Util.StringUtil;
+
+/**
+ * The decimal formatter writes the values of numeric parameters without creating strings for them
+ *
+ * The digits of a number are formatted into the scratch space of the render buffer being written and written to the buffer in one write.
+ * Integral values are written as by Long.toString(...). Doubles of magnitude from 0.001 up to 10,000,000 are written in plain notation
+ * with the fewest fractional digits that identify the double, which is how Double.toString(...) writes them. Other doubles, and doubles
+ * needing more than fifteen or so significant digits, are written by Double.toString(...).
+ *
+ * @author simon
+ *
+ */
+final class DecimalFormatter {
+
+	/**
+	 * The number of characters of scratch space needed to format any long or double in plain notation
+	 */
+	static final int MAX_DIGITS = 32;
+	/**
+	 * The largest integer below which every integer is exactly represented by a double
+	 */
+	private static final long EXACT = 1L << 53;
+	private static final double[] POW10 = new double[18];
+	static {
+		POW10[0] = 1;
+		for (int p=1; p<POW10.length; p++) POW10[p] = POW10[p-1]*10;
+	}
+	private static final char[] TENS = new char[100];
+	private static final char[] UNITS = new char[100];
+	static {
+		for (int n=0; n<100; n++) {
+			TENS[n] = (char)('0' + n/10);
+			UNITS[n] = (char)('0' + n%10);
+		}
+	}
+
+	private DecimalFormatter() {}
+
+	/**
+	 * Write the given value as a decimal integer
+	 * @param value	The value
+	 * @param out	The writer
+	 * @throws IOException	If the writer throws an IOException
+	 */
+	static void write(long value, Writer out) throws IOException {
+		if (value == Long.MIN_VALUE) {
+			out.write("-9223372036854775808");
+			return;
+		}
+		char[] buf = scratch(out);
+		int pos = digits(Math.abs(value), buf, buf.length);
+		if (value < 0) buf[--pos] = '-';
+		out.write(buf, pos, buf.length-pos);
+	}
+
+	/**
+	 * Write the given value as a decimal
+	 * @param value	The value
+	 * @param out	The writer
+	 * @throws IOException	If the writer throws an IOException
+	 */
+	static void write(double value, Writer out) throws IOException {
+		if (value == 0) {
+			out.write((Double.doubleToRawLongBits(value) < 0) ? "-0.0" : "0.0");
+			return;
+		}
+		double magnitude = Math.abs(value);
+		if (magnitude >= 1e-3 && magnitude < 1e7) {
+			long whole = (long)magnitude;
+			for (int d=1; d<POW10.length; d++) {
+				double scaled = Math.rint(magnitude*POW10[d]);
+				if (scaled >= EXACT) break;
+				// Both the scaled value and the power of ten are exact so the division is the double nearest the decimal
+				if (scaled/POW10[d] == magnitude) {
+					long fraction = (long)scaled - whole*(long)POW10[d];
+					if (fraction < 0 || fraction >= (long)POW10[d]) break;
+					char[] buf = scratch(out);
+					int pos = digits(fraction, buf, buf.length);
+					while (buf.length-pos < d) buf[--pos] = '0';
+					buf[--pos] = '.';
+					pos = digits(whole, buf, pos);
+					if (value < 0) buf[--pos] = '-';
+					out.write(buf, pos, buf.length-pos);
+					return;
+				}
+			}
+		}
+		out.write(Double.toString(value));
+	}
+
+	/**
+	 * Write the given number, writing integral and double values without creating strings for them
+	 * @param value	The value
+	 * @param out	The writer
+	 * @throws IOException	If the writer throws an IOException
+	 */
+	static void write(Number value, Writer out) throws IOException {
+		if (value instanceof Integer || value instanceof Long || value instanceof Short || value instanceof Byte) {
+			write(value.longValue(), out);
+		} else if (value instanceof Double) {
+			write(value.doubleValue(), out);
+		} else if (value != null) {
+			out.write(StringUtil.toString(value));
+		}
+	}
+
+	/**
+	 * Format the given non negative value into the given buffer ending before the given position
+	 * @return	The position of the first digit
+	 */
+	private static int digits(long value, char[] buf, int pos) {
+		while (value >= 100) {
+			int pair = (int)(value % 100);
+			value /= 100;
+			buf[--pos] = UNITS[pair];
+			buf[--pos] = TENS[pair];
+		}
+		int pair = (int)value;
+		buf[--pos] = UNITS[pair];
+		if (pair >= 10) buf[--pos] = TENS[pair];
+		return pos;
+	}
+
+	private static char[] scratch(Writer out) {
+		return (out instanceof RenderBuffer) ? ((RenderBuffer)out).digits : new char[MAX_DIGITS];
+	}
+
+}
@@ -0,0 +1,43 @@
+package com.k2.Proforma;
+
+import com.k2.Expressions.expression.K2Expression;
+
+/**
+ * A numeric parameter whose value is a double
+ *
+ * Values for the parameter are set without boxing through setDouble(...) of the proforma output
+ *
+ * @author simon
+ *
+ */
+public final class DoubleParameter extends NumericParameter<Double> {
+
+	/**
+	 * Create a double parameter with the given alias
+	 * @param alias	The alias for the parameter
+	 */
+	DoubleParameter(String alias) {
+		super(Double.class, alias);
+	}
+
+	@Override
+	public DoubleParameter includeIf(K2Expression<Boolean> conditionalExpression) {
+		return (DoubleParameter)super.includeIf(conditionalExpression);
+	}
+
+	@Override
+	public DoubleParameter formatWith(ValueFormatter<? super Double> formatter) {
+		return (DoubleParameter)super.formatWith(formatter);
+	}
+
+	@Override
+	public DoubleParameter escape(Escaping escaping) {
+		return (DoubleParameter)super.escape(escaping);
+	}
+
+	@Override
+	DoubleParameter copy() {
+		return copyTo(new DoubleParameter(getAlias()));
+	}
+
+}
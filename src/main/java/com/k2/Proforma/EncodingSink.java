@@ -0,0 +1,191 @@
+package com.k2.Proforma;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.Charset;
+import java.nio.charset.CharsetEncoder;
+import java.nio.charset.CoderResult;
+import java.nio.charset.CodingErrorAction;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * An output sink encoding blocks of characters into bytes with a charset encoder
+ * 
+ * Malformed and unmappable characters are replaced with the replacement bytes of the charset
+ * 
+ * When the charset is UTF-8 the render context writes into a UTF-8 buffer which hands this sink bytes that are already encoded. The
+ * charset encoder and the byte buffer into which it encodes are only created when characters are written to the sink.
+ * 
+ * @author simon
+ *
+ */
+abstract class EncodingSink implements OutputSink {
+	
+	private final Charset charset;
+	private CharsetEncoder encoder;
+	
+	EncodingSink(Charset charset) {
+		this.charset = charset;
+	}
+	
+	/**
+	 * Identify whether this sink encodes its output as UTF-8
+	 * @return	True if the charset of this sink is UTF-8
+	 */
+	boolean utf8() {
+		return StandardCharsets.UTF_8.equals(charset);
+	}
+	
+	/**
+	 * Write bytes that are already encoded with the charset of this sink
+	 * @param bytes	The array holding the bytes
+	 * @param off	The offset of the first byte to write
+	 * @param len	The number of bytes to write
+	 * @throws IOException	If the bytes cannot be written
+	 */
+	abstract void write(byte[] bytes, int off, int len) throws IOException;
+	
+	/**
+	 * Get the byte buffer into which characters are encoded
+	 * @return	The byte buffer
+	 */
+	abstract ByteBuffer bytes();
+	
+	/**
+	 * Drain the encoded bytes from the byte buffer
+	 * @param bytes		The byte buffer
+	 * @param overflow	True if the byte buffer is full and more characters remain to be encoded
+	 * @throws IOException	If the bytes cannot be written
+	 */
+	abstract void drain(ByteBuffer bytes, boolean overflow) throws IOException;
+	
+	/**
+	 * Flush the destination of the encoded bytes
+	 * @throws IOException	If the destination cannot be flushed
+	 */
+	void flushBytes() throws IOException {}
+
+	@Override
+	public void write(char[] chars, int off, int len) throws IOException {
+		if (encoder == null) {
+			encoder = charset.newEncoder()
+					.onMalformedInput(CodingErrorAction.REPLACE)
+					.onUnmappableCharacter(CodingErrorAction.REPLACE);
+		}
+		CharBuffer in = CharBuffer.wrap(chars, off, len);
+		ByteBuffer bytes = bytes();
+		while (true) {
+			CoderResult result = encoder.encode(in, bytes, false);
+			if (result.isOverflow()) {
+				drain(bytes, true);
+			} else if (result.isUnderflow()) {
+				drain(bytes, false);
+				return;
+			} else {
+				result.throwException();
+			}
+		}
+	}
+	
+	@Override
+	public void flush() throws IOException {
+		flushBytes();
+	}
+	
+	/**
+	 * A sink encoding characters to an output stream
+	 */
+	static class StreamSink extends EncodingSink {
+		private final OutputStream out;
+		private ByteBuffer bytes;
+		
+		StreamSink(OutputStream out, Charset charset) {
+			super(charset);
+			this.out = out;
+		}
+
+		@Override
+		ByteBuffer bytes() {
+			if (bytes == null) bytes = ByteBuffer.allocate(8192);
+			return bytes;
+		}
+
+		@Override
+		void drain(ByteBuffer bytes, boolean overflow) throws IOException {
+			out.write(bytes.array(), bytes.arrayOffset(), bytes.position());
+			bytes.clear();
+		}
+
+		@Override
+		void flushBytes() throws IOException {
+			out.flush();
+		}
+
+		@Override
+		void write(byte[] bytes, int off, int len) throws IOException {
+			out.write(bytes, off, len);
+		}
+	}
+	
+	/**
+	 * A sink encoding characters to a writable byte channel
+	 */
+	static class ChannelSink extends EncodingSink {
+		private final WritableByteChannel out;
+		private ByteBuffer bytes;
+		
+		ChannelSink(WritableByteChannel out, Charset charset) {
+			super(charset);
+			this.out = out;
+		}
+
+		@Override
+		ByteBuffer bytes() {
+			if (bytes == null) bytes = ByteBuffer.allocate(8192);
+			return bytes;
+		}
+
+		@Override
+		void drain(ByteBuffer bytes, boolean overflow) throws IOException {
+			bytes.flip();
+			while (bytes.hasRemaining()) out.write(bytes);
+			bytes.clear();
+		}
+
+		@Override
+		void write(byte[] bytes, int off, int len) throws IOException {
+			ByteBuffer buffer = ByteBuffer.wrap(bytes, off, len);
+			while (buffer.hasRemaining()) out.write(buffer);
+		}
+	}
+	
+	/**
+	 * A sink encoding characters directly into a byte buffer
+	 */
+	static class BufferSink extends EncodingSink {
+		private final ByteBuffer out;
+		
+		BufferSink(ByteBuffer out, Charset charset) {
+			super(charset);
+			this.out = out;
+		}
+
+		@Override
+		ByteBuffer bytes() { return out; }
+
+		@Override
+		void drain(ByteBuffer bytes, boolean overflow) {
+			if (overflow) throw new ProformaError("The byte buffer has insufficient capacity for the output, capacity {}", out.capacity());
+		}
+
+		@Override
+		void write(byte[] bytes, int off, int len) {
+			if (len > out.remaining()) throw new ProformaError("The byte buffer has insufficient capacity for the output, capacity {}", out.capacity());
+			out.put(bytes, off, len);
+		}
+	}
+
+}
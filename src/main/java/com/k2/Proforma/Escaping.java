@@ -0,0 +1,224 @@
+package com.k2.Proforma;
+
+import java.io.IOException;
+import java.io.Writer;
+
+/**
+ * The escaping applied to the values of parameters as they are written
+ *
+ * Escaping is selected for a proforma output through its setEscaping(...) method and can be overridden for a parameter through its
+ * escape(...) method, for example to write a fragment of markup held in a parameter unescaped into an HTML page. Only the values of
+ * parameters are escaped. The literal text of the proforma, and the output of embedded proformas other than their own parameter values,
+ * are written as they are.
+ *
+ * Values are escaped as they are copied to the output buffer. Runs of characters that need no replacing are copied in a single write
+ * and only the characters that need replacing are written as their replacements, so no escaped copy of the value is created. The
+ * output of value formatters is escaped in the same way as it is written. The numbers written by numeric parameters contain only digits,
+ * signs and decimal points which never need escaping, and any other value of a numeric parameter is escaped as it would be for any
+ * other parameter.
+ *
+ * @author simon
+ *
+ */
+public enum Escaping {
+
+	/**
+	 * Values are written as they are
+	 */
+	NONE {
+		@Override
+		String replace(char c) { return null; }
+	},
+	/**
+	 * The XML markup characters &amp;, &lt;, &gt;, &quot; and &apos; are replaced by their entities
+	 */
+	XML {
+		@Override
+		String replace(char c) {
+			switch (c) {
+			case '&': return "&amp;";
+			case '<': return "&lt;";
+			case '>': return "&gt;";
+			case '"': return "&quot;";
+			case '\'': return "&apos;";
+			default: return null;
+			}
+		}
+	},
+	/**
+	 * The HTML markup characters &amp;, &lt;, &gt; and &quot; are replaced by their entities and ' by &amp;#39;, so values can be written
+	 * in element content and in quoted attribute values
+	 */
+	HTML {
+		@Override
+		String replace(char c) {
+			switch (c) {
+			case '&': return "&amp;";
+			case '<': return "&lt;";
+			case '>': return "&gt;";
+			case '"': return "&quot;";
+			case '\'': return "&#39;";
+			default: return null;
+			}
+		}
+	},
+	/**
+	 * Quotes, backslashes and control characters are escaped for a JSON string. The quotes around the string are part of the proforma.
+	 * The line and paragraph separators are also escaped so that the output can be embedded in JavaScript
+	 */
+	JSON {
+		@Override
+		String replace(char c) {
+			if (c < 0x20) return CONTROL[c];
+			switch (c) {
+			case '"': return "\\\"";
+			case '\\': return "\\\\";
+			case '\u2028': return "\\u2028";
+			case '\u2029': return "\\u2029";
+			default: return null;
+			}
+		}
+	},
+	/**
+	 * Values containing commas, quotes or line breaks are enclosed in quotes with the quotes they contain doubled, as RFC 4180 requires
+	 * of CSV fields. Other values are written as they are
+	 */
+	CSV {
+		@Override
+		String replace(char c) {
+			return (c == '"') ? "\"\"" : null;
+		}
+
+		@Override
+		void write(String value, int off, int len, Writer out) throws IOException {
+			if (!quoted(value, off, len)) {
+				out.write(value, off, len);
+				return;
+			}
+			out.write('"');
+			super.write(value, off, len, out);
+			out.write('"');
+		}
+
+		@Override
+		void write(char[] value, int off, int len, Writer out) throws IOException {
+			if (!quoted(value, off, len)) {
+				out.write(value, off, len);
+				return;
+			}
+			out.write('"');
+			super.write(value, off, len, out);
+			out.write('"');
+		}
+
+		@Override
+		boolean whole() { return true; }
+	},
+	/**
+	 * Single quotes are doubled for a SQL string literal. The quotes around the literal are part of the proforma
+	 */
+	SQL {
+		@Override
+		String replace(char c) {
+			return (c == '\'') ? "''" : null;
+		}
+	};
+
+	/**
+	 * The JSON escapes of the control characters
+	 */
+	private static final String[] CONTROL = new String[0x20];
+	static {
+		for (int c=0; c<CONTROL.length; c++) {
+			String hex = Integer.toHexString(c);
+			CONTROL[c] = "\\u00" + ((hex.length() == 1) ? "0" : "") + hex;
+		}
+		CONTROL['\b'] = "\\b";
+		CONTROL['\f'] = "\\f";
+		CONTROL['\n'] = "\\n";
+		CONTROL['\r'] = "\\r";
+		CONTROL['\t'] = "\\t";
+	}
+
+	/**
+	 * Get the replacement for the given character
+	 * @param c	The character
+	 * @return	The replacement or null if the character is written as it is
+	 */
+	abstract String replace(char c);
+
+	/**
+	 * Identify whether this escaping must see the whole of a value before writing any of it
+	 * @return	True if the escaping depends on the whole value
+	 */
+	boolean whole() { return false; }
+
+	/**
+	 * Write the given value escaped
+	 * @param value	The value
+	 * @param out	The writer
+	 * @throws IOException	If the writer throws an IOException
+	 */
+	void write(String value, Writer out) throws IOException {
+		write(value, 0, value.length(), out);
+	}
+
+	/**
+	 * Write the given characters of a value escaped
+	 * @param value	The value
+	 * @param off	The offset of the first character to write
+	 * @param len	The number of characters to write
+	 * @param out	The writer
+	 * @throws IOException	If the writer throws an IOException
+	 */
+	void write(String value, int off, int len, Writer out) throws IOException {
+		int end = off + len;
+		int run = off;
+		for (int i=off; i<end; i++) {
+			String replacement = replace(value.charAt(i));
+			if (replacement != null) {
+				if (i > run) out.write(value, run, i-run);
+				out.write(replacement);
+				run = i+1;
+			}
+		}
+		if (end > run) out.write(value, run, end-run);
+	}
+
+	/**
+	 * Write the given characters of a value escaped
+	 * @param value	The value
+	 * @param off	The offset of the first character to write
+	 * @param len	The number of characters to write
+	 * @param out	The writer
+	 * @throws IOException	If the writer throws an IOException
+	 */
+	void write(char[] value, int off, int len, Writer out) throws IOException {
+		int end = off + len;
+		int run = off;
+		for (int i=off; i<end; i++) {
+			String replacement = replace(value[i]);
+			if (replacement != null) {
+				if (i > run) out.write(value, run, i-run);
+				out.write(replacement);
+				run = i+1;
+			}
+		}
+		if (end > run) out.write(value, run, end-run);
+	}
+
+	private static boolean quoted(char c) {
+		return c == ',' || c == '"' || c == '\n' || c == '\r';
+	}
+
+	private static boolean quoted(String value, int off, int len) {
+		for (int i=off; i<off+len; i++) if (quoted(value.charAt(i))) return true;
+		return false;
+	}
+
+	private static boolean quoted(char[] value, int off, int len) {
+		for (int i=off; i<off+len; i++) if (quoted(value[i])) return true;
+		return false;
+	}
+
+}
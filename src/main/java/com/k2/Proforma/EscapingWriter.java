@@ -0,0 +1,123 @@
+package com.k2.Proforma;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.util.Arrays;
+
+/**
+ * An escaping writer escapes the output of a value formatter as it is written to the output
+ *
+ * Escapings that must see the whole of a value before writing any of it, such as CSV, hold the output of the formatter until the
+ * value is finished. Other escapings write each run of characters escaped as the formatter writes it.
+ *
+ * The escaping writer of the render buffer being written is reused for each value so that escaping formatted values allocates nothing
+ * once the held characters have grown to the longest value written.
+ *
+ * @author simon
+ *
+ */
+final class EscapingWriter extends Writer {
+
+	private Writer out;
+	private Escaping escaping;
+	private char[] held = new char[64];
+	private int count = 0;
+
+	private EscapingWriter() {}
+
+	/**
+	 * Get an escaping writer escaping the values written to the given writer with the given escaping
+	 *
+	 * The escaping writer of the given writer is returned if it is a render buffer whose escaping writer is not already in use
+	 *
+	 * @param out		The writer to which the escaped values are written
+	 * @param escaping	The escaping
+	 * @return	The escaping writer which must be finished once the value has been written and then released
+	 */
+	static EscapingWriter open(Writer out, Escaping escaping) {
+		EscapingWriter w;
+		if (out instanceof RenderBuffer) {
+			RenderBuffer buffer = (RenderBuffer)out;
+			w = buffer.escaper;
+			if (w == null) w = buffer.escaper = new EscapingWriter();
+			if (w.out != null) w = new EscapingWriter();
+		} else {
+			w = new EscapingWriter();
+		}
+		w.out = out;
+		w.escaping = escaping;
+		return w;
+	}
+
+	/**
+	 * Write any held characters escaped once the value has been written
+	 * @throws IOException	If the writer throws an IOException
+	 */
+	void finish() throws IOException {
+		if (count > 0) escaping.write(held, 0, count, out);
+		count = 0;
+	}
+
+	/**
+	 * Release this escaping writer for reuse discarding any held characters
+	 */
+	void release() {
+		count = 0;
+		out = null;
+		escaping = null;
+	}
+
+	@Override
+	public void write(int c) throws IOException {
+		if (escaping.whole()) {
+			hold(1);
+			held[count++] = (char)c;
+			return;
+		}
+		String replacement = escaping.replace((char)c);
+		if (replacement == null) {
+			out.write(c);
+		} else {
+			out.write(replacement);
+		}
+	}
+
+	@Override
+	public void write(char[] cbuf, int off, int len) throws IOException {
+		if (escaping.whole()) {
+			hold(len);
+			System.arraycopy(cbuf, off, held, count, len);
+			count += len;
+			return;
+		}
+		escaping.write(cbuf, off, len, out);
+	}
+
+	@Override
+	public void write(String str, int off, int len) throws IOException {
+		if (escaping.whole()) {
+			hold(len);
+			str.getChars(off, off+len, held, count);
+			count += len;
+			return;
+		}
+		escaping.write(str, off, len, out);
+	}
+
+	private void hold(int len) {
+		if (count + len > held.length) held = Arrays.copyOf(held, Math.max(count + len, held.length*2));
+	}
+
+	/**
+	 * The output is flushed according to the flush policy of the proforma output, not by value formatters
+	 */
+	@Override
+	public void flush() {}
+
+	/**
+	 * The escaping writer is reused and so is never closed
+	 */
+	@Override
+	public void close() {}
+
+}
@@ -0,0 +1,125 @@
+package com.k2.Proforma;
+
+/**
+ * The flush policy of a proforma output defines when the writer is flushed while a proforma is written
+ *
+ * Whatever the policy, other than NEVER, the writer is always flushed once the proforma has been written.
+ *
+ * @author simon
+ *
+ */
+public final class FlushPolicy {
+
+	private enum Kind {
+		NEVER,
+		LINE,
+		ELEMENT,
+		CHARS,
+		MILLIS
+	}
+
+	/**
+	 * Never flush the writer. The caller is responsible for flushing the writer
+	 */
+	public static final FlushPolicy NEVER = new FlushPolicy(Kind.NEVER, 0);
+	/**
+	 * Flush the writer at the end of each line of the proforma being written. Lines of embedded proformas do not cause a flush
+	 */
+	public static final FlushPolicy LINE = new FlushPolicy(Kind.LINE, 0);
+	/**
+	 * Flush the writer at the end of each element of a collection of value sources. When collections are nested the writer is flushed
+	 * at the end of each element of the outermost collection
+	 */
+	public static final FlushPolicy ELEMENT = new FlushPolicy(Kind.ELEMENT, 0);
+
+	/**
+	 * Flush the writer at the end of the first line after the given number of characters have been written since the last flush
+	 * @param chars	The number of characters to write between flushes
+	 * @return	A flush policy flushing every given number of characters
+	 */
+	public static FlushPolicy everyChars(int chars) {
+		if (chars <= 0) throw new ProformaError("The number of characters between flushes must be positive, not {}", chars);
+		return new FlushPolicy(Kind.CHARS, chars);
+	}
+
+	/**
+	 * Flush the writer at the end of the first line after the given number of milliseconds have passed since the last flush
+	 * @param millis	The number of milliseconds between flushes
+	 * @return	A flush policy flushing every given number of milliseconds
+	 */
+	public static FlushPolicy everyMillis(long millis) {
+		if (millis <= 0) throw new ProformaError("The number of milliseconds between flushes must be positive, not {}", millis);
+		return new FlushPolicy(Kind.MILLIS, millis * 1000000L);
+	}
+
+	private final Kind kind;
+	/**
+	 * The number of characters or nanoseconds between flushes
+	 */
+	private final long amount;
+
+	private FlushPolicy(Kind kind, long amount) {
+		this.kind = kind;
+		this.amount = amount;
+	}
+
+	/**
+	 * Identify whether this policy ever flushes the writer
+	 * @return	True unless this policy is NEVER
+	 */
+	boolean flushes() { return kind != Kind.NEVER; }
+
+	/**
+	 * Identify whether this policy needs the number of characters written to be counted
+	 * @return	True if this policy flushes every given number of characters
+	 */
+	boolean counts() { return kind == Kind.CHARS; }
+
+	/**
+	 * Identify whether the writer should be flushed at the end of a line
+	 * @param topLevel		True if the line is a line of the proforma being written rather than a line of an embedded proforma
+	 * @param chars			The number of characters written since the last flush
+	 * @param sinceFlush		The number of nanoseconds since the last flush
+	 * @return	True if the writer should be flushed
+	 */
+	boolean flushLine(boolean topLevel, long chars, long sinceFlush) {
+		switch (kind) {
+		case LINE:
+			return topLevel;
+		case CHARS:
+			return chars >= amount;
+		case MILLIS:
+			return sinceFlush >= amount;
+		default:
+			return false;
+		}
+	}
+
+	/**
+	 * Identify whether the writer should be flushed at the end of an element of a collection of value sources
+	 * @param outermost	True if the element is an element of the outermost collection being written
+	 * @return	True if the writer should be flushed
+	 */
+	boolean flushElement(boolean outermost) {
+		return outermost && kind == Kind.ELEMENT;
+	}
+
+	/**
+	 * Identify whether this policy is time based
+	 * @return	True if this policy flushes every given number of milliseconds
+	 */
+	boolean timed() { return kind == Kind.MILLIS; }
+
+	@Override
+	public String toString() {
+		switch (kind) {
+		case CHARS:
+			return "every "+amount+" chars";
+		case MILLIS:
+			return "every "+(amount/1000000L)+" ms";
+		default:
+			return kind.name();
+		}
+	}
+
+}
@@ -0,0 +1,88 @@
+package com.k2.Proforma;
+
+import java.io.Writer;
+import java.util.ArrayDeque;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Formatters holds the value formatters registered for types of value on a proforma output
+ *
+ * The formatter for each class of value written is found once, from the formatters registered for the class, its superclasses and the
+ * interfaces it implements in that order, and remembered. Formatters are never changed once created. Registering another formatter
+ * creates new formatters so that they can be shared by the frames of a proforma output and by tasks writing collections in parallel.
+ *
+ * @author simon
+ *
+ */
+final class Formatters {
+
+	/**
+	 * Marks a class for which no formatter is registered
+	 */
+	private static final ValueFormatter<Object> NONE = new ValueFormatter<Object>() {
+		@Override
+		public void format(Object value, Writer out) {}
+	};
+
+	private final Map<Class<?>, ValueFormatter<?>> registered;
+	private final ConcurrentHashMap<Class<?>, ValueFormatter<?>> resolved = new ConcurrentHashMap<Class<?>, ValueFormatter<?>>();
+
+	private Formatters(Map<Class<?>, ValueFormatter<?>> registered) {
+		this.registered = registered;
+	}
+
+	/**
+	 * Create formatters with the given formatter registered for the given type in addition to the formatters of the given formatters
+	 * @param formatters	The existing formatters or null if there are none
+	 * @param type		The type of value
+	 * @param formatter	The formatter for the type or null to remove the formatter for the type
+	 * @return	The new formatters
+	 */
+	static Formatters with(Formatters formatters, Class<?> type, ValueFormatter<?> formatter) {
+		Map<Class<?>, ValueFormatter<?>> registered = (formatters == null) ?
+				new HashMap<Class<?>, ValueFormatter<?>>() :
+				new HashMap<Class<?>, ValueFormatter<?>>(formatters.registered);
+		if (formatter == null) {
+			registered.remove(type);
+		} else {
+			registered.put(type, formatter);
+		}
+		return new Formatters(registered);
+	}
+
+	/**
+	 * Get the formatter for values of the given class
+	 * @param cls	The class of the value
+	 * @return	The formatter or null if no formatter is registered for the class, its superclasses or its interfaces
+	 */
+	@SuppressWarnings("unchecked")
+	ValueFormatter<Object> get(Class<?> cls) {
+		ValueFormatter<?> formatter = resolved.get(cls);
+		if (formatter == null) {
+			formatter = resolve(cls);
+			resolved.putIfAbsent(cls, formatter);
+		}
+		return (formatter == NONE) ? null : (ValueFormatter<Object>)formatter;
+	}
+
+	private ValueFormatter<?> resolve(Class<?> cls) {
+		for (Class<?> c = cls; c != null; c = c.getSuperclass()) {
+			ValueFormatter<?> formatter = registered.get(c);
+			if (formatter != null) return formatter;
+		}
+		ArrayDeque<Class<?>> interfaces = new ArrayDeque<Class<?>>();
+		for (Class<?> c = cls; c != null; c = c.getSuperclass()) {
+			for (Class<?> i : c.getInterfaces()) interfaces.add(i);
+		}
+		while (!interfaces.isEmpty()) {
+			Class<?> i = interfaces.poll();
+			ValueFormatter<?> formatter = registered.get(i);
+			if (formatter != null) return formatter;
+			for (Class<?> s : i.getInterfaces()) interfaces.add(s);
+		}
+		return NONE;
+	}
+
+}
@@ -30,7 +30,6 @@ public class IndentPart extends AbstractPart implements Part {
 	@Override
 	public Writer write(int indent, Writer out, ProformaOutput<?> po) throws IOException {
 		out.write(po.getIndent());
-		if (po.autoFlush()) out.flush();
 		return out;
 	}
 
@@ -0,0 +1,114 @@
+package com.k2.Proforma;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Indents holds the indent string of a proforma output repeated for each indent level so that the indent of a line is written with a
+ * single write rather than one write for each level
+ *
+ * The repeated strings, and their UTF-8 encodings, are created the first time a line is written at each level and reused thereafter.
+ * Levels deeper than the maximum cached depth are repeated as they are written.
+ *
+ * Proforma outputs are usually created for a single write so the indents for each indent string are shared by all the proforma outputs
+ * using the indent string, on any thread. The repeated strings are published in new arrays so that threads reading them never see a
+ * partly filled array.
+ *
+ * @author simon
+ *
+ */
+final class Indents {
+
+	/**
+	 * The deepest indent level for which the repeated indent string is cached
+	 */
+	static final int MAX_CACHED_DEPTH = 64;
+	/**
+	 * The maximum number of indent strings whose indents are shared
+	 */
+	private static final int MAX_SHARED = 32;
+	/**
+	 * The shared indents of each indent string
+	 */
+	private static final ConcurrentHashMap<String, Indents> SHARED = new ConcurrentHashMap<String, Indents>();
+
+	private final String indent;
+	private volatile String[] strings = new String[0];
+	private volatile byte[][] utf8 = new byte[0][];
+
+	/**
+	 * Create the indents for the given indent string
+	 * @param indent	The indent string repeated for each indent level
+	 */
+	private Indents(String indent) {
+		this.indent = indent;
+	}
+
+	/**
+	 * Get the shared indents for the given indent string
+	 * 
+	 * Once the indents of the maximum number of indent strings are shared the indents of further indent strings are not shared
+	 * 
+	 * @param indent	The indent string repeated for each indent level
+	 * @return	The indents of the indent string
+	 */
+	static Indents of(String indent) {
+		Indents indents = SHARED.get(indent);
+		if (indents == null) {
+			indents = new Indents(indent);
+			if (SHARED.size() < MAX_SHARED) {
+				Indents shared = SHARED.putIfAbsent(indent, indents);
+				if (shared != null) indents = shared;
+			}
+		}
+		return indents;
+	}
+
+	/**
+	 * Get the indent string repeated for each indent level
+	 * @return	The indent string
+	 */
+	String indent() { return indent; }
+
+	/**
+	 * Get the indent string repeated for the given indent level
+	 * @param depth	The indent level
+	 * @return	The indent string repeated depth times
+	 */
+	String get(int depth) {
+		String[] s = strings;
+		if (depth < s.length) return s[depth];
+		if (depth > MAX_CACHED_DEPTH) return repeat(depth);
+		s = Arrays.copyOf(s, Math.min(MAX_CACHED_DEPTH+1, Math.max(depth+1, s.length*2)));
+		for (int d=0; d<s.length; d++) {
+			if (s[d] == null) s[d] = repeat(d);
+		}
+		strings = s;
+		return s[depth];
+	}
+
+	/**
+	 * Get the UTF-8 encoding of the indent string repeated for the given indent level
+	 * @param depth	The indent level
+	 * @return	The encoded indent string repeated depth times
+	 */
+	byte[] utf8(int depth) {
+		byte[][] b = utf8;
+		if (depth < b.length) return b[depth];
+		if (depth > MAX_CACHED_DEPTH) return repeat(depth).getBytes(StandardCharsets.UTF_8);
+		b = Arrays.copyOf(b, Math.min(MAX_CACHED_DEPTH+1, Math.max(depth+1, b.length*2)));
+		for (int d=0; d<b.length; d++) {
+			if (b[d] == null) b[d] = get(d).getBytes(StandardCharsets.UTF_8);
+		}
+		utf8 = b;
+		return b[depth];
+	}
+
+	private String repeat(int depth) {
+		StringBuilder sb = new StringBuilder(indent.length()*depth);
+		for (int d=0; d<depth; d++) sb.append(indent);
+		return sb.toString();
+	}
+
+}
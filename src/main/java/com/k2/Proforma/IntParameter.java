@@ -0,0 +1,43 @@
+package com.k2.Proforma;
+
+import com.k2.Expressions.expression.K2Expression;
+
+/**
+ * A numeric parameter whose value is an int
+ *
+ * Values for the parameter are set without boxing through setInt(...) of the proforma output
+ *
+ * @author simon
+ *
+ */
+public final class IntParameter extends NumericParameter<Integer> {
+
+	/**
+	 * Create an int parameter with the given alias
+	 * @param alias	The alias for the parameter
+	 */
+	IntParameter(String alias) {
+		super(Integer.class, alias);
+	}
+
+	@Override
+	public IntParameter includeIf(K2Expression<Boolean> conditionalExpression) {
+		return (IntParameter)super.includeIf(conditionalExpression);
+	}
+
+	@Override
+	public IntParameter formatWith(ValueFormatter<? super Integer> formatter) {
+		return (IntParameter)super.formatWith(formatter);
+	}
+
+	@Override
+	public IntParameter escape(Escaping escaping) {
+		return (IntParameter)super.escape(escaping);
+	}
+
+	@Override
+	IntParameter copy() {
+		return copyTo(new IntParameter(getAlias()));
+	}
+
+}
@@ -3,7 +3,9 @@ package com.k2.Proforma;
 import java.io.IOException;
 import java.io.Writer;
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.List;
+import java.util.Map;
 
 import com.k2.Expressions.expression.K2Expression;
 import com.k2.Util.StringUtil;
@@ -21,6 +23,11 @@ public class Line {
 	 */
 	List<Part> parts = new ArrayList<Part>();
 	
+	/**
+	 * True if this line is part of a frozen proforma and so cannot be changed
+	 */
+	private boolean frozen = false;
+	
 	/**
 	 * Create a line converting the given objects into parts
 	 * 
@@ -42,12 +49,52 @@ public class Line {
 		}		
 	}
 	
+	/**
+	 * Create a frozen copy of the given line with the given parts
+	 * @param clone		The line to copy
+	 * @param parts		The frozen parts of the line
+	 */
+	private Line(Line clone, List<Part> parts) {
+		this.parts = Collections.unmodifiableList(parts);
+		this.conditionalExpression = clone.conditionalExpression;
+		this.frozen = true;
+	}
+	
+	/**
+	 * Create a frozen line of the given parts restored from a proforma archive
+	 * @param parts					The parts of the line
+	 * @param conditionalExpression	The expression controlling whether the line is included or null if it is always included
+	 * @return	The frozen line
+	 */
+	static Line frozen(List<Part> parts, K2Expression<Boolean> conditionalExpression) {
+		Line line = new Line();
+		line.parts = Collections.unmodifiableList(parts);
+		line.conditionalExpression = conditionalExpression;
+		line.frozen = true;
+		return line;
+	}
+	
+	/**
+	 * Create a frozen copy of this line freezing any proformas embedded in the line
+	 * @param frozenProformas	The frozen copies of the proformas already frozen indexed by the proforma they were copied from
+	 * @return	A frozen copy of this line
+	 */
+	Line freeze(Map<Proforma, Proforma> frozenProformas) {
+		if (frozen) return this;
+		List<Part> frozenParts = new ArrayList<Part>(parts.size());
+		for (Part part : parts) {
+			frozenParts.add((part.getClass() == Proforma.class) ? ((Proforma)part).freeze(frozenProformas) : part);
+		}
+		return new Line(this, frozenParts);
+	}
+	
 	/**
 	 * Add a part to the line
 	 * @param part	The part to add to the line
 	 * @return	This line for method chaining
 	 */
 	public Line add(Part part) {
+		if (frozen) throw new ProformaError("Unable to add a part to a line of a frozen proforma");
 		parts.add(part);
 		return this;
 	}
@@ -83,7 +130,6 @@ public class Line {
 		for (Part part : parts) {
 			if (part.isIncluded(po)) part.write(indent, out, po);
 		}
-		if (po.autoFlush()) out.flush();
 	}
 	
 	/**
@@ -98,6 +144,7 @@ public class Line {
 	 * @return	This line for method chaining
 	 */
 	public Line includeIf(K2Expression<Boolean> conditionalExpression) {
+		if (frozen) throw new ProformaError("Unable to change the condition of a line of a frozen proforma");
 		this.conditionalExpression = conditionalExpression;
 		return this;
 	}
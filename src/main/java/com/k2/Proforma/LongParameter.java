@@ -0,0 +1,43 @@
+package com.k2.Proforma;
+
+import com.k2.Expressions.expression.K2Expression;
+
+/**
+ * A numeric parameter whose value is a long
+ *
+ * Values for the parameter are set without boxing through setLong(...) of the proforma output
+ *
+ * @author simon
+ *
+ */
+public final class LongParameter extends NumericParameter<Long> {
+
+	/**
+	 * Create a long parameter with the given alias
+	 * @param alias	The alias for the parameter
+	 */
+	LongParameter(String alias) {
+		super(Long.class, alias);
+	}
+
+	@Override
+	public LongParameter includeIf(K2Expression<Boolean> conditionalExpression) {
+		return (LongParameter)super.includeIf(conditionalExpression);
+	}
+
+	@Override
+	public LongParameter formatWith(ValueFormatter<? super Long> formatter) {
+		return (LongParameter)super.formatWith(formatter);
+	}
+
+	@Override
+	public LongParameter escape(Escaping escaping) {
+		return (LongParameter)super.escape(escaping);
+	}
+
+	@Override
+	LongParameter copy() {
+		return copyTo(new LongParameter(getAlias()));
+	}
+
+}
@@ -0,0 +1,64 @@
+package com.k2.Proforma;
+
+import com.k2.Expressions.expression.K2Expression;
+
+/**
+ * A numeric parameter is a parameter whose value is written as a decimal number without boxing it or creating a string for it
+ *
+ * Values set on a proforma output through its setInt(...), setLong(...) and setDouble(...) methods are held as primitives. Values read
+ * from fields of value sources of type int, long, short, byte or double are read as primitives. In both cases the digits are
+ * formatted directly into the output buffer. Values set through set(...) or read from fields holding boxed numbers are
+ * written in the same way once unboxed, and values that are not numbers are written as for any other parameter. Values are boxed and
+ * written by a value formatter instead if one is attached to the parameter or registered on the proforma output for its type.
+ *
+ * Numeric parameters are created through the static methods Proforma.intParam(...), Proforma.longParam(...) and Proforma.doubleParam(...)
+ *
+ * @author simon
+ *
+ * @param <T>	The boxed type of the parameter
+ */
+public abstract class NumericParameter<T extends Number> extends Parameter<T> {
+
+	/**
+	 * Create a numeric parameter with the given alias
+	 * @param javaType	The boxed type of the parameter
+	 * @param alias		The alias for the parameter
+	 */
+	NumericParameter(Class<T> javaType, String alias) {
+		super(javaType, alias);
+	}
+
+	/**
+	 * Create a numeric parameter of the same type whose parameter part is conditionally included according to the given boolean expression
+	 * @param conditionalExpression		The boolean expression controlling whether this parameters parameter part is included in the output
+	 * @return		A clone of this parameter with the conditional expression set
+	 */
+	@Override
+	public NumericParameter<T> includeIf(K2Expression<Boolean> conditionalExpression) {
+		return (NumericParameter<T>)super.includeIf(conditionalExpression);
+	}
+
+	/**
+	 * Create a numeric parameter of the same type whose values are written by the given value formatter, boxing them
+	 * @param formatter		The value formatter writing the values of the parameter part generated from this parameter
+	 * @return		A clone of this parameter with the formatter set
+	 */
+	@Override
+	public NumericParameter<T> formatWith(ValueFormatter<? super T> formatter) {
+		return (NumericParameter<T>)super.formatWith(formatter);
+	}
+
+	/**
+	 * Create a numeric parameter of the same type whose values are written with the given escaping
+	 * 
+	 * Numeric values are never changed by escaping, so the escaping only applies to the output of a value formatter
+	 * 
+	 * @param escaping		The escaping of the values of the parameter part generated from this parameter
+	 * @return		A clone of this parameter with the escaping set
+	 */
+	@Override
+	public NumericParameter<T> escape(Escaping escaping) {
+		return (NumericParameter<T>)super.escape(escaping);
+	}
+
+}
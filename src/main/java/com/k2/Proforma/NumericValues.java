@@ -0,0 +1,130 @@
+package com.k2.Proforma;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.util.Arrays;
+
+/**
+ * Numeric values hold the values of numeric parameters set on a proforma output as primitives so that they are not boxed
+ *
+ * Values are held against their alias in small parallel arrays that are searched in order. Setting the value of an alias already
+ * held overwrites it in place so resetting the value for each write allocates nothing. Proforma outputs rarely have more than a few
+ * numeric parameters so a search is quicker than hashing the alias.
+ *
+ * Numeric values are shared by the frames of the proforma output on which they are set in the same way as its parameter values.
+ *
+ * @author simon
+ *
+ */
+final class NumericValues {
+
+	static final byte INT = 1;
+	static final byte LONG = 2;
+	static final byte DOUBLE = 3;
+
+	private String[] aliases = new String[4];
+	private byte[] kinds = new byte[4];
+	/**
+	 * The value of each alias. Integral values are held as longs and doubles as their raw long bits
+	 */
+	private long[] bits = new long[4];
+	private int size = 0;
+
+	/**
+	 * Get the slot holding the value for the given alias
+	 * @param alias	The alias
+	 * @return	The slot or -1 if no value is held for the alias
+	 */
+	int indexOf(String alias) {
+		for (int s=0; s<size; s++) {
+			if (aliases[s] == alias || aliases[s].equals(alias)) return s;
+		}
+		return -1;
+	}
+
+	/**
+	 * Set the value of the given alias
+	 * @param alias	The alias
+	 * @param kind	The kind of the value
+	 * @param value	The integral value or raw long bits of the double value
+	 */
+	void set(String alias, byte kind, long value) {
+		int s = indexOf(alias);
+		if (s < 0) {
+			if (size == aliases.length) {
+				aliases = Arrays.copyOf(aliases, size*2);
+				kinds = Arrays.copyOf(kinds, size*2);
+				bits = Arrays.copyOf(bits, size*2);
+			}
+			s = size++;
+			aliases[s] = alias;
+		}
+		kinds[s] = kind;
+		bits[s] = value;
+	}
+
+	/**
+	 * Write the value in the given slot
+	 * @param s		The slot
+	 * @param out	The writer
+	 * @throws IOException	If the writer throws an IOException
+	 */
+	void write(int s, Writer out) throws IOException {
+		if (kinds[s] == DOUBLE) {
+			DecimalFormatter.write(Double.longBitsToDouble(bits[s]), out);
+		} else {
+			DecimalFormatter.write(bits[s], out);
+		}
+	}
+
+	/**
+	 * Get the value in the given slot as a boxed number for parameters that are evaluated rather than written
+	 * @param s		The slot
+	 * @return	The boxed value
+	 */
+	Object boxed(int s) {
+		switch (kinds[s]) {
+		case INT:
+			return Integer.valueOf((int)bits[s]);
+		case LONG:
+			return Long.valueOf(bits[s]);
+		default:
+			return Double.valueOf(Double.longBitsToDouble(bits[s]));
+		}
+	}
+
+	/**
+	 * Copy these numeric values, for example to key a cached output
+	 * @return	A copy of these numeric values
+	 */
+	NumericValues copy() {
+		NumericValues copy = new NumericValues();
+		copy.aliases = Arrays.copyOf(aliases, aliases.length);
+		copy.kinds = Arrays.copyOf(kinds, kinds.length);
+		copy.bits = Arrays.copyOf(bits, bits.length);
+		copy.size = size;
+		return copy;
+	}
+
+	@Override
+	public int hashCode() {
+		int h = 0;
+		// Order independent so that the same values set in a different order are equal
+		for (int s=0; s<size; s++) h += aliases[s].hashCode() ^ (int)(bits[s] ^ (bits[s] >>> 32)) ^ kinds[s];
+		return h;
+	}
+
+	@Override
+	public boolean equals(Object obj) {
+		if (this == obj) return true;
+		if (!(obj instanceof NumericValues)) return false;
+		NumericValues other = (NumericValues)obj;
+		if (size != other.size) return false;
+		for (int s=0; s<size; s++) {
+			int o = other.indexOf(aliases[s]);
+			if (o < 0 || other.kinds[o] != kinds[s] || other.bits[o] != bits[s]) return false;
+		}
+		return true;
+	}
+
+}
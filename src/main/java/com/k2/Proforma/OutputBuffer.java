@@ -0,0 +1,104 @@
+package com.k2.Proforma;
+
+import java.io.IOException;
+
+/**
+ * The output buffer is the reusable character buffer into which proformas are written
+ * 
+ * Writing to the buffer copies characters into its array. The buffer is drained to its output sink when it is full and when the
+ * proforma has been written, so the sink receives the output in large blocks. A high surrogate at the end of a full buffer is held
+ * back until the next drain so that surrogate pairs are never split between blocks.
+ * 
+ * @author simon
+ *
+ */
+class OutputBuffer extends RenderBuffer {
+	
+	private final char[] buf;
+	private int pos = 0;
+	private OutputSink sink;
+	
+	/**
+	 * Create an output buffer of the given size
+	 * @param size	The number of characters the buffer holds before it is drained
+	 */
+	OutputBuffer(int size) {
+		this.buf = new char[size];
+	}
+	
+	@Override
+	OutputBuffer reset(OutputSink sink) {
+		this.sink = sink;
+		this.pos = 0;
+		this.count = 0;
+		this.flushed = 0;
+		return this;
+	}
+
+	@Override
+	public void write(int c) throws IOException {
+		if (pos == buf.length) drain(false);
+		buf[pos++] = (char)c;
+		count++;
+	}
+
+	@Override
+	public void write(String str) throws IOException {
+		write(str, 0, str.length());
+	}
+
+	@Override
+	public void write(String str, int off, int len) throws IOException {
+		count += len;
+		while (len > 0) {
+			if (pos == buf.length) drain(false);
+			int n = Math.min(len, buf.length - pos);
+			str.getChars(off, off+n, buf, pos);
+			pos += n;
+			off += n;
+			len -= n;
+		}
+	}
+
+	@Override
+	public void write(char[] cbuf, int off, int len) throws IOException {
+		count += len;
+		while (len > 0) {
+			if (pos == buf.length) drain(false);
+			int n = Math.min(len, buf.length - pos);
+			System.arraycopy(cbuf, off, buf, pos, n);
+			pos += n;
+			off += n;
+			len -= n;
+		}
+	}
+	
+	/**
+	 * Drain all the characters in this buffer to the sink
+	 * @throws IOException	If the sink cannot be written
+	 */
+	@Override
+	void drain() throws IOException {
+		drain(true);
+	}
+	
+	private void drain(boolean all) throws IOException {
+		int n = pos;
+		if (!all && n > 0 && Character.isHighSurrogate(buf[n-1])) n--;
+		if (n > 0) sink.write(buf, 0, n);
+		if (n < pos) buf[0] = buf[n];
+		pos -= n;
+	}
+
+	/**
+	 * Drain this buffer and flush the sink
+	 */
+	@Override
+	public void flush() throws IOException {
+		drain(true);
+		sink.flush();
+		flushed += count;
+		count = 0;
+	}
+
+}
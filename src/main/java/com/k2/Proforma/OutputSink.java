@@ -0,0 +1,89 @@
+package com.k2.Proforma;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.Writer;
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.Charset;
+
+/**
+ * An output sink receives the characters of a proforma in blocks as the internal buffer of the proforma output is drained
+ *
+ * Proformas are written into a reusable character buffer which is drained to the sink when it is full, when the flush policy of the
+ * proforma output requires it and once the proforma has been written. Sinks that encode characters to bytes do so a block at a time.
+ *
+ * Sinks are provided for writers, appendables such as StringBuilder, output streams, writable byte channels and byte buffers.
+ *
+ * @author simon
+ *
+ */
+public interface OutputSink {
+
+	/**
+	 * Write a block of characters to this sink
+	 * @param chars	The array holding the characters
+	 * @param off	The offset of the first character to write
+	 * @param len	The number of characters to write
+	 * @throws IOException	If the characters cannot be written
+	 */
+	public void write(char[] chars, int off, int len) throws IOException;
+
+	/**
+	 * Flush any characters or bytes held by this sink to its destination
+	 * @throws IOException	If the sink cannot be flushed
+	 */
+	public void flush() throws IOException;
+
+	/**
+	 * Create a sink writing to the given writer
+	 * @param out	The writer
+	 * @return	A sink writing to the writer
+	 */
+	public static OutputSink of(Writer out) {
+		return new WriterSink(out);
+	}
+
+	/**
+	 * Create a sink appending to the given appendable
+	 * @param out	The appendable e.g. a StringBuilder
+	 * @return	A sink appending to the appendable
+	 */
+	public static OutputSink of(Appendable out) {
+		return new AppendableSink(out);
+	}
+
+	/**
+	 * Create a sink encoding characters with the given charset and writing the bytes to the given output stream
+	 * @param out		The output stream
+	 * @param charset	The charset with which to encode the characters
+	 * @return	A sink writing to the output stream
+	 */
+	public static OutputSink of(OutputStream out, Charset charset) {
+		return new EncodingSink.StreamSink(out, charset);
+	}
+
+	/**
+	 * Create a sink encoding characters with the given charset and writing the bytes to the given channel
+	 * @param out		The channel
+	 * @param charset	The charset with which to encode the characters
+	 * @return	A sink writing to the channel
+	 */
+	public static OutputSink of(WritableByteChannel out, Charset charset) {
+		return new EncodingSink.ChannelSink(out, charset);
+	}
+
+	/**
+	 * Create a sink encoding characters with the given charset directly into the given byte buffer
+	 *
+	 * A ProformaError is thrown if the encoded output does not fit in the remaining capacity of the buffer
+	 *
+	 * @param out		The byte buffer
+	 * @param charset	The charset with which to encode the characters
+	 * @return	A sink writing into the byte buffer
+	 */
+	public static OutputSink of(ByteBuffer out, Charset charset) {
+		return new EncodingSink.BufferSink(out, charset);
+	}
+
+}
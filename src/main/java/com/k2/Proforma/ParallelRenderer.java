@@ -0,0 +1,116 @@
+package com.k2.Proforma;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+
+/**
+ * The parallel renderer writes a proforma for each element of a large collection of value sources on a fork join pool
+ *
+ * The elements are taken from the sequence of value sources in chunks of the chunk size set on the proforma output. Each chunk is written by a task on the pool into
+ * its own character buffer using its own render context and frames. The buffers are written to the output in the order of the elements
+ * as they complete so the output is identical to writing the elements one by one. Only a limited number of chunks are in progress at
+ * once and the next chunk is only taken from the sequence when an earlier chunk has been written, so the memory held in chunks is
+ * bounded regardless of the number of elements.
+ *
+ * Parameter values set on the proforma output are read, but not changed, by all the tasks concurrently. The value sources and the
+ * proformas being written must be safe to read from several threads, which is the case for frozen proformas.
+ *
+ * @author simon
+ *
+ */
+final class ParallelRenderer {
+
+	private ParallelRenderer() {}
+
+	/**
+	 * Write the given compiled proforma for each of the given value sources in chunks on the fork join pool of the given settings
+	 * @param compiled	The compiled proforma to write for each value source
+	 * @param indent		The indent level at which to write each element
+	 * @param out		The writer on which to write the output
+	 * @param sources	The sequence of value sources
+	 * @param settings	The proforma output providing the chunk size, pool, indent string and carriage return
+	 * @param shared		True if the parameter values of the settings are shared by the elements, false if elements have their own
+	 * @param ctx		The render context writing to the given writer
+	 */
+	static void write(
+			final CompiledProforma compiled,
+			final int indent,
+			Writer out,
+			Object sources,
+			final ProformaOutput<?> settings,
+			final boolean shared,
+			RenderContext ctx) {
+
+		Iterator<?> elements = ValueSources.iterator(sources);
+		int chunkSize = settings.getChunkSize();
+		ForkJoinPool pool = settings.getPool();
+		int window = Math.max(2, pool.getParallelism() * 2);
+
+		ArrayDeque<ForkJoinTask<CharArraySink>> pending = new ArrayDeque<ForkJoinTask<CharArraySink>>(window);
+		try {
+			while (elements.hasNext() || !pending.isEmpty()) {
+				while (elements.hasNext() && pending.size() < window) {
+					// Elements are taken from the sequence a chunk at a time as earlier chunks are written
+					Object[] taken = new Object[Math.min(chunkSize, 1024)];
+					int n = 0;
+					while (n < chunkSize && elements.hasNext()) {
+						if (n == taken.length) taken = Arrays.copyOf(taken, Math.min(chunkSize, n*2));
+						taken[n++] = elements.next();
+					}
+					final Object[] chunk = taken;
+					final int count = n;
+					pending.add(pool.submit(new Callable<CharArraySink>() {
+						@Override
+						public CharArraySink call() {
+							return render(compiled, indent, chunk, count, settings, shared);
+						}
+					}));
+				}
+				CharArraySink chunk = pending.poll().join();
+				out.write(chunk.chars, 0, chunk.count);
+				ctx.endChunk(out);
+			}
+		} catch (IOException e) {
+			throw new ProformaError(e);
+		} finally {
+			for (ForkJoinTask<CharArraySink> task : pending) task.cancel(false);
+		}
+	}
+
+	/**
+	 * Write the given compiled proforma for each of the given elements into a new chunk
+	 */
+	private static CharArraySink render(
+			CompiledProforma compiled,
+			int indent,
+			Object[] elements,
+			int count,
+			ProformaOutput<?> settings,
+			boolean shared) {
+		Proforma proforma = compiled.getProforma();
+		ProformaOutput<Object> frame = new ProformaOutput<Object>(proforma).reset(proforma, settings, shared);
+		// Elements are written sequentially within a chunk
+		frame.setParallel(0);
+
+		RenderContext ctx = frame.context();
+		CharArraySink chunk = new CharArraySink();
+		Writer w = ctx.begin(chunk, FlushPolicy.NEVER);
+		try {
+			for (int e=0; e<count; e++) {
+				compiled.write(indent, w, frame.with(elements[e]), ctx);
+				elements[e] = null;
+			}
+			ctx.finish(w);
+		} finally {
+			ctx.end();
+		}
+		return chunk;
+	}
+
+}
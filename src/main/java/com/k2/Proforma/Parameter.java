@@ -30,13 +30,196 @@ public class Parameter<T> extends K2ParameterExpression<T>{
 	private K2Expression<Boolean> conditionalExpression;
 	
 	/**
-	 * Identify that the parameter part for this parameter should be conditionally included according to the given boolean expression
+	 * The formatter writing the values of this parameter or null to write their strings
+	 */
+	private ValueFormatter<? super T> formatter;
+	
+	/**
+	 * The escaping of the values of this parameter or null to use the escaping of the proforma output
+	 */
+	private Escaping escaping;
+	
+	/**
+	 * The text written before, between and after the elements of the values of this parameter or null if the values are not joined
+	 */
+	private String prefix, separator, suffix;
+	
+	/**
+	 * The proforma written for each element of the values of this parameter or null to write the elements as values
+	 */
+	private Proforma template;
+	
+	/**
+	 * The value accessor bound for the class of the value source last seen by this parameter
+	 */
+	private Binding binding;
+	
+	/**
+	 * Create a parameter whose parameter part is conditionally included according to the given boolean expression
+	 * 
+	 * This parameter is not changed so that it can be shared by proformas written concurrently
+	 * 
 	 * @param conditionalExpression		The boolean expression controlling whether this parameters parameter part is included in the output
-	 * @return		This parameter for method chaining
+	 * @return		A clone of this parameter with the conditional expression set
 	 */
 	public Parameter<T> includeIf(K2Expression<Boolean> conditionalExpression) {
-		this.conditionalExpression = conditionalExpression;
-		return this;
+		Parameter<T> p = copy();
+		p.conditionalExpression = conditionalExpression;
+		return p;
+	}
+	
+	/**
+	 * Create a parameter whose values are written by the given value formatter
+	 * 
+	 * This parameter is not changed so that it can be shared by proformas written concurrently
+	 * 
+	 * @param formatter		The value formatter writing the values of the parameter part generated from this parameter
+	 * @return		A clone of this parameter with the formatter set
+	 */
+	public Parameter<T> formatWith(ValueFormatter<? super T> formatter) {
+		Parameter<T> p = copy();
+		p.formatter = formatter;
+		return p;
+	}
+	
+	/**
+	 * Get the value formatter writing the values of this parameter
+	 * @return	The value formatter or null if the values are written as strings
+	 */
+	public ValueFormatter<? super T> formatter() {
+		return formatter;
+	}
+	
+	/**
+	 * Create a parameter whose values are written with the given escaping whatever the escaping of the proforma output
+	 * 
+	 * This parameter is not changed so that it can be shared by proformas written concurrently
+	 * 
+	 * @param escaping		The escaping of the values of the parameter part generated from this parameter or null to use the escaping of the proforma output
+	 * @return		A clone of this parameter with the escaping set
+	 */
+	public Parameter<T> escape(Escaping escaping) {
+		Parameter<T> p = copy();
+		p.escaping = escaping;
+		return p;
+	}
+	
+	/**
+	 * Get the escaping of the values of this parameter
+	 * @return	The escaping or null if the values are written with the escaping of the proforma output
+	 */
+	public Escaping escaping() {
+		return escaping;
+	}
+	
+	/**
+	 * Create a parameter whose collection values are written with the given separator between their elements
+	 * 
+	 * This parameter is not changed so that it can be shared by proformas written concurrently
+	 * 
+	 * @param separator		The text written between the elements
+	 * @return		A clone of this parameter joining its elements with the separator
+	 */
+	public Parameter<T> join(String separator) {
+		return join("", separator, "");
+	}
+	
+	/**
+	 * Create a parameter whose values are written between the given prefix and suffix with the given separator between the elements
+	 * of collection values
+	 * 
+	 * The prefix and suffix are written for every value that is not null, including empty collections. A value that is not a collection
+	 * is written as a single element. The prefix, separator and suffix are literal text and are never escaped
+	 * 
+	 * This parameter is not changed so that it can be shared by proformas written concurrently
+	 * 
+	 * @param prefix			The text written before the first element
+	 * @param separator		The text written between the elements
+	 * @param suffix			The text written after the last element
+	 * @return		A clone of this parameter joining its elements
+	 */
+	public Parameter<T> join(String prefix, String separator, String suffix) {
+		Parameter<T> p = copy();
+		p.prefix = (prefix == null) ? "" : prefix;
+		p.separator = (separator == null) ? "" : separator;
+		p.suffix = (suffix == null) ? "" : suffix;
+		return p;
+	}
+	
+	/**
+	 * Create a parameter each of whose elements is written by the given proforma, drawing the values of its parameters from the element
+	 * 
+	 * The proforma is written in a frame of the render context reused for every element, in the same way as a proforma embedded with
+	 * with(...), so no proforma output is created for each element. An embedded single line proforma is written inline. The elements
+	 * are separated as set by join(...)
+	 * 
+	 * This parameter is not changed so that it can be shared by proformas written concurrently
+	 * 
+	 * @param template		The proforma written for each element or null to write the elements as values
+	 * @return		A clone of this parameter writing its elements with the proforma
+	 */
+	public Parameter<T> eachWith(Proforma template) {
+		Parameter<T> p = copy();
+		p.template = template;
+		return p;
+	}
+	
+	/**
+	 * Identify whether the values of this parameter are joined or written by a proforma for each element
+	 * @return	True if the values are joined or templated
+	 */
+	boolean joined() {
+		return separator != null || template != null;
+	}
+	
+	/**
+	 * Get the text written before the elements of the values of this parameter
+	 * @return	The prefix or an empty string if there is none
+	 */
+	String prefix() { return (prefix == null) ? "" : prefix; }
+	
+	/**
+	 * Get the text written between the elements of the values of this parameter
+	 * @return	The separator or an empty string if there is none
+	 */
+	String separator() { return (separator == null) ? "" : separator; }
+	
+	/**
+	 * Get the text written after the elements of the values of this parameter
+	 * @return	The suffix or an empty string if there is none
+	 */
+	String suffix() { return (suffix == null) ? "" : suffix; }
+	
+	/**
+	 * Get the proforma written for each element of the values of this parameter
+	 * @return	The proforma or null if the elements are written as values
+	 */
+	Proforma template() { return template; }
+	
+	/**
+	 * Create a clone of this parameter of the same class with the same conditional expression, formatter, escaping and joining
+	 * @return	The clone
+	 */
+	@SuppressWarnings("unchecked")
+	Parameter<T> copy() {
+		return copyTo(new Parameter<T>((Class<T>)getJavaType(), getAlias()));
+	}
+	
+	/**
+	 * Copy the conditional expression, formatter, escaping and joining of this parameter to the given clone
+	 * @param clone	The newly created clone
+	 * @return	The given clone
+	 */
+	<P extends Parameter<T>> P copyTo(P clone) {
+		Parameter<T> p = clone;
+		p.conditionalExpression = conditionalExpression;
+		p.formatter = formatter;
+		p.escaping = escaping;
+		p.prefix = prefix;
+		p.separator = separator;
+		p.suffix = suffix;
+		p.template = template;
+		return clone;
 	}
 	
 	/**
@@ -46,4 +229,34 @@ public class Parameter<T> extends K2ParameterExpression<T>{
 	public K2Expression<Boolean> includeIf() {
 		return conditionalExpression;
 	}
+	
+	/**
+	 * Get the accessor that reads the value of this parameter from value sources of the given class
+	 * 
+	 * The accessor is bound the first time this parameter meets a value source of the given class and is reused while the
+	 * value sources remain of the same class
+	 * 
+	 * @param cls	The class of the value source
+	 * @return	The accessor or null if the value cannot be read directly from instances of the class
+	 */
+	ValueAccessor accessor(Class<?> cls) {
+		Binding b = binding;
+		if (b == null || b.cls != cls) {
+			b = new Binding(cls, ValueAccessor.of(cls, getAlias()));
+			binding = b;
+		}
+		return b.accessor;
+	}
+	
+	/**
+	 * An immutable pairing of a value source class and the accessor bound for it
+	 */
+	private static final class Binding {
+		private final Class<?> cls;
+		private final ValueAccessor accessor;
+		private Binding(Class<?> cls, ValueAccessor accessor) {
+			this.cls = cls;
+			this.accessor = accessor;
+		}
+	}
 }
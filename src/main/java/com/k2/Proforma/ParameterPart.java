@@ -2,8 +2,9 @@ package com.k2.Proforma;
 
 import java.io.IOException;
 import java.io.Writer;
-import java.util.Collection;
 import java.util.Iterator;
+import java.util.List;
+import java.util.RandomAccess;
 
 import com.k2.Expressions.expression.K2Expression;
 import com.k2.Util.StringUtil;
@@ -19,7 +20,7 @@ public class ParameterPart extends AbstractPart implements Part {
 	/**
 	 * The parameter for this part
 	 */
-	private Parameter<?> param;
+	private final Parameter<?> param;
 	
 	/**
 	 * Create a parameter part for the given parameter
@@ -39,25 +40,168 @@ public class ParameterPart extends AbstractPart implements Part {
 		this.conditionalExpression = clone.conditionalExpression;
 	}
 	
+	/**
+	 * Get the parameter for this part
+	 * @return	The parameter
+	 */
+	Parameter<?> parameter() { return param; }
+	
 	/**
 	 * Write the value of this parameter to the given writer
+	 * 
+	 * If the value is a collection, iterable, iterator, stream or spliterator each of its elements is written in turn. Values are
+	 * written by the formatter of the parameter, or the formatter registered on the proforma output for the class of the value,
+	 * if there is one. Values are escaped with the escaping of the parameter, or the escaping of the proforma output if the parameter
+	 * does not set its own.
+	 * 
+	 * If the parameter joins its values they are written between its prefix and suffix with its separator between the elements, each
+	 * element being written by the template of the parameter if it has one
 	 */
 	@SuppressWarnings({ "rawtypes", "unchecked" })
 	@Override
 	public Writer write(int indent, Writer out, ProformaOutput po) throws IOException {
-		Object value = po.valueOf(param);
-		if (value instanceof Collection) {
-			Collection<?> c = (Collection<?>)value;
-			Iterator<?> i = c.iterator();
-			while (i.hasNext()) {
-				out.write(StringUtil.toString(i.next()));
+		if (numeric(po) && po.writeNumber((NumericParameter<?>)param, out)) return out;
+		return write(indent, po.resolve(param), out, po);
+	}
+	
+	/**
+	 * Write the value of this parameter to the given writer timing the lookup and the formatting of its value in the given render profiler
+	 * 
+	 * Numbers written by numeric parameters are neither looked up nor formatted as objects and so are not timed separately
+	 */
+	Writer write(int indent, Writer out, ProformaOutput<?> po, RenderProfiler profiler) throws IOException {
+		if (numeric(po) && po.writeNumber((NumericParameter<?>)param, out)) return out;
+		profiler.enter(RenderProfiler.LOOKUP);
+		Object value = po.resolve(param);
+		profiler.exit();
+		profiler.enter(RenderProfiler.FORMAT);
+		write(indent, value, out, po);
+		profiler.exit();
+		return out;
+	}
+	
+	/**
+	 * Identify whether the value of this parameter is written as a number without being looked up as an object
+	 * @param po		The proforma output providing the value
+	 * @return	True if the parameter is numeric and its values are neither formatted nor joined
+	 */
+	boolean numeric(ProformaOutput<?> po) {
+		return param instanceof NumericParameter && param.formatter() == null && !param.joined() && po.formatter(param.getJavaType()) == null;
+	}
+	
+	/**
+	 * Write the given value of this parameter, already looked up from the given proforma output, to the given writer
+	 * @param indent	The indent level
+	 * @param value	The value of the parameter
+	 * @param out	The writer
+	 * @param po		The proforma output from which the value was looked up
+	 * @return	The given writer
+	 * @throws IOException	If the writer throws an IOException
+	 */
+	@SuppressWarnings("unchecked")
+	Writer write(int indent, Object value, Writer out, ProformaOutput<?> po) throws IOException {
+		ValueFormatter<Object> formatter = (ValueFormatter<Object>)param.formatter();
+		Escaping escaping = param.escaping();
+		if (escaping == null) escaping = po.getEscaping();
+		if (param.joined()) {
+			if (value != null) join(indent, value, formatter, escaping, out, po);
+		} else if (ValueSources.isSequence(value)) {
+			try {
+				Iterator<?> i = ValueSources.iterator(value);
+				while (i.hasNext()) {
+					write(i.next(), formatter, escaping, out, po);
+				}
+			} finally {
+				ValueSources.release(value);
 			}
+		} else if (value == null) {
+			out.write(StringUtil.toString(""));
 		} else {
-			out.write(StringUtil.toString((value==null)?"":value));
+			write(value, formatter, escaping, out, po);
 		}
-		if (po.autoFlush()) out.flush();
 		return out;
 	}
+	
+	/**
+	 * Write the elements of the given value between the prefix and suffix of the parameter separated by its separator
+	 */
+	private void join(int indent, Object value, ValueFormatter<Object> formatter, Escaping escaping, Writer out, ProformaOutput<?> po) throws IOException {
+		Proforma template = param.template();
+		RenderContext ctx = null;
+		CompiledProforma compiled = null;
+		ProformaOutput<Object> frame = null;
+		if (template != null) {
+			ctx = po.context();
+			compiled = template.compile();
+			frame = ctx.push(template, po);
+		}
+		try {
+			out.write(param.prefix());
+			if (value instanceof List && value instanceof RandomAccess) {
+				List<?> list = (List<?>)value;
+				for (int e=0; e<list.size(); e++) {
+					if (e > 0) out.write(param.separator());
+					element(indent, list.get(e), compiled, frame, ctx, formatter, escaping, out, po);
+				}
+			} else if (ValueSources.isSequence(value)) {
+				Iterator<?> i = ValueSources.iterator(value);
+				for (boolean first = true; i.hasNext(); first = false) {
+					if (!first) out.write(param.separator());
+					element(indent, i.next(), compiled, frame, ctx, formatter, escaping, out, po);
+				}
+			} else if (frame == null) {
+				write(value, formatter, escaping, out, po);
+			} else {
+				compiled.write(indent, out, frame.with(value), ctx);
+			}
+			out.write(param.suffix());
+		} finally {
+			if (frame != null) ctx.pop();
+			ValueSources.release(value);
+		}
+	}
+	
+	/**
+	 * Write a single element of a joined value with the given template or as a value
+	 */
+	private static void element(int indent, Object element, CompiledProforma compiled, ProformaOutput<Object> frame, RenderContext ctx,
+			ValueFormatter<Object> formatter, Escaping escaping, Writer out, ProformaOutput<?> po) throws IOException {
+		if (frame == null) {
+			write(element, formatter, escaping, out, po);
+		} else {
+			ctx.beginElement();
+			compiled.write(indent, out, frame.with(element), ctx);
+			ctx.endElement(out);
+		}
+	}
+	
+	/**
+	 * Write a single value with the given formatter, the formatter registered for its class or as a string escaped with the given escaping
+	 */
+	private static void write(Object value, ValueFormatter<Object> formatter, Escaping escaping, Writer out, ProformaOutput<?> po) throws IOException {
+		if (value != null) {
+			if (formatter == null) formatter = po.formatter(value.getClass());
+			if (formatter != null) {
+				if (escaping == Escaping.NONE) {
+					formatter.format(value, out);
+					return;
+				}
+				EscapingWriter w = EscapingWriter.open(out, escaping);
+				try {
+					formatter.format(value, w);
+					w.finish();
+				} finally {
+					w.release();
+				}
+				return;
+			}
+		}
+		if (escaping == Escaping.NONE) {
+			out.write(StringUtil.toString(value));
+		} else {
+			escaping.write(StringUtil.toString(value), out);
+		}
+	}
 
 	@Override
 	public ParameterPart includeIf(K2Expression<Boolean> conditionalExpression) {
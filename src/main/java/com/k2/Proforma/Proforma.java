@@ -3,9 +3,12 @@ package com.k2.Proforma;
 import java.io.IOException;
 import java.io.Writer;
 import java.util.ArrayList;
-import java.util.Collection;
+import java.util.Collections;
+import java.util.IdentityHashMap;
 import java.util.Iterator;
 import java.util.List;
+import java.util.Map;
+import java.util.RandomAccess;
 
 import com.k2.Expressions.expression.K2Expression;
 import com.k2.Util.StringUtil;
@@ -21,6 +24,11 @@ import com.k2.Util.StringUtil;
  * A proforma can optionally automatically increase the indent given to it for output. This is useful when embedding
  * proformas in other proformas to automatically increase the indent for embedded proformas;
  * 
+ * A proforma can be frozen by calling freeze() which returns a deeply immutable copy of the proforma, its lines and the proformas
+ * embedded in it. A frozen proforma is compiled when it is frozen and can be written by any number of threads concurrently, each
+ * with its own proforma output, without synchronisation. Proformas that are changed after they are first written should only be
+ * written by one thread at a time.
+ * 
  * @author simon
  *
  */
@@ -48,6 +56,13 @@ public class Proforma extends AbstractPart implements Part
 	private boolean autoIncrementIndent = true;
 	private Parameter<?> valueSourceParameter;
 	private String name;
+	/**
+	 * The name of the proforma from which this unnamed proforma was cloned by with(...) or includeIf(...), under which its renders are
+	 * recorded in render metrics
+	 */
+	private String metricsName;
+	private CompiledProforma compiled;
+	private boolean frozen = false;
 	
 	/**
 	 * Create a new default (empty) proforma
@@ -60,19 +75,39 @@ public class Proforma extends AbstractPart implements Part
 	 */
 	public Proforma(String name) { this.name = name; }
 	
+	/**
+	 * Create a proforma with the given name and metrics name, as restored from a proforma archive
+	 * @param name			The name for this proforma
+	 * @param metricsName	The name of the proforma from which this proforma was cloned
+	 */
+	Proforma(String name, String metricsName) {
+		this.name = name;
+		this.metricsName = metricsName;
+	}
+	
 	public String getName() { return name; }
 	
+	/**
+	 * Get the name under which the renders of this proforma are recorded, which is its own name or, for an unnamed clone, the name of
+	 * the proforma from which it was cloned
+	 * @return	The metrics name or null if neither this proforma nor the proforma from which it was cloned has a name
+	 */
+	String metricsName() { return (name != null) ? name : metricsName; }
+	
 	/**
 	 * Create a new proforma as a clone of the given proforma
 	 * 
 	 * @param clone		The proforma to clone into the created proforma
 	 */
 	private Proforma(Proforma clone) {
+		this.metricsName = clone.metricsName();
 		this.autoIncrementIndent = clone.autoIncrementIndent;
 		this.embedded = clone.embedded;
 		this.lines = clone.lines;
 		this.valueSourceParameter = clone.valueSourceParameter;
 		this.conditionalExpression = clone.conditionalExpression;
+		this.frozen = clone.frozen;
+		if (frozen) this.compiled = new CompiledProforma(this);
 	}
 	
 	/**
@@ -112,6 +147,33 @@ public class Proforma extends AbstractPart implements Part
 		return param(cls,alias);
 	}
 
+	/**
+	 * Create a parameter for int values which are written without boxing them
+	 * @param alias	The alias of the parameter
+	 * @return	The int parameter
+	 */
+	public static IntParameter intParam(String alias) {
+		return new IntParameter(alias);
+	}
+
+	/**
+	 * Create a parameter for long values which are written without boxing them
+	 * @param alias	The alias of the parameter
+	 * @return	The long parameter
+	 */
+	public static LongParameter longParam(String alias) {
+		return new LongParameter(alias);
+	}
+
+	/**
+	 * Create a parameter for double values which are written without boxing them
+	 * @param alias	The alias of the parameter
+	 * @return	The double parameter
+	 */
+	public static DoubleParameter doubleParam(String alias) {
+		return new DoubleParameter(alias);
+	}
+
 	/**
 	 * This static method creates a string part for the given object that is included if the given boolean expression 
 	 * valuates to true
@@ -140,6 +202,7 @@ public class Proforma extends AbstractPart implements Part
 	 * @return	This proforma for method chaining
 	 */
 	public Proforma add(Object ...parts) {
+		checkNotFrozen();
 		lines.add(new Line(parts));
 		return this;
 	}
@@ -153,6 +216,7 @@ public class Proforma extends AbstractPart implements Part
 	 * @return							This proforma for method chaining
 	 */
 	public Proforma addIf(K2Expression<Boolean> conditionalExpression, Object ...parts) {
+		checkNotFrozen();
 		lines.add(new Line(parts).includeIf(conditionalExpression));
 		return this;
 	}
@@ -169,12 +233,106 @@ public class Proforma extends AbstractPart implements Part
 	 */
 	boolean embedded() { return embedded; }
 	 
+	/**
+	 * Get the parameter providing the value sources of this proforma
+	 * @return	The value source parameter or null if this proforma draws its values from the proforma output containing it
+	 */
+	Parameter<?> valueSourceParameter() { return valueSourceParameter; }
+	 
 	/**
 	 * Identify whether this profoma automatically increments it's indent when output. Defaults to true
 	 * @return	True if this proforma automatically increments its' indent when output
 	 */
 	boolean autoIncrementIndent() { return autoIncrementIndent; }
 	
+	/**
+	 * Compile this proforma into an immutable render plan
+	 * 
+	 * The render plan is cached and reused until lines are added to this proforma or its embedded or auto increment indent
+	 * settings are changed. Proformas embedded in this proforma are compiled independently when they are first written.
+	 * 
+	 * @return	The compiled render plan for this proforma
+	 */
+	public CompiledProforma compile() {
+		if (frozen) return compiled;
+		CompiledProforma c = compiled;
+		if (c == null || c.lineCount() != lines.size()) {
+			c = new CompiledProforma(this);
+			compiled = c;
+		}
+		return c;
+	}
+	
+	/**
+	 * Create a deeply immutable copy of this proforma
+	 * 
+	 * The lines of this proforma are copied and the proformas embedded in them are frozen in turn. The frozen proforma is compiled
+	 * before it is returned. Trying to add lines to a frozen proforma or change its settings throws a ProformaError. Clones of a frozen
+	 * proforma created by with(Parameter) and includeIf(...) are also frozen. Parts implemented outside this package are shared by
+	 * the frozen copy and must themselves be safe to write concurrently.
+	 * 
+	 * @return	This proforma if it is already frozen, otherwise a frozen copy of this proforma
+	 */
+	public Proforma freeze() {
+		return freeze(new IdentityHashMap<Proforma, Proforma>());
+	}
+	
+	/**
+	 * Create a deeply immutable copy of this proforma reusing the frozen copies of proformas already frozen
+	 * @param frozenProformas	The frozen copies of the proformas already frozen indexed by the proforma they were copied from
+	 * @return	This proforma if it is already frozen, otherwise a frozen copy of this proforma
+	 */
+	Proforma freeze(Map<Proforma, Proforma> frozenProformas) {
+		if (frozen) return this;
+		Proforma p = frozenProformas.get(this);
+		if (p != null) return p;
+		p = new Proforma(this);
+		p.name = name;
+		frozenProformas.put(this, p);
+		List<Line> frozenLines = new ArrayList<Line>(lines.size());
+		for (Line line : lines) frozenLines.add(line.freeze(frozenProformas));
+		p.lines = Collections.unmodifiableList(frozenLines);
+		p.frozen = true;
+		p.compiled = new CompiledProforma(p);
+		return p;
+	}
+	
+	/**
+	 * Complete this proforma, created with its name alone, as a frozen proforma restored from a proforma archive
+	 * @param lines					The frozen lines of the proforma
+	 * @param embedded				Whether the proforma is embedded
+	 * @param autoIncrementIndent	Whether the proforma increments the indent of its parts
+	 * @param valueSourceParameter	The parameter providing the value sources of the proforma or null
+	 * @param conditionalExpression	The expression controlling whether the proforma is included or null
+	 */
+	void restore(List<Line> lines, boolean embedded, boolean autoIncrementIndent, Parameter<?> valueSourceParameter,
+			K2Expression<Boolean> conditionalExpression) {
+		this.lines = lines;
+		this.embedded = embedded;
+		this.autoIncrementIndent = autoIncrementIndent;
+		this.valueSourceParameter = valueSourceParameter;
+		this.conditionalExpression = conditionalExpression;
+		this.frozen = true;
+	}
+
+	/**
+	 * Attach the render plan restored from a proforma archive to this restored proforma
+	 * @param compiled	The render plan
+	 */
+	void restore(CompiledProforma compiled) {
+		this.compiled = compiled;
+	}
+	
+	/**
+	 * Identify whether this proforma is frozen
+	 * @return	True if this proforma is frozen and so cannot be changed
+	 */
+	public boolean isFrozen() { return frozen; }
+	
+	private void checkNotFrozen() {
+		if (frozen) throw new ProformaError("The proforma {} is frozen and cannot be changed", (name == null) ? "" : name);
+	}
+	
 	@Override
 	public Proforma includeIf(K2Expression<Boolean> conditionalExpression) {
 		Proforma p = new Proforma(this);
@@ -250,6 +408,88 @@ public class Proforma extends AbstractPart implements Part
 		return (ProformaOutput<?>) po.set(valueClass, alias, value);
 	}
 
+	/**
+	 * Create a proforma output to evaluate this proforma registering the given value formatter for values of the given type
+	 * @param type		The type of value
+	 * @param formatter	The value formatter
+	 * @return	A proforma output to evaluate this proforma with the formatter registered
+	 * @param <T>	The type of value
+	 */
+	@SuppressWarnings("rawtypes")
+	public <T> ProformaOutput<?> setFormatter(Class<T> type, ValueFormatter<? super T> formatter) {
+		ProformaOutput<?> po = new ProformaOutput(this);
+		return po.setFormatter(type, formatter);
+	}
+
+	/**
+	 * Create a proforma output to evaluate this proforma escaping the values of its parameters with the given escaping
+	 * @param escaping	The escaping
+	 * @return	A proforma output to evaluate this proforma with the escaping set
+	 */
+	@SuppressWarnings("rawtypes")
+	public ProformaOutput<?> setEscaping(Escaping escaping) {
+		ProformaOutput<?> po = new ProformaOutput(this);
+		return po.setEscaping(escaping);
+	}
+
+	/**
+	 * Create a proforma output to evaluate this proforma recording its metrics in the given render metrics
+	 * @param metrics	The render metrics
+	 * @return	A proforma output to evaluate this proforma with the render metrics set
+	 */
+	@SuppressWarnings("rawtypes")
+	public ProformaOutput<?> setMetrics(RenderMetrics metrics) {
+		ProformaOutput<?> po = new ProformaOutput(this);
+		return po.setMetrics(metrics);
+	}
+
+	/**
+	 * Create a proforma output to evaluate this proforma timing each of its lines and parts in the given render profiler
+	 * @param profiler	The render profiler
+	 * @return	A proforma output to evaluate this proforma with the render profiler set
+	 */
+	@SuppressWarnings("rawtypes")
+	public ProformaOutput<?> setProfiler(RenderProfiler profiler) {
+		ProformaOutput<?> po = new ProformaOutput(this);
+		return po.setProfiler(profiler);
+	}
+
+	/**
+	 * Set the value of the numeric parameter with the given alias without boxing it
+	 * @param alias	The alias of the parameter to set
+	 * @param value	The value for the parameter
+	 * @return	A proforma output to evaluate this proforma with the parameter set
+	 */
+	@SuppressWarnings("rawtypes")
+	public ProformaOutput<?> setInt(String alias, int value) {
+		ProformaOutput<?> po = new ProformaOutput(this);
+		return po.setInt(alias, value);
+	}
+
+	/**
+	 * Set the value of the numeric parameter with the given alias without boxing it
+	 * @param alias	The alias of the parameter to set
+	 * @param value	The value for the parameter
+	 * @return	A proforma output to evaluate this proforma with the parameter set
+	 */
+	@SuppressWarnings("rawtypes")
+	public ProformaOutput<?> setLong(String alias, long value) {
+		ProformaOutput<?> po = new ProformaOutput(this);
+		return po.setLong(alias, value);
+	}
+
+	/**
+	 * Set the value of the numeric parameter with the given alias without boxing it
+	 * @param alias	The alias of the parameter to set
+	 * @param value	The value for the parameter
+	 * @return	A proforma output to evaluate this proforma with the parameter set
+	 */
+	@SuppressWarnings("rawtypes")
+	public ProformaOutput<?> setDouble(String alias, double value) {
+		ProformaOutput<?> po = new ProformaOutput(this);
+		return po.setDouble(alias, value);
+	}
+
 	/**
 	 * Identifies that this proforma is embedded
 	 * 
@@ -259,7 +499,9 @@ public class Proforma extends AbstractPart implements Part
 	 * @return	This proforma for method chaining
 	 */
 	public Proforma setEmbedded(boolean embedded) {
+		checkNotFrozen();
 		this.embedded = embedded;
+		this.compiled = null;
 		return this;
 	}
 
@@ -270,33 +512,96 @@ public class Proforma extends AbstractPart implements Part
 	 * @return	This proforma for method chaining
 	 */
 	public Proforma setAutoIncrementIndent(boolean autoIncrementIndent) {
+		checkNotFrozen();
 		this.autoIncrementIndent = autoIncrementIndent;
+		this.compiled = null;
 		return this;
 	}
 
 	
-	@SuppressWarnings({ "rawtypes", "unchecked" })
 	@Override
-	public Writer write(int indent, Writer out, ProformaOutput poIn) throws IOException {
-		ProformaOutput po = poIn.clone(this);
-		if (valueSourceParameter != null) {
-			Object value = poIn.valueOf(valueSourceParameter);
-			
-			if (value instanceof Collection) {
-				Iterator<?> i = ((Collection<?>)value).iterator();
-				while (i.hasNext()) {
-					po.with(i.next()).write(indent, out);
-				}
-				if (po.autoFlush()) out.flush();
-				return out;
-			} else {
-				out = ((ProformaOutput<?>) po.with(value)).write(indent, out);
-				if (po.autoFlush()) out.flush();
+	public Writer write(int indent, Writer out, ProformaOutput<?> poIn) throws IOException {
+		RenderContext ctx = poIn.context();
+		Writer w = ctx.begin(out, poIn.getFlushPolicy());
+		if (w == null) {
+			return write(indent, out, poIn, ctx);
+		}
+		try {
+			write(indent, w, poIn, ctx);
+			ctx.finish(w);
+		} finally {
+			ctx.end();
+		}
+		return out;
+	}
+
+	/**
+	 * Write this proforma as a part of a line using the given render context
+	 * 
+	 * If this proforma draws its values from a parameter a frame is pushed onto the render context and reused for each
+	 * value of the parameter. A parameter value that is a collection, iterable, iterator, stream or spliterator is written
+	 * an element at a time. Otherwise this proforma draws its values directly from the given proforma output
+	 * 
+	 * @param indent		The indent level at which to write the output
+	 * @param out		The writer on which to write the output
+	 * @param poIn		The proforma output of the proforma containing this proforma
+	 * @param ctx		The render context
+	 * @return		The given writer for method chaining
+	 */
+	Writer write(int indent, Writer out, ProformaOutput<?> poIn, RenderContext ctx) {
+		RenderMetrics metrics = poIn.getMetrics();
+		String name = metricsName();
+		if (metrics == null || name == null || !metrics.isEnabled()) return writeEmbedded(indent, out, poIn, ctx);
+		long start = System.nanoTime();
+		long lookups = ctx.lookups, suppressed = ctx.suppressed, iterated = ctx.iterated, output = ctx.output();
+		try {
+			return writeEmbedded(indent, out, poIn, ctx);
+		} finally {
+			metrics.record(name, ctx, System.nanoTime() - start, lookups, suppressed, iterated, output);
+		}
+	}
+
+	/**
+	 * Write this proforma as a part of a line, drawing its values from its value source parameter if it has one
+	 */
+	private Writer writeEmbedded(int indent, Writer out, ProformaOutput<?> poIn, RenderContext ctx) {
+		CompiledProforma compiled = compile();
+		if (valueSourceParameter == null) {
+			if (compiled.memoisable()) return compiled.writeMemo(indent, out, poIn, ctx);
+			return compiled.write(indent, out, poIn, ctx);
+		}
+
+		Object value = poIn.resolve(valueSourceParameter);
+		try {
+			if (poIn.parallel(value)) {
+				ParallelRenderer.write(compiled, indent, out, value, poIn, true, ctx);
 				return out;
 			}
+			ProformaOutput<Object> po = ctx.push(this, poIn);
+			try {
+				if (value instanceof List && value instanceof RandomAccess) {
+					List<?> list = (List<?>)value;
+					for (int i=0; i<list.size(); i++) {
+						ctx.beginElement();
+						compiled.write(indent, out, po.with(list.get(i)), ctx);
+						ctx.endElement(out);
+					}
+				} else if (ValueSources.isSequence(value)) {
+					Iterator<?> sources = ValueSources.iterator(value);
+					while (sources.hasNext()) {
+						ctx.beginElement();
+						compiled.write(indent, out, po.with(sources.next()), ctx);
+						ctx.endElement(out);
+					}
+				} else {
+					compiled.write(indent, out, po.with(value), ctx);
+				}
+			} finally {
+				ctx.pop();
+			}
+		} finally {
+			ValueSources.release(value);
 		}
-		out = po.write(indent, out, poIn);
-		if (po.autoFlush()) out.flush();
 		return out;
 	}
 
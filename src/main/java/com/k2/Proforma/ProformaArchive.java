@@ -0,0 +1,658 @@
+package com.k2.Proforma;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+
+import com.k2.Expressions.expression.K2Expression;
+import com.k2.Expressions.expression.K2ParameterExpression;
+
+/**
+ * A proforma archive is a compact binary form of frozen proformas and their render plans
+ *
+ * Proformas are archived when they are built, typically at build time, and restored from the archive at startup. Restoring a proforma
+ * reads the archive once from start to end, creating the frozen proformas, lines, parts and parameters and attaching the render plan
+ * written with each proforma so that nothing is compiled or frozen when the proformas are restored. Archives read from files are memory
+ * mapped rather than copied onto the heap.
+ *
+ * Everything reachable from the archived proformas is archived with them: embedded proformas, the clones created by with(...) and
+ * includeIf(...), the templates of parameters and the proformas embedded in those. Objects shared in the archived proformas, such as the
+ * lines shared by a proforma and its clones, are shared in the restored proformas. Strings are held once however often they are used
+ * and the UTF-8 encoding of each literal is restored with it.
+ *
+ * Conditional expressions must be parameters, which is how proformas, conditional lines and conditional parts are normally written.
+ * Value formatters, other implementations of expressions and parts implemented outside this package cannot be archived and a
+ * ProformaError is thrown if they are found. Formatters can instead be registered on the proforma output.
+ *
+ * An archive is only valid for the version of Proforma that wrote it. Archives of other versions are rejected when they are read.
+ *
+ * @author simon
+ *
+ */
+public final class ProformaArchive {
+
+	/**
+	 * The first four bytes of every archive, PFMA
+	 */
+	private static final int MAGIC = 0x50464D41;
+	/**
+	 * The version of the archive format, changed whenever the format or the opcodes of render plans change
+	 */
+	private static final int VERSION = 2;
+
+	private static final byte GENERIC = 0;
+	private static final byte INT = 1;
+	private static final byte LONG = 2;
+	private static final byte DOUBLE = 3;
+
+	private static final byte STRING_PART = 0;
+	private static final byte INDENT_PART = 1;
+	private static final byte PARAMETER_PART = 2;
+	private static final byte PROFORMA_PART = 3;
+
+	private static final byte STRING_OPERAND = 0;
+	private static final byte PARAMETER_OPERAND = 1;
+	private static final byte PART_OPERAND = 2;
+	private static final byte PROFORMA_OPERAND = 3;
+
+	private ProformaArchive() {}
+
+	/**
+	 * Write the given proformas to the given output stream
+	 *
+	 * Proformas that are not frozen are frozen before they are archived
+	 *
+	 * @param proformas	The proformas to archive
+	 * @param out		The output stream, which is flushed but not closed
+	 * @throws IOException	If the output stream throws an IOException
+	 */
+	public static void write(Collection<Proforma> proformas, OutputStream out) throws IOException {
+		DataOutputStream data = new DataOutputStream(new BufferedOutputStream(out, 64*1024));
+		new Encoder(proformas).write(data);
+		data.flush();
+	}
+
+	/**
+	 * Write the given proformas to the file with the given path replacing any existing file
+	 * @param proformas	The proformas to archive
+	 * @param path		The path of the archive file
+	 */
+	public static void write(Collection<Proforma> proformas, Path path) {
+		try (OutputStream out = Files.newOutputStream(path)) {
+			write(proformas, out);
+		} catch (IOException e) {
+			throw new ProformaError("Unable to write the proforma archive {}", e, path);
+		}
+	}
+
+	/**
+	 * Write the given proformas to a new byte array
+	 * @param proformas	The proformas to archive
+	 * @return	The archive
+	 */
+	public static byte[] toBytes(Collection<Proforma> proformas) {
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		try {
+			write(proformas, out);
+		} catch (IOException e) {
+			throw new ProformaError(e);
+		}
+		return out.toByteArray();
+	}
+
+	/**
+	 * Restore the proformas archived in the given buffer, reading from its position to the end of the archive
+	 * @param archive	The buffer holding the archive
+	 * @return	The restored frozen proformas in the order in which they were archived
+	 */
+	public static List<Proforma> read(ByteBuffer archive) {
+		return decode(archive).roots;
+	}
+
+	/**
+	 * Restore the proformas archived in the given input stream, reading it to its end
+	 * @param in	The input stream, which is not closed
+	 * @return	The restored frozen proformas in the order in which they were archived
+	 * @throws IOException	If the input stream throws an IOException
+	 */
+	public static List<Proforma> read(InputStream in) throws IOException {
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		byte[] buf = new byte[64*1024];
+		int n;
+		while ((n = in.read(buf)) >= 0) bytes.write(buf, 0, n);
+		return read(ByteBuffer.wrap(bytes.toByteArray()));
+	}
+
+	/**
+	 * Restore the proformas archived in the file with the given path, memory mapping the file
+	 * @param path	The path of the archive file
+	 * @return	The restored frozen proformas in the order in which they were archived
+	 */
+	public static List<Proforma> read(Path path) {
+		return decode(path).roots;
+	}
+
+	/**
+	 * Restore the proformas archived in the file with the given path into a new library holding each named proforma by its name
+	 *
+	 * The library holds every named proforma in the archive, including the named proformas embedded in the archived proformas. Clones
+	 * created by with(...) and includeIf(...) have no name and are not held. Where proformas share a name the archived proforma is held in
+	 * preference to a proforma embedded in it
+	 *
+	 * @param path	The path of the archive file
+	 * @return	The library of restored proformas
+	 */
+	public static ConcurrentProformaLibrary library(Path path) {
+		Decoder decoder = decode(path);
+		ConcurrentProformaLibrary library = new ConcurrentProformaLibrary();
+		for (Proforma proforma : decoder.roots) {
+			if (proforma.getName() != null && library.getProforma(proforma.getName()) == null) library.add(proforma);
+		}
+		for (Proforma proforma : decoder.proformas) {
+			if (proforma.getName() != null && library.getProforma(proforma.getName()) == null) library.add(proforma);
+		}
+		return library;
+	}
+
+	private static Decoder decode(Path path) {
+		try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+			return decode(channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size()));
+		} catch (IOException e) {
+			throw new ProformaError("Unable to read the proforma archive {}", e, path);
+		}
+	}
+
+	private static Decoder decode(ByteBuffer archive) {
+		Decoder decoder = new Decoder(archive.duplicate());
+		try {
+			decoder.read();
+		} catch (BufferUnderflowException e) {
+			throw new ProformaError("The proforma archive is truncated");
+		} catch (IndexOutOfBoundsException e) {
+			throw new ProformaError("The proforma archive is corrupt", e);
+		}
+		return decoder;
+	}
+
+	/**
+	 * Collects the objects reachable from the archived proformas into tables and writes the tables in the order in which they are restored
+	 */
+	private static final class Encoder {
+		private final List<Proforma> roots = new ArrayList<Proforma>();
+		private final Map<String, Integer> strings = new HashMap<String, Integer>();
+		private final List<String> stringTable = new ArrayList<String>();
+		private final Map<Proforma, Integer> proformas = new IdentityHashMap<Proforma, Integer>();
+		private final List<Proforma> proformaTable = new ArrayList<Proforma>();
+		private final Map<K2Expression<?>, Integer> parameters = new IdentityHashMap<K2Expression<?>, Integer>();
+		private final List<K2Expression<?>> parameterTable = new ArrayList<K2Expression<?>>();
+		private final Map<Part, Integer> parts = new IdentityHashMap<Part, Integer>();
+		private final List<Part> partTable = new ArrayList<Part>();
+		private final Map<List<Line>, Integer> lines = new IdentityHashMap<List<Line>, Integer>();
+		private final List<List<Line>> lineTable = new ArrayList<List<Line>>();
+		private final ArrayDeque<Proforma> pending = new ArrayDeque<Proforma>();
+
+		private Encoder(Collection<Proforma> archived) {
+			Map<Proforma, Proforma> frozen = new IdentityHashMap<Proforma, Proforma>();
+			for (Proforma proforma : archived) {
+				if (proforma == null) throw new ProformaError("Unable to archive a null proforma");
+				Proforma p = proforma.freeze(frozen);
+				roots.add(p);
+				proforma(p);
+			}
+			while (!pending.isEmpty()) visit(pending.poll());
+		}
+
+		private int string(String s) {
+			if (s == null) return -1;
+			Integer i = strings.get(s);
+			if (i == null) {
+				i = stringTable.size();
+				strings.put(s, i);
+				stringTable.add(s);
+			}
+			return i;
+		}
+
+		private int proforma(Proforma p) {
+			if (p == null) return -1;
+			Integer i = proformas.get(p);
+			if (i == null) {
+				i = proformaTable.size();
+				proformas.put(p, i);
+				proformaTable.add(p);
+				pending.add(p);
+			}
+			return i;
+		}
+
+		private void visit(Proforma p) {
+			string(p.getName());
+			string(p.metricsName());
+			lines(p.getLines());
+			parameter(p.valueSourceParameter());
+			parameter(p.conditionalExpression);
+			CompiledProforma compiled = p.compile();
+			for (Object operand : compiled.operands()) operand(operand);
+		}
+
+		private int lines(List<Line> list) {
+			Integer i = lines.get(list);
+			if (i == null) {
+				for (Line line : list) {
+					parameter(line.conditionalExpression);
+					for (Part part : line.parts) part(part);
+				}
+				i = lineTable.size();
+				lines.put(list, i);
+				lineTable.add(list);
+			}
+			return i;
+		}
+
+		private int parameter(K2Expression<?> expression) {
+			if (expression == null) return -1;
+			Integer i = parameters.get(expression);
+			if (i == null) {
+				if (!(expression instanceof K2ParameterExpression)) {
+					throw new ProformaError("Unable to archive the expression {} as only parameters can be archived", expression.getClass().getName());
+				}
+				string(expression.getJavaType().getName());
+				string(expression.getAlias());
+				if (expression instanceof Parameter) {
+					Parameter<?> param = (Parameter<?>)expression;
+					if (kind(param) < 0) throw new ProformaError("Unable to archive the parameter {} of class {}", param.getAlias(), param.getClass().getName());
+					if (param.formatter() != null) {
+						throw new ProformaError("Unable to archive the value formatter of the parameter {}. Register it on the proforma output instead", param.getAlias());
+					}
+					parameter(param.includeIf());
+					string(param.prefix());
+					string(param.separator());
+					string(param.suffix());
+					proforma(param.template());
+				}
+				i = parameterTable.size();
+				parameters.put(expression, i);
+				parameterTable.add(expression);
+			}
+			return i;
+		}
+
+		private int part(Part part) {
+			Integer i = parts.get(part);
+			if (i == null) {
+				if (part.getClass() == Proforma.class) {
+					proforma((Proforma)part);
+				} else if (part instanceof StringPart) {
+					string(((StringPart)part).value());
+					parameter(((StringPart)part).conditionalExpression);
+				} else if (part instanceof IndentPart) {
+					parameter(((IndentPart)part).conditionalExpression);
+				} else if (part instanceof ParameterPart) {
+					parameter(((ParameterPart)part).parameter());
+					parameter(((ParameterPart)part).conditionalExpression);
+				} else {
+					throw new ProformaError("Unable to archive the part of class {}", part.getClass().getName());
+				}
+				i = partTable.size();
+				parts.put(part, i);
+				partTable.add(part);
+			}
+			return i;
+		}
+
+		private void operand(Object operand) {
+			if (operand instanceof String) {
+				string((String)operand);
+			} else if (operand instanceof Proforma) {
+				proforma((Proforma)operand);
+			} else if (operand instanceof Part) {
+				part((Part)operand);
+			} else {
+				parameter((K2Expression<?>)operand);
+			}
+		}
+
+		private static int kind(Parameter<?> param) {
+			Class<?> cls = param.getClass();
+			if (cls == Parameter.class) return GENERIC;
+			if (cls == IntParameter.class) return INT;
+			if (cls == LongParameter.class) return LONG;
+			if (cls == DoubleParameter.class) return DOUBLE;
+			return -1;
+		}
+
+		private void write(DataOutputStream out) throws IOException {
+			out.writeInt(MAGIC);
+			out.writeInt(VERSION);
+
+			out.writeInt(stringTable.size());
+			for (String s : stringTable) {
+				byte[] bytes = s.getBytes(StandardCharsets.UTF_8);
+				out.writeInt(bytes.length);
+				out.write(bytes);
+			}
+
+			out.writeInt(proformaTable.size());
+			for (Proforma p : proformaTable) {
+				out.writeInt(string(p.getName()));
+				out.writeInt(string(p.metricsName()));
+			}
+
+			out.writeInt(parameterTable.size());
+			for (K2Expression<?> expression : parameterTable) {
+				out.writeInt(string(expression.getJavaType().getName()));
+				out.writeInt(string(expression.getAlias()));
+				if (expression instanceof Parameter) {
+					Parameter<?> param = (Parameter<?>)expression;
+					out.writeByte(kind(param));
+					out.writeInt(parameter(param.includeIf()));
+					out.writeByte((param.escaping() == null) ? -1 : param.escaping().ordinal());
+					out.writeBoolean(param.joined());
+					if (param.joined()) {
+						out.writeInt(string(param.prefix()));
+						out.writeInt(string(param.separator()));
+						out.writeInt(string(param.suffix()));
+						out.writeInt(proforma(param.template()));
+					}
+				} else {
+					out.writeByte(GENERIC);
+					out.writeInt(-1);
+					out.writeByte(-1);
+					out.writeBoolean(false);
+				}
+			}
+
+			out.writeInt(partTable.size());
+			for (Part part : partTable) {
+				if (part.getClass() == Proforma.class) {
+					out.writeByte(PROFORMA_PART);
+					out.writeInt(proforma((Proforma)part));
+				} else if (part instanceof StringPart) {
+					out.writeByte(STRING_PART);
+					out.writeInt(string(((StringPart)part).value()));
+					out.writeInt(parameter(((StringPart)part).conditionalExpression));
+				} else if (part instanceof IndentPart) {
+					out.writeByte(INDENT_PART);
+					out.writeInt(parameter(((IndentPart)part).conditionalExpression));
+				} else {
+					out.writeByte(PARAMETER_PART);
+					out.writeInt(parameter(((ParameterPart)part).parameter()));
+					out.writeInt(parameter(((ParameterPart)part).conditionalExpression));
+				}
+			}
+
+			out.writeInt(lineTable.size());
+			for (List<Line> list : lineTable) {
+				out.writeInt(list.size());
+				for (Line line : list) {
+					out.writeInt(parameter(line.conditionalExpression));
+					out.writeInt(line.parts.size());
+					for (Part part : line.parts) out.writeInt(part(part));
+				}
+			}
+
+			for (Proforma p : proformaTable) {
+				out.writeInt(lines(p.getLines()));
+				out.writeBoolean(p.embedded());
+				out.writeBoolean(p.autoIncrementIndent());
+				out.writeInt(parameter(p.valueSourceParameter()));
+				out.writeInt(parameter(p.conditionalExpression));
+			}
+
+			for (Proforma p : proformaTable) {
+				CompiledProforma compiled = p.compile();
+				int[] code = compiled.code();
+				out.writeInt(code.length);
+				for (int c : code) out.writeInt(c);
+				Object[] operands = compiled.operands();
+				out.writeInt(operands.length);
+				for (Object operand : operands) {
+					if (operand instanceof String) {
+						out.writeByte(STRING_OPERAND);
+						out.writeInt(string((String)operand));
+					} else if (operand instanceof Proforma) {
+						out.writeByte(PROFORMA_OPERAND);
+						out.writeInt(proforma((Proforma)operand));
+					} else if (operand instanceof Part) {
+						out.writeByte(PART_OPERAND);
+						out.writeInt(part((Part)operand));
+					} else {
+						out.writeByte(PARAMETER_OPERAND);
+						out.writeInt(parameter((K2Expression<?>)operand));
+					}
+				}
+				out.writeInt(compiled.conditions());
+			}
+
+			out.writeInt(roots.size());
+			for (Proforma p : roots) out.writeInt(proforma(p));
+		}
+	}
+
+	/**
+	 * Restores the tables of an archive in the order in which they were written
+	 */
+	private static final class Decoder {
+		private final ByteBuffer in;
+		private String[] strings;
+		private byte[][] utf8;
+		private Proforma[] proformas;
+		private Parameter<?>[] parameters;
+		private Part[] parts;
+		private List<Line>[] lines;
+		private List<Proforma> roots;
+
+		private Decoder(ByteBuffer in) {
+			this.in = in;
+		}
+
+		@SuppressWarnings({ "unchecked", "rawtypes" })
+		private void read() {
+			if (in.getInt() != MAGIC) throw new ProformaError("The data is not a proforma archive");
+			int version = in.getInt();
+			if (version != VERSION) throw new ProformaError("Unable to read a proforma archive of version {}, expecting version {}", version, VERSION);
+
+			strings = new String[count()];
+			utf8 = new byte[strings.length][];
+			for (int i=0; i<strings.length; i++) {
+				byte[] bytes = new byte[count()];
+				in.get(bytes);
+				utf8[i] = bytes;
+				strings[i] = new String(bytes, StandardCharsets.UTF_8);
+			}
+
+			proformas = new Proforma[count()];
+			for (int i=0; i<proformas.length; i++) proformas[i] = new Proforma(string(in.getInt()), string(in.getInt()));
+
+			parameters = new Parameter<?>[count()];
+			for (int i=0; i<parameters.length; i++) parameters[i] = parameter();
+
+			parts = new Part[count()];
+			for (int i=0; i<parts.length; i++) parts[i] = part();
+
+			lines = new List[count()];
+			for (int i=0; i<lines.length; i++) {
+				int size = count();
+				List<Line> list = new ArrayList<Line>(size);
+				for (int l=0; l<size; l++) {
+					K2Expression<Boolean> condition = condition(in.getInt());
+					int partCount = count();
+					List<Part> lineParts = new ArrayList<Part>(partCount);
+					for (int p=0; p<partCount; p++) lineParts.add(parts[in.getInt()]);
+					list.add(Line.frozen(lineParts, condition));
+				}
+				lines[i] = Collections.unmodifiableList(list);
+			}
+
+			for (int i=0; i<proformas.length; i++) {
+				List<Line> list = lines[in.getInt()];
+				boolean embedded = in.get() != 0;
+				boolean autoIncrementIndent = in.get() != 0;
+				Parameter<?> valueSourceParameter = parameter(in.getInt());
+				proformas[i].restore(list, embedded, autoIncrementIndent, valueSourceParameter, condition(in.getInt()));
+			}
+
+			for (int i=0; i<proformas.length; i++) {
+				int[] code = new int[count()];
+				for (int c=0; c<code.length; c++) code[c] = in.getInt();
+				Object[] operands = new Object[count()];
+				byte[][] literals = new byte[operands.length][];
+				for (int o=0; o<operands.length; o++) {
+					byte kind = in.get();
+					int index = in.getInt();
+					switch (kind) {
+					case STRING_OPERAND: operands[o] = strings[index]; literals[o] = utf8[index]; break;
+					case PARAMETER_OPERAND: operands[o] = parameters[index]; break;
+					case PART_OPERAND: operands[o] = parts[index]; break;
+					case PROFORMA_OPERAND: operands[o] = proformas[index]; break;
+					default: throw new ProformaError("Unknown operand kind {} in the proforma archive", kind);
+					}
+				}
+				int conditions = in.getInt();
+				validate(code, operands, conditions);
+				proformas[i].restore(new CompiledProforma(proformas[i], code, operands, literals, conditions));
+			}
+
+			int rootCount = count();
+			roots = new ArrayList<Proforma>(rootCount);
+			for (int i=0; i<rootCount; i++) roots.add(proformas[in.getInt()]);
+		}
+
+		/**
+		 * Read the number of entries that follow, each of which takes at least one byte of the archive
+		 */
+		private int count() {
+			int count = in.getInt();
+			if (count < 0 || count > in.remaining()) throw new ProformaError("The proforma archive is corrupt");
+			return count;
+		}
+
+		/**
+		 * Check that every opcode of a restored render plan is known and refers to operands, condition slots and jump targets of the
+		 * type and within the bounds the render loop expects
+		 */
+		private static void validate(int[] code, Object[] operands, int conditions) {
+			if (conditions < 0) throw new ProformaError("The proforma archive is corrupt");
+			for (int pc=0; pc<code.length; pc += CompiledProforma.width(code[pc])) {
+				int op = code[pc];
+				if (pc + CompiledProforma.width(op) > code.length) throw new ProformaError("The proforma archive is corrupt");
+				switch (op) {
+				case CompiledProforma.IF:
+					operand(code[pc+1], operands, K2Expression.class);
+					if ((conditions > 0 && (code[pc+2] < 0 || code[pc+2] >= conditions)) || code[pc+3] <= pc || code[pc+3] > code.length) {
+						throw new ProformaError("The proforma archive is corrupt");
+					}
+					break;
+				case CompiledProforma.LITERAL: operand(code[pc+1], operands, String.class); break;
+				case CompiledProforma.PARAMETER: operand(code[pc+1], operands, ParameterPart.class); break;
+				case CompiledProforma.PROFORMA: operand(code[pc+1], operands, Proforma.class); break;
+				case CompiledProforma.PART: operand(code[pc+1], operands, Part.class); break;
+				case CompiledProforma.INDENT:
+				case CompiledProforma.INDENT_PART:
+				case CompiledProforma.CR:
+					break;
+				default:
+					throw new ProformaError("Unknown opcode {} at {} in the proforma archive", op, pc);
+				}
+			}
+		}
+
+		private static void operand(int index, Object[] operands, Class<?> type) {
+			if (index < 0 || index >= operands.length || !type.isInstance(operands[index])) throw new ProformaError("The proforma archive is corrupt");
+		}
+
+		private String string(int index) {
+			return (index < 0) ? null : strings[index];
+		}
+
+		private Parameter<?> parameter(int index) {
+			return (index < 0) ? null : parameters[index];
+		}
+
+		@SuppressWarnings("unchecked")
+		private K2Expression<Boolean> condition(int index) {
+			return (index < 0) ? null : (K2Expression<Boolean>)parameters[index];
+		}
+
+		@SuppressWarnings({ "unchecked", "rawtypes" })
+		private Parameter<?> parameter() {
+			Class<?> type = type(strings[in.getInt()]);
+			String alias = strings[in.getInt()];
+			byte kind = in.get();
+			Parameter param;
+			switch (kind) {
+			case GENERIC: param = new Parameter(type, alias); break;
+			case INT: param = new IntParameter(alias); break;
+			case LONG: param = new LongParameter(alias); break;
+			case DOUBLE: param = new DoubleParameter(alias); break;
+			default: throw new ProformaError("Unknown parameter kind {} in the proforma archive", kind);
+			}
+			K2Expression<Boolean> condition = condition(in.getInt());
+			if (condition != null) param = param.includeIf(condition);
+			byte escaping = in.get();
+			if (escaping >= 0) param = param.escape(Escaping.values()[escaping]);
+			if (in.get() != 0) {
+				param = param.join(string(in.getInt()), string(in.getInt()), string(in.getInt()));
+				int t = in.getInt();
+				if (t >= 0) param = param.eachWith(proformas[t]);
+			}
+			return param;
+		}
+
+		private Part part() {
+			byte kind = in.get();
+			switch (kind) {
+			case PROFORMA_PART:
+				return proformas[in.getInt()];
+			case STRING_PART: {
+				StringPart part = new StringPart(strings[in.getInt()]);
+				K2Expression<Boolean> condition = condition(in.getInt());
+				return (condition == null) ? part : part.includeIf(condition);
+			}
+			case INDENT_PART: {
+				IndentPart part = new IndentPart();
+				K2Expression<Boolean> condition = condition(in.getInt());
+				return (condition == null) ? part : part.includeIf(condition);
+			}
+			case PARAMETER_PART: {
+				ParameterPart part = new ParameterPart(parameters[in.getInt()]);
+				K2Expression<Boolean> condition = condition(in.getInt());
+				return (condition == part.conditionalExpression) ? part : part.includeIf(condition);
+			}
+			default:
+				throw new ProformaError("Unknown part kind {} in the proforma archive", kind);
+			}
+		}
+
+		private static Class<?> type(String name) {
+			try {
+				return Class.forName(name, false, ProformaArchive.class.getClassLoader());
+			} catch (ClassNotFoundException e) {
+				try {
+					return Class.forName(name, false, Thread.currentThread().getContextClassLoader());
+				} catch (ClassNotFoundException again) {
+					throw new ProformaError("Unable to find the class {} of a parameter in the proforma archive", e, name);
+				}
+			}
+		}
+	}
+
+}
@@ -1,11 +1,20 @@
 package com.k2.Proforma;
 
 import java.io.IOException;
+import java.io.OutputStream;
 import java.io.Writer;
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.Charset;
 import java.util.Collection;
+import java.util.Iterator;
+import java.util.Spliterator;
+import java.util.concurrent.ForkJoinPool;
+import java.util.stream.Stream;
 
 import com.k2.Expressions.ParameterEvaluator;
 import com.k2.Expressions.evaluators.ParamterOrObjectEvaluator;
+import com.k2.Expressions.expression.K2ParameterExpression;
 import com.k2.Proforma.Proforma.CarriageReturn;
 
 /**
@@ -27,8 +36,51 @@ public class ProformaOutput<E> extends ParamterOrObjectEvaluator<E> implements P
 	private Proforma proforma;
 	private String cr = String.format("%n");
 	private String indent = "  ";
-	Collection<E> valueSources;
-	private boolean autoFlush = false;
+	/**
+	 * The indent string repeated for each indent level. Obtained when first required and again when the indent string changes
+	 */
+	private Indents indents;
+	/**
+	 * The collection, iterable, iterator, stream or spliterator of value sources for each of which the proforma is written
+	 */
+	Object valueSources;
+	private FlushPolicy flushPolicy = FlushPolicy.NEVER;
+	/**
+	 * The number of elements of a collection of value sources written by each parallel task or 0 to write elements sequentially
+	 */
+	private int chunkSize = 0;
+	/**
+	 * The pool on which collections are written in parallel or null for the common pool
+	 */
+	private ForkJoinPool pool;
+	/**
+	 * The cache holding the output of this proforma output or null if the output is not cached
+	 */
+	private RenderCache renderCache;
+	/**
+	 * The values of numeric parameters set as primitives or null if none have been set
+	 */
+	private NumericValues numericValues;
+	/**
+	 * The value formatters registered for types of value or null if none have been registered
+	 */
+	private Formatters formatters;
+	/**
+	 * The escaping applied to the values of parameters that do not set their own escaping
+	 */
+	private Escaping escaping = Escaping.NONE;
+	/**
+	 * The render metrics recording the proformas written by this proforma output or null to record no metrics
+	 */
+	private RenderMetrics metrics = RenderMetrics.getDefault();
+	/**
+	 * The render profiler timing the lines and parts written by this proforma output or null if it is not being profiled
+	 */
+	private RenderProfiler profiler;
+	/**
+	 * The render context holding the frames used to write the proforma. Created when first required
+	 */
+	RenderContext context;
 	
 	/**
 	 * Create a proforma output for the given proforma
@@ -50,6 +102,11 @@ public class ProformaOutput<E> extends ParamterOrObjectEvaluator<E> implements P
 		this.indent = po.indent;
 		this.valueSources = po.valueSources;
 		this.parameterValues = po.parameterValues;
+		this.numericValues = po.numericValues;
+		this.formatters = po.formatters;
+		this.escaping = po.escaping;
+		this.metrics = po.metrics;
+		this.profiler = po.profiler;
 		this.proforma = proforma;
 	}
 	
@@ -59,11 +116,65 @@ public class ProformaOutput<E> extends ParamterOrObjectEvaluator<E> implements P
 		po.indent = this.indent;
 		po.valueSources = this.valueSources;
 		po.parameterValues = this.parameterValues;
-		po.autoFlush = this.autoFlush;
+		po.numericValues = this.numericValues;
+		po.formatters = this.formatters;
+		po.escaping = this.escaping;
+		po.metrics = this.metrics;
+		po.profiler = this.profiler;
+		po.flushPolicy = this.flushPolicy;
+		po.chunkSize = this.chunkSize;
+		po.pool = this.pool;
+		po.renderCache = this.renderCache;
 		return po;
 
 	}
 
+	/**
+	 * Reset this proforma output as a frame for the given proforma sharing the settings and parameter values of the given parent
+	 * @param p			The proforma for which this proforma output is reset
+	 * @param parent		The proforma output whose settings and parameter values are shared
+	 * @return	This proforma output with no value source
+	 */
+	ProformaOutput<E> reset(Proforma p, ProformaOutput<?> parent) {
+		return reset(p, parent, true);
+	}
+
+	/**
+	 * Reset this proforma output for the given proforma taking the settings of the given proforma output
+	 * @param p			The proforma for which this proforma output is reset
+	 * @param settings	The proforma output providing the indent string, carriage return, formatters, escaping, flush policy and parallel settings
+	 * @param shareValues	True to share the parameter values of the given proforma output, false to retain its own parameter values
+	 * @return	This proforma output with no value source
+	 */
+	ProformaOutput<E> reset(Proforma p, ProformaOutput<?> settings, boolean shareValues) {
+		this.proforma = p;
+		this.cr = settings.cr;
+		this.indent = settings.indent;
+		this.valueSources = null;
+		if (shareValues) {
+			this.parameterValues = settings.parameterValues;
+			this.numericValues = settings.numericValues;
+		}
+		this.formatters = settings.formatters;
+		this.escaping = settings.escaping;
+		this.metrics = settings.metrics;
+		this.profiler = settings.profiler;
+		this.flushPolicy = settings.flushPolicy;
+		this.chunkSize = settings.chunkSize;
+		this.pool = settings.pool;
+		this.valueSource = null;
+		return this;
+	}
+
+	/**
+	 * Get the render context of this proforma output creating it if necessary
+	 * @return	The render context of this proforma output
+	 */
+	RenderContext context() {
+		if (context == null) context = new RenderContext();
+		return context;
+	}
+
 	/**
 	 * Create a proforma output for the given proforma with the given collection of value sources.
 	 * 
@@ -77,16 +188,72 @@ public class ProformaOutput<E> extends ParamterOrObjectEvaluator<E> implements P
 		this.proforma = proforma;
 	}
 
+	/**
+	 * Create a proforma output for the given proforma with the given iterable of value sources.
+	 * 
+	 * When such a proforma is output the output will be repeated for each object returned by the iterable
+	 * @param proforma		The proforma defining the format of the output
+	 * @param valueSources	An iterable of objects to use a sources of values for the proforma
+	 */
+	public ProformaOutput(Proforma proforma, Iterable<E> valueSources) {
+		super(null);
+		this.valueSources = valueSources;
+		this.proforma = proforma;
+	}
+
+	/**
+	 * Create a proforma output for the given proforma with the given iterator of value sources.
+	 * 
+	 * When such a proforma is output the output will be repeated for each object returned by the iterator. Each object is taken from
+	 * the iterator as it is written so the iterator is never held in memory. The proforma output can only be written once
+	 * @param proforma		The proforma defining the format of the output
+	 * @param valueSources	An iterator of objects to use a sources of values for the proforma
+	 */
+	public ProformaOutput(Proforma proforma, Iterator<E> valueSources) {
+		super(null);
+		this.valueSources = valueSources;
+		this.proforma = proforma;
+	}
+
+	/**
+	 * Create a proforma output for the given proforma with the given stream of value sources.
+	 * 
+	 * When such a proforma is output the output will be repeated for each object in the stream. Each object is taken from the stream
+	 * as it is written and the stream is closed once the proforma has been written. The proforma output can only be written once
+	 * @param proforma		The proforma defining the format of the output
+	 * @param valueSources	A stream of objects to use a sources of values for the proforma
+	 */
+	public ProformaOutput(Proforma proforma, Stream<E> valueSources) {
+		super(null);
+		this.valueSources = valueSources;
+		this.proforma = proforma;
+	}
+
+	/**
+	 * Create a proforma output for the given proforma with the given spliterator of value sources.
+	 * 
+	 * When such a proforma is output the output will be repeated for each object in the spliterator. Each object is taken from the
+	 * spliterator as it is written. The proforma output can only be written once
+	 * @param proforma		The proforma defining the format of the output
+	 * @param valueSources	A spliterator of objects to use a sources of values for the proforma
+	 */
+	public ProformaOutput(Proforma proforma, Spliterator<E> valueSources) {
+		super(null);
+		this.valueSources = valueSources;
+		this.proforma = proforma;
+	}
+
 	/**
 	 * Create a proforma output for the given proforma drawing its values from the given object
+	 * 
+	 * If the object is a collection, iterable, iterator, stream or spliterator the proforma is written for each of its elements
 	 * @param proforma		The proforma defining the format of the output
 	 * @param valueSource	The source of values for this proforma output
 	 */
-	@SuppressWarnings("unchecked")
 	public ProformaOutput(Proforma proforma, E valueSource) {
 		super(valueSource);
-		if (valueSource instanceof Collection) {
-			valueSources = (Collection<E>)valueSource;
+		if (ValueSources.isSequence(valueSource)) {
+			valueSources = valueSource;
 		}
 		this.proforma = proforma;
 	}
@@ -105,20 +272,124 @@ public class ProformaOutput<E> extends ParamterOrObjectEvaluator<E> implements P
 	
 	/**
 	 * Set the output of this proforma output to flush it output after each line
+	 * 
+	 * This is equivalent to setting the flush policy to FlushPolicy.LINE or FlushPolicy.NEVER
 	 * @param autoFlush	Whether or not to flush the output at the end of each line 
 	 * @return	This proforma output for method chaining
 	 */
 	public ProformaOutput<E> setAutoFlush(boolean autoFlush) {
-		this.autoFlush = autoFlush;
+		this.flushPolicy = (autoFlush) ? FlushPolicy.LINE : FlushPolicy.NEVER;
 		return this;
 	}
 
 	/**
-	 * Set the output of this proforma output to flush it output after each line
-	 * @return	This proforma output for method chaining
+	 * Identify whether this proforma output flushes its output while writing
+	 * @return	True if the flush policy of this proforma output is not FlushPolicy.NEVER
 	 */
 	public boolean autoFlush() {
-		return autoFlush;
+		return flushPolicy.flushes();
+	}
+
+	/**
+	 * Set the policy that defines when the output is flushed while the proforma is written
+	 * @param flushPolicy	The flush policy
+	 * @return	This proforma output for method chaining
+	 */
+	public ProformaOutput<E> setFlushPolicy(FlushPolicy flushPolicy) {
+		this.flushPolicy = (flushPolicy == null) ? FlushPolicy.NEVER : flushPolicy;
+		return this;
+	}
+
+	/**
+	 * Get the policy that defines when the output is flushed while the proforma is written
+	 * @return	The flush policy of this proforma output
+	 */
+	public FlushPolicy getFlushPolicy() {
+		return flushPolicy;
+	}
+
+	/**
+	 * Write collections of value sources in parallel on the common fork join pool
+	 * 
+	 * Collections with more elements than the chunk size are divided into chunks of the given size which are written concurrently
+	 * and then written to the output in order. A chunk size of 0 writes the elements of collections sequentially, which is the default.
+	 * 
+	 * @param chunkSize	The number of elements written by each parallel task or 0 to write collections sequentially
+	 * @return	This proforma output for method chaining
+	 */
+	public ProformaOutput<E> setParallel(int chunkSize) {
+		return setParallel(chunkSize, null);
+	}
+
+	/**
+	 * Write collections of value sources in parallel on the given fork join pool
+	 * @param chunkSize	The number of elements written by each parallel task or 0 to write collections sequentially
+	 * @param pool		The pool on which to write the chunks or null for the common pool
+	 * @return	This proforma output for method chaining
+	 */
+	public ProformaOutput<E> setParallel(int chunkSize, ForkJoinPool pool) {
+		if (chunkSize < 0) throw new ProformaError("The chunk size for parallel output cannot be negative, not {}", chunkSize);
+		this.chunkSize = chunkSize;
+		this.pool = pool;
+		return this;
+	}
+
+	/**
+	 * Get the number of elements of a collection of value sources written by each parallel task
+	 * @return	The chunk size or 0 if collections are written sequentially
+	 */
+	public int getChunkSize() {
+		return chunkSize;
+	}
+
+	/**
+	 * Get the pool on which collections are written in parallel
+	 * @return	The pool set on this proforma output or the common pool
+	 */
+	ForkJoinPool getPool() {
+		return (pool == null) ? ForkJoinPool.commonPool() : pool;
+	}
+
+	/**
+	 * Identify whether a collection of value sources of the given size should be written in parallel
+	 * @param size	The number of value sources
+	 * @return	True if the collection has more elements than the chunk size
+	 */
+	boolean parallel(int size) {
+		return chunkSize > 0 && size > chunkSize && profiler == null;
+	}
+
+	/**
+	 * Identify whether the given sequence of value sources should be written in parallel
+	 * @param value	The sequence of value sources
+	 * @return	True if the sequence has more elements than the chunk size or is a sequence of unknown size and a chunk size is set
+	 */
+	boolean parallel(Object value) {
+		if (chunkSize <= 0 || profiler != null) return false;
+		int size = ValueSources.size(value);
+		return (size < 0) ? ValueSources.isSequence(value) : parallel(size);
+	}
+
+	/**
+	 * Set the cache holding the output of this proforma output
+	 * 
+	 * When the output for the same compiled proforma, indent, carriage return, parameter values and value sources is already held by
+	 * the cache the cached output is written instead of writing the proforma. Otherwise the proforma is written and its output cached.
+	 * 
+	 * @param renderCache	The render cache or null to write the proforma without caching
+	 * @return	This proforma output for method chaining
+	 */
+	public ProformaOutput<E> setRenderCache(RenderCache renderCache) {
+		this.renderCache = renderCache;
+		return this;
+	}
+
+	/**
+	 * Get the proforma written by this proforma output
+	 * @return	The proforma written by this proforma output
+	 */
+	Proforma getProforma() {
+		return proforma;
 	}
 
 	/**
@@ -129,6 +400,19 @@ public class ProformaOutput<E> extends ParamterOrObjectEvaluator<E> implements P
 		return indent;
 	}
 
+	/**
+	 * Get the indent string of this proforma output repeated for each indent level
+	 * @return	The indents of the indent string
+	 */
+	Indents indents() {
+		Indents in = indents;
+		if (in == null || !in.indent().equals(indent)) {
+			in = Indents.of(indent);
+			indents = in;
+		}
+		return in;
+	}
+
 
 	/**
 	 * Set the carriage return to the given string
@@ -158,12 +442,271 @@ public class ProformaOutput<E> extends ParamterOrObjectEvaluator<E> implements P
 		return this;
 	}
 	
+	/**
+	 * Resolve the value of the given parameter
+	 * 
+	 * Values set on this proforma output take precedence, including values explicitly set to null. Otherwise the value is read from
+	 * the value source through the accessor bound to the parameter for the class of the value source, falling back to evaluating the
+	 * parameter against the value source if no field matches the parameters alias
+	 * 
+	 * @param param	The parameter to resolve
+	 * @return	The value of the parameter
+	 */
+	@SuppressWarnings({ "rawtypes", "unchecked" })
+	Object resolve(Parameter param) {
+		E source = valueSource;
+		if (source == null || isSet(param.getAlias())) return valueOf(param);
+		
+		ValueAccessor accessor = param.accessor(source.getClass());
+		return (accessor != null) ? accessor.get(source) : valueOf(param);
+	}
+	
+	/**
+	 * Identify whether a value has been set on this proforma output for the given alias
+	 * @param alias	The alias of the parameter
+	 * @return	True if a numeric value or a value, even a null value, has been set for the alias
+	 */
+	boolean isSet(String alias) {
+		NumericValues n = numericValues;
+		return (n != null && n.indexOf(alias) >= 0) || parameterValues.containsKey(alias);
+	}
+
 	@Override
 	public <T> ProformaOutput<E> set(Class<T> cls, String alias, T value) {
 		super.set(cls, alias, value);
 		return this;
 	}
 
+	/**
+	 * Set the value of the numeric parameter with the given alias without boxing it
+	 * 
+	 * Numeric values take precedence over values set for the same alias through set(...)
+	 * 
+	 * @param alias	The alias of the parameter
+	 * @param value	The value
+	 * @return	This proforma output for method chaining
+	 */
+	public ProformaOutput<E> setInt(String alias, int value) {
+		numericValues().set(alias, NumericValues.INT, value);
+		return this;
+	}
+
+	/**
+	 * Set the value of the given numeric parameter without boxing it
+	 * @param param	The parameter
+	 * @param value	The value
+	 * @return	This proforma output for method chaining
+	 */
+	public ProformaOutput<E> setInt(IntParameter param, int value) {
+		return setInt(param.getAlias(), value);
+	}
+
+	/**
+	 * Set the value of the numeric parameter with the given alias without boxing it
+	 * 
+	 * Numeric values take precedence over values set for the same alias through set(...)
+	 * 
+	 * @param alias	The alias of the parameter
+	 * @param value	The value
+	 * @return	This proforma output for method chaining
+	 */
+	public ProformaOutput<E> setLong(String alias, long value) {
+		numericValues().set(alias, NumericValues.LONG, value);
+		return this;
+	}
+
+	/**
+	 * Set the value of the given numeric parameter without boxing it
+	 * @param param	The parameter
+	 * @param value	The value
+	 * @return	This proforma output for method chaining
+	 */
+	public ProformaOutput<E> setLong(LongParameter param, long value) {
+		return setLong(param.getAlias(), value);
+	}
+
+	/**
+	 * Set the value of the numeric parameter with the given alias without boxing it
+	 * 
+	 * Numeric values take precedence over values set for the same alias through set(...)
+	 * 
+	 * @param alias	The alias of the parameter
+	 * @param value	The value
+	 * @return	This proforma output for method chaining
+	 */
+	public ProformaOutput<E> setDouble(String alias, double value) {
+		numericValues().set(alias, NumericValues.DOUBLE, Double.doubleToRawLongBits(value));
+		return this;
+	}
+
+	/**
+	 * Set the value of the given numeric parameter without boxing it
+	 * @param param	The parameter
+	 * @param value	The value
+	 * @return	This proforma output for method chaining
+	 */
+	public ProformaOutput<E> setDouble(DoubleParameter param, double value) {
+		return setDouble(param.getAlias(), value);
+	}
+
+	/**
+	 * Register the value formatter writing values of the given type, its subclasses and implementations
+	 * 
+	 * Formatters attached to parameters take precedence over formatters registered for the type of their values
+	 * 
+	 * @param type		The type of value
+	 * @param formatter	The value formatter or null to write values of the type as strings
+	 * @return	This proforma output for method chaining
+	 * @param <T>	The type of value
+	 */
+	public <T> ProformaOutput<E> setFormatter(Class<T> type, ValueFormatter<? super T> formatter) {
+		formatters = Formatters.with(formatters, type, formatter);
+		return this;
+	}
+
+	/**
+	 * Get the value formatter registered for values of the given class
+	 * @param cls	The class of the value
+	 * @return	The value formatter or null if none is registered for the class
+	 */
+	ValueFormatter<Object> formatter(Class<?> cls) {
+		Formatters f = formatters;
+		return (f == null) ? null : f.get(cls);
+	}
+
+	/**
+	 * Get the value formatters registered on this proforma output
+	 * @return	The formatters or null if none are registered
+	 */
+	Formatters getFormatters() { return formatters; }
+
+	/**
+	 * Set the escaping applied to the values of parameters written by this proforma output
+	 * 
+	 * Parameters that set their own escaping through their escape(...) method are written with their own escaping. The literal text of
+	 * the proforma is never escaped
+	 * 
+	 * @param escaping	The escaping or null for no escaping
+	 * @return	This proforma output for method chaining
+	 */
+	public ProformaOutput<E> setEscaping(Escaping escaping) {
+		this.escaping = (escaping == null) ? Escaping.NONE : escaping;
+		return this;
+	}
+
+	/**
+	 * Get the escaping applied to the values of parameters written by this proforma output
+	 * @return	The escaping
+	 */
+	public Escaping getEscaping() { return escaping; }
+	
+	/**
+	 * Set the render metrics recording the named proformas written by this proforma output, including the named proformas embedded in
+	 * its proforma
+	 * @param metrics	The render metrics or null to record no metrics
+	 * @return	This proforma output for method chaining
+	 */
+	public ProformaOutput<E> setMetrics(RenderMetrics metrics) {
+		this.metrics = metrics;
+		return this;
+	}
+	
+	/**
+	 * Get the render metrics recording the named proformas written by this proforma output
+	 * @return	The render metrics or null if no metrics are recorded
+	 */
+	public RenderMetrics getMetrics() { return metrics; }
+	
+	/**
+	 * Set the render profiler timing each line and part of the proformas written by this proforma output
+	 * 
+	 * Proformas are written much more slowly while they are profiled and collections of value sources are not written in parallel
+	 * 
+	 * @param profiler	The render profiler or null to stop profiling
+	 * @return	This proforma output for method chaining
+	 */
+	public ProformaOutput<E> setProfiler(RenderProfiler profiler) {
+		this.profiler = profiler;
+		return this;
+	}
+	
+	/**
+	 * Get the render profiler timing the proformas written by this proforma output
+	 * @return	The render profiler or null if the proforma output is not being profiled
+	 */
+	public RenderProfiler getProfiler() { return profiler; }
+
+	private NumericValues numericValues() {
+		if (numericValues == null) numericValues = new NumericValues();
+		return numericValues;
+	}
+
+	/**
+	 * Get the numeric values set on this proforma output
+	 * @return	The numeric values or null if none have been set
+	 */
+	NumericValues getNumericValues() { return numericValues; }
+
+	/**
+	 * Get the value of the given parameter
+	 * 
+	 * Numeric values set through setInt(...), setLong(...) and setDouble(...) are boxed when they are evaluated through this method
+	 */
+	@SuppressWarnings("unchecked")
+	@Override
+	public <T> T valueOf(K2ParameterExpression<T> p) {
+		NumericValues n = numericValues;
+		if (n != null) {
+			int slot = n.indexOf(p.getAlias());
+			if (slot >= 0) return (T)n.boxed(slot);
+		}
+		return super.valueOf(p);
+	}
+
+	/**
+	 * Write the value of the given numeric parameter if it is a number
+	 * 
+	 * Values are taken from the numeric values, the parameter values and the value source in that order. Primitive values are
+	 * formatted directly into the output buffer. Nothing is written if the value is null or is not a number, so that it can be written
+	 * as the value of any other parameter
+	 * 
+	 * @param param	The numeric parameter
+	 * @param out	The writer
+	 * @return	True if the value was written
+	 * @throws IOException	If the writer throws an IOException
+	 */
+	boolean writeNumber(NumericParameter<?> param, Writer out) throws IOException {
+		NumericValues n = numericValues;
+		if (n != null) {
+			int slot = n.indexOf(param.getAlias());
+			if (slot >= 0) {
+				n.write(slot, out);
+				return true;
+			}
+		}
+		E source = valueSource;
+		Object value;
+		if (source == null || parameterValues.containsKey(param.getAlias())) {
+			value = super.valueOf(param);
+		} else {
+			ValueAccessor accessor = param.accessor(source.getClass());
+			if (accessor == null) {
+				value = super.valueOf(param);
+			} else if (accessor.kind() == ValueAccessor.LONG) {
+				DecimalFormatter.write(accessor.getLong(source), out);
+				return true;
+			} else if (accessor.kind() == ValueAccessor.DOUBLE) {
+				DecimalFormatter.write(accessor.getDouble(source), out);
+				return true;
+			} else {
+				value = accessor.get(source);
+			}
+		}
+		if (!(value instanceof Number)) return false;
+		DecimalFormatter.write((Number)value, out);
+		return true;
+	}
+
 	@SuppressWarnings("unchecked")
 	@Override
 	public ProformaOutput<E> with(Object source) {
@@ -194,6 +737,9 @@ public class ProformaOutput<E> extends ParamterOrObjectEvaluator<E> implements P
 	
 	/**
 	 * Write out the proforma for this proforma output with the specified indent, on the specified writer using the specified evaluator
+	 * 
+	 * The proforma is written into the internal buffer of this proforma output which is drained to the writer in blocks
+	 * 
 	 * @param i		The indent level for which this proforma should be output
 	 * @param out	The writer onto which this proforma will be written
 	 * @param po		The proforma output poviding values for this proformas paramters
@@ -201,49 +747,219 @@ public class ProformaOutput<E> extends ParamterOrObjectEvaluator<E> implements P
 	 */
 	public Writer write(int i, Writer out, ProformaOutput<?> po) {
 		
-		if (valueSources != null) {
-			ProformaOutput<E> rPo = new ProformaOutput<E>(proforma).setIndent(indent).setCarriageReturn(cr);
-			for (E source : valueSources) {
-				((ProformaOutput<E>) rPo.with(source)).write(i, out);
-			}
-			return out;
+		RenderContext ctx = context();
+		Writer w = ctx.begin(out, flushPolicy);
+		if (w == null) {
+			return write(i, out, po, ctx);
+		}
+		try {
+			write(i, w, po, ctx);
+			finish(ctx, w);
+		} finally {
+			ctx.end();
+		}
+		return out;
+	}
+	
+	/**
+	 * Flush the output buffered by the render context, timing the flush if this proforma output is being profiled
+	 * @param ctx	The render context
+	 * @param w		The writer returned when the render context began writing
+	 */
+	private void finish(RenderContext ctx, Writer w) {
+		if (profiler == null || profiler.active()) {
+			ctx.finish(w);
+			return;
+		}
+		profiler.enter(RenderProfiler.FLUSH);
+		try {
+			ctx.finish(w);
+		} finally {
+			profiler.exit();
+		}
+	}
+	
+	/**
+	 * Write the proforma out to the given sink with the given indent
+	 * 
+	 * The proforma is written into the internal buffer of this proforma output which is drained to the sink in blocks
+	 * 
+	 * @param i		The indent level at which to write the output
+	 * @param sink	The sink to which to write the output
+	 * @return	The given sink after the proforma has been written
+	 * @param <S>	The type of the sink
+	 */
+	public <S extends OutputSink> S write(int i, S sink) {
+		
+		RenderContext ctx = context();
+		Writer w = ctx.begin(sink, flushPolicy);
+		if (w == null) {
+			throw new ProformaError("The proforma output is already writing a proforma and cannot write to another sink");
+		}
+		try {
+			write(i, w, this, ctx);
+			finish(ctx, w);
+		} finally {
+			ctx.end();
 		}
+		return sink;
+	}
+	
+	/**
+	 * Write the proforma out to the given appendable e.g. a StringBuilder
+	 * @param out	The appendable
+	 * @return	The given appendable for method chaining
+	 * @param <A>	The type of the appendable
+	 */
+	public <A extends Appendable> A write(A out) {
+		write(0, OutputSink.of(out));
+		return out;
+	}
+	
+	/**
+	 * Write the proforma out to the given output stream encoding the characters with the given charset
+	 * @param out		The output stream
+	 * @param charset	The charset with which to encode the output
+	 * @return	The given output stream for method chaining
+	 */
+	public OutputStream write(OutputStream out, Charset charset) {
+		write(0, OutputSink.of(out, charset));
+		return out;
+	}
+	
+	/**
+	 * Write the proforma out to the given channel encoding the characters with the given charset
+	 * @param out		The channel
+	 * @param charset	The charset with which to encode the output
+	 * @return	The given channel for method chaining
+	 */
+	public WritableByteChannel write(WritableByteChannel out, Charset charset) {
+		write(0, OutputSink.of(out, charset));
+		return out;
+	}
+	
+	/**
+	 * Write the proforma out into the given byte buffer encoding the characters with the given charset
+	 * 
+	 * A ProformaError is thrown if the output does not fit in the remaining capacity of the buffer
+	 * 
+	 * @param out		The byte buffer
+	 * @param charset	The charset with which to encode the output
+	 * @return	The given byte buffer for method chaining
+	 */
+	public ByteBuffer write(ByteBuffer out, Charset charset) {
+		write(0, OutputSink.of(out, charset));
+		return out;
+	}
+	
+	/**
+	 * Create a publisher emitting the output of the proforma in chunks of about 8192 characters as they are requested
+	 * @return	A publisher for the output of the proforma
+	 */
+	public ProformaPublisher publish() {
+		return publish(0, 8192);
+	}
+	
+	/**
+	 * Create a publisher emitting the output of the proforma in chunks as they are requested
+	 * 
+	 * Each chunk is written when the subscriber requests it so the proforma is written only as fast as the subscriber takes the output.
+	 * Chunks are emitted once at least the given number of characters have been written and may be slightly larger. Collections of
+	 * value sources are written sequentially and the flush policy is ignored. The proforma output can only be published once.
+	 * 
+	 * @param i			The indent level at which to write the output
+	 * @param chunkSize	The number of characters after which each chunk is emitted
+	 * @return	A publisher for the output of the proforma
+	 */
+	public ProformaPublisher publish(int i, int chunkSize) {
+		return new ProformaPublisher(this, i, chunkSize);
+	}
+	
+	/**
+	 * Write the proforma for this proforma output, writing the cached output instead if the output of this proforma output is cached
+	 * @param i		The indent level
+	 * @param out	The writer onto which the proforma will be written
+	 * @param po		The proforma output providing values for the proformas parameters
+	 * @param ctx	The render context
+	 * @return	The given writer
+	 */
+	private Writer write(int i, Writer out, ProformaOutput<?> po, RenderContext ctx) {
+		RenderMetrics metrics = this.metrics;
+		String name = proforma.metricsName();
+		if (metrics == null || name == null || !metrics.isEnabled()) return writeProforma(i, out, po, ctx);
+		long start = System.nanoTime();
+		long lookups = ctx.lookups, suppressed = ctx.suppressed, iterated = ctx.iterated, output = ctx.output();
+		try {
+			return writeProforma(i, out, po, ctx);
+		} finally {
+			metrics.record(name, ctx, System.nanoTime() - start, lookups, suppressed, iterated, output);
+		}
+	}
 
-		for (int l=0; l<proforma.getLines().size(); l++) {
-			Line line = proforma.getLines().get(l);
-			if (line.isIncluded(po)) {
-				try {
-					if (i > 0) {
-						if (l>0 || !proforma.embedded()) {
-							for (int j=0; j<i; j++) {
-								out.write(po.getIndent());
-							}
-						}
-					}
-					
-					line.write((proforma.autoIncrementIndent()) ? i+1: i, out, po);
-					
-					if (i >= 0) {
-						if (l<proforma.getLines().size()-1 || !proforma.embedded()) {
-							out.write(cr);
-							try {
-								if (autoFlush) out.flush();
-							} catch (IOException e) {
-								throw new ProformaError("Unable to flush, message {}", e, e.getMessage());
-							}
-						}
+	/**
+	 * Write the proforma for this proforma output, writing the cached output instead if the output of this proforma output is cached
+	 */
+	private Writer writeProforma(int i, Writer out, ProformaOutput<?> po, RenderContext ctx) {
+		CompiledProforma compiled = proforma.compile();
+		if (renderCache != null && po == this) {
+			RenderCache.Key key = RenderCache.key(compiled, i, this, parameterValues, valueSource);
+			if (key != null) {
+				char[] output = renderCache.get(key);
+				if (output == null) {
+					// Capture the output in a separate render context so that it can be cached
+					CharArraySink capture = new CharArraySink();
+					RenderContext captureCtx = new RenderContext();
+					Writer w = captureCtx.begin(capture, FlushPolicy.NEVER);
+					try {
+						render(compiled, i, w, po, captureCtx);
+						captureCtx.finish(w);
+					} finally {
+						captureCtx.end();
 					}
+					output = capture.toCharArray();
+					renderCache.put(key, output);
+				}
+				try {
+					out.write(output);
 				} catch (IOException e) {
 					throw new ProformaError(e);
 				}
+				return out;
 			}
 		}
-		try {
-			if (autoFlush) out.flush();
-		} catch (IOException e) {
-			throw new ProformaError("Unable to flush, message {}", e, e.getMessage());
+		return render(compiled, i, out, po, ctx);
+	}
+
+	/**
+	 * Write the proforma for this proforma output, repeating it for each value source if a sequence of value sources is set
+	 * @param compiled	The compiled proforma
+	 * @param i		The indent level
+	 * @param out	The writer onto which the proforma will be written
+	 * @param po		The proforma output providing values for the proformas parameters
+	 * @param ctx	The render context
+	 * @return	The given writer
+	 */
+	private Writer render(CompiledProforma compiled, int i, Writer out, ProformaOutput<?> po, RenderContext ctx) {
+		if (valueSources != null) {
+			try {
+				if (parallel(valueSources)) {
+					ParallelRenderer.write(compiled, i, out, valueSources, this, false, ctx);
+					return out;
+				}
+				ProformaOutput<Object> rPo = ctx.sources(this);
+				Iterator<?> sources = ValueSources.iterator(valueSources);
+				while (sources.hasNext()) {
+					ctx.beginElement();
+					compiled.write(i, out, rPo.with(sources.next()), ctx);
+					ctx.endElement(out);
+				}
+				rPo.with(null);
+			} finally {
+				ValueSources.release(valueSources);
+			}
+			return out;
 		}
-		return out;
+		return compiled.write(i, out, po, ctx);
 	}
 
 
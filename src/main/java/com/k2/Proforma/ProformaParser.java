@@ -0,0 +1,366 @@
+package com.k2.Proforma;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.io.StringReader;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import com.k2.Expressions.expression.K2Expression;
+
+/**
+ * The proforma parser reads a proforma from its textual form
+ *
+ * Each line of the text is a line of the proforma. Literal text is written as it is and directives enclosed in ${ and } insert
+ * the other parts of a proforma:
+ *
+ * ${alias}				A string parameter with the given alias
+ * ${alias:type}			A parameter of the given type, one of string, int, long, double, boolean, object or list. The int, long
+ * 						and double types create numeric parameters whose values are written without boxing
+ * ${alias?flag}			A parameter included only if the boolean parameter with the alias flag is true. The condition can follow a type
+ * ${@name}				The proforma with the given name, found in the proforma library given to the parser
+ * ${@name:alias}			The named proforma written for each value source given by the parameter with the given alias
+ * ${@name?flag}			The named proforma included only if the boolean parameter flag is true. The condition can follow an alias
+ * ${>}					The indent of the proforma output
+ * ${?flag}				At the start of a line, includes the line only if the boolean parameter flag is true
+ * ${#embedded}			On a line of its own before the first line, marks the proforma as embedded
+ * ${#flat}				On a line of its own before the first line, stops the proforma incrementing the indent of embedded proformas
+ *
+ * $${ is written as ${. A $ not followed by { is written as it is.
+ *
+ * The text is parsed in a single pass as it is read, so templates of any length are parsed without holding their text. Parameters
+ * with the same alias and type share a single parameter within each parsed proforma. Errors in the text are reported as
+ * ProformaErrors giving the line and column at which they were found.
+ *
+ * @author simon
+ *
+ */
+public final class ProformaParser {
+
+	private static final int TEXT = 0;
+	private static final int DOLLAR = 1;
+	private static final int DOLLARS = 2;
+	private static final int DIRECTIVE = 3;
+
+	private final Proforma proforma;
+	private final ProformaLibrary library;
+	private final String source;
+	private final Map<String, Parameter<?>> parameters = new HashMap<String, Parameter<?>>();
+	private final StringBuilder text = new StringBuilder();
+	private final List<Object> parts = new ArrayList<Object>();
+	private K2Expression<Boolean> lineCondition;
+	private boolean options = true;
+	private boolean optionLine = false;
+	private int state = TEXT;
+	private int line = 1;
+	private int column = 0;
+	private int directiveColumn;
+
+	private ProformaParser(Proforma proforma, ProformaLibrary library) {
+		this.proforma = proforma;
+		this.library = library;
+		this.source = (proforma.getName() == null) ? "proforma" : proforma.getName();
+	}
+
+	/**
+	 * Parse the given text into a new proforma with the given name
+	 * @param name		The name of the proforma
+	 * @param text		The text of the proforma
+	 * @param library	The library in which embedded proformas are found or null if the proforma embeds no proformas
+	 * @return	The parsed proforma
+	 */
+	public static Proforma parse(String name, String text, ProformaLibrary library) {
+		try {
+			return parse(name, new StringReader(text), library);
+		} catch (IOException e) {
+			throw new ProformaError(e);
+		}
+	}
+
+	/**
+	 * Parse the text read from the given reader into a new proforma with the given name
+	 *
+	 * The reader is read to its end but not closed
+	 *
+	 * @param name		The name of the proforma
+	 * @param in			The reader providing the text of the proforma
+	 * @param library	The library in which embedded proformas are found or null if the proforma embeds no proformas
+	 * @return	The parsed proforma
+	 * @throws IOException	If the reader throws an IOException
+	 */
+	public static Proforma parse(String name, Reader in, ProformaLibrary library) throws IOException {
+		return parse(new Proforma(name), in, library);
+	}
+
+	/**
+	 * Parse the text read from the given reader adding its lines to the given proforma
+	 *
+	 * The proforma can be found in the library while it is being parsed so that it can embed itself
+	 *
+	 * @param proforma	The empty proforma to which the parsed lines are added
+	 * @param in			The reader providing the text of the proforma
+	 * @param library	The library in which embedded proformas are found
+	 * @return	The given proforma
+	 * @throws IOException	If the reader throws an IOException
+	 */
+	static Proforma parse(Proforma proforma, Reader in, ProformaLibrary library) throws IOException {
+		ProformaParser parser = new ProformaParser(proforma, library);
+		char[] buf = new char[4096];
+		boolean cr = false;
+		int n;
+		while ((n = in.read(buf)) >= 0) {
+			for (int i=0; i<n; i++) {
+				char c = buf[i];
+				// A line feed following a carriage return completes the same line break
+				if (c == '\n' && cr) {
+					cr = false;
+					continue;
+				}
+				cr = (c == '\r');
+				parser.accept(c);
+			}
+		}
+		parser.end();
+		return proforma;
+	}
+
+	private void accept(char c) {
+		if (c == '\r' || c == '\n') {
+			endLine();
+			return;
+		}
+		column++;
+		switch (state) {
+		case TEXT:
+			if (c == '$') {
+				state = DOLLAR;
+			} else {
+				text.append(c);
+			}
+			break;
+		case DOLLAR:
+			if (c == '{') {
+				startDirective();
+			} else if (c == '$') {
+				state = DOLLARS;
+			} else {
+				text.append('$').append(c);
+				state = TEXT;
+			}
+			break;
+		case DOLLARS:
+			if (c == '{') {
+				text.append("${");
+				state = TEXT;
+			} else if (c == '$') {
+				text.append('$');
+			} else {
+				text.append("$$").append(c);
+				state = TEXT;
+			}
+			break;
+		case DIRECTIVE:
+			if (c == '}') {
+				String directive = text.toString().trim();
+				text.setLength(0);
+				state = TEXT;
+				directive(directive);
+			} else {
+				text.append(c);
+			}
+			break;
+		}
+	}
+
+	private void startDirective() {
+		state = DIRECTIVE;
+		directiveColumn = column-1;
+		if (text.length() > 0) {
+			parts.add(text.toString());
+			text.setLength(0);
+		}
+	}
+
+	private void directive(String directive) {
+		if (directive.isEmpty()) throw error("An empty directive");
+		char sigil = directive.charAt(0);
+		switch (sigil) {
+		case '>':
+			if (directive.length() > 1) throw error("Unexpected text after the indent in {}", quote(directive));
+			parts.add(Proforma.indent());
+			break;
+		case '?':
+			if (!parts.isEmpty() || lineCondition != null) throw error("The line condition {} must start the line", quote(directive));
+			lineCondition = condition(directive.substring(1), directive);
+			break;
+		case '#':
+			option(directive.substring(1).trim());
+			break;
+		case '@':
+			parts.add(embed(directive.substring(1).trim(), directive));
+			break;
+		default:
+			parts.add(parameter(directive));
+		}
+		if (sigil != '#') options = false;
+	}
+
+	private void option(String option) {
+		if (!options || !parts.isEmpty() || lineCondition != null)
+			throw error("The option {} must be on its own line before the first line", quote("#"+option));
+		if ("embedded".equals(option)) {
+			proforma.setEmbedded(true);
+		} else if ("flat".equals(option)) {
+			proforma.setAutoIncrementIndent(false);
+		} else {
+			throw error("Unknown option {}", quote("#"+option));
+		}
+		optionLine = true;
+	}
+
+	private Object embed(String body, String directive) {
+		String condition = null;
+		int q = body.indexOf('?');
+		if (q >= 0) {
+			condition = body.substring(q+1);
+			body = body.substring(0, q).trim();
+		}
+		String alias = null;
+		int colon = body.indexOf(':');
+		if (colon >= 0) {
+			alias = name(body.substring(colon+1), directive);
+			body = body.substring(0, colon).trim();
+		}
+		String name = name(body, directive);
+		Proforma embedded = (library == null) ? null : library.getProforma(name);
+		if (embedded == null) throw error("No proforma named {} could be found to embed", name);
+		if (alias != null) embedded = embedded.with(parameter(Object.class, alias));
+		if (condition != null) embedded = embedded.includeIf(condition(condition, directive));
+		return embedded;
+	}
+
+	private Parameter<?> parameter(String directive) {
+		String body = directive;
+		String condition = null;
+		int q = body.indexOf('?');
+		if (q >= 0) {
+			condition = body.substring(q+1);
+			body = body.substring(0, q).trim();
+		}
+		String type = "string";
+		int colon = body.indexOf(':');
+		if (colon >= 0) {
+			type = body.substring(colon+1).trim();
+			body = body.substring(0, colon).trim();
+		}
+		String alias = name(body, directive);
+		Parameter<?> param;
+		switch (type) {
+		case "string": param = parameter(String.class, alias); break;
+		case "int": param = numeric(Integer.class, alias); break;
+		case "long": param = numeric(Long.class, alias); break;
+		case "double": param = numeric(Double.class, alias); break;
+		case "boolean": param = parameter(Boolean.class, alias); break;
+		case "object": param = parameter(Object.class, alias); break;
+		case "list": param = parameter(List.class, alias); break;
+		default: throw error("Unknown parameter type {} in {}", type, quote(directive));
+		}
+		if (condition != null) param = param.includeIf(condition(condition, directive));
+		return param;
+	}
+
+	@SuppressWarnings("unchecked")
+	private <T> Parameter<T> parameter(Class<T> type, String alias) {
+		String key = type.getName() + ':' + alias;
+		Parameter<T> param = (Parameter<T>)parameters.get(key);
+		if (param == null) {
+			param = Proforma.param(type, alias);
+			parameters.put(key, param);
+		}
+		return param;
+	}
+
+	private Parameter<?> numeric(Class<? extends Number> type, String alias) {
+		String key = type.getName() + ':' + alias;
+		Parameter<?> param = parameters.get(key);
+		if (param == null) {
+			if (type == Integer.class) {
+				param = Proforma.intParam(alias);
+			} else if (type == Long.class) {
+				param = Proforma.longParam(alias);
+			} else {
+				param = Proforma.doubleParam(alias);
+			}
+			parameters.put(key, param);
+		}
+		return param;
+	}
+
+	private K2Expression<Boolean> condition(String flag, String directive) {
+		return parameter(Boolean.class, name(flag, directive));
+	}
+
+	private String name(String name, String directive) {
+		name = name.trim();
+		if (name.isEmpty()) throw error("A name is missing from {}", quote(directive));
+		for (int i=0; i<name.length(); i++) {
+			char c = name.charAt(i);
+			if (Character.isWhitespace(c) || c == '$' || c == '{' || c == ':' || c == '?') throw error("Invalid name {} in {}", name, quote(directive));
+		}
+		return name;
+	}
+
+	private void endLine() {
+		switch (state) {
+		case DIRECTIVE:
+			column = directiveColumn;
+			throw error("An unclosed directive");
+		case DOLLAR: text.append('$'); break;
+		case DOLLARS: text.append("$$"); break;
+		default:
+		}
+		state = TEXT;
+		if (text.length() > 0) {
+			parts.add(text.toString());
+			text.setLength(0);
+		}
+		if (optionLine) {
+			// Options occupy their own lines which are not lines of the proforma
+			if (!parts.isEmpty() || lineCondition != null) throw error("Options must be on their own line");
+			optionLine = false;
+		} else {
+			if (lineCondition != null) {
+				proforma.addIf(lineCondition, parts.toArray());
+			} else {
+				proforma.add(parts.toArray());
+			}
+			options = false;
+			optionLine = false;
+		}
+		parts.clear();
+		lineCondition = null;
+		line++;
+		column = 0;
+	}
+
+	private void end() {
+		// Text ending with a line break has no further line
+		if (column > 0) endLine();
+	}
+
+	private static String quote(String directive) {
+		return "${" + directive + "}";
+	}
+
+	private ProformaError error(String message, Object ... args) {
+		Object[] all = new Object[args.length + 3];
+		System.arraycopy(args, 0, all, 0, args.length);
+		all[args.length] = line;
+		all[args.length+1] = column;
+		all[args.length+2] = source;
+		return new ProformaError(message + " at line {} column {} of {}", all);
+	}
+
+}
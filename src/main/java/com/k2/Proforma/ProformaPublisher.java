@@ -0,0 +1,186 @@
+package com.k2.Proforma;
+
+import java.nio.CharBuffer;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A proforma publisher emits the output of a proforma output as chunks of characters on demand
+ *
+ * The publisher follows the contract of the reactive streams publisher. A single subscriber subscribes and requests chunks through its
+ * subscription. Each chunk is written when it is requested, on the thread requesting it, and writing stops between chunks while the
+ * subscriber has no outstanding demand. The position within the lines, embedded proformas and collections of value sources of the
+ * proforma is held by the publisher between chunks so no thread is held while the subscriber is not ready for more output.
+ *
+ * The Subscriber and Subscription interfaces have the same methods as those of java.util.concurrent.Flow so that a proforma publisher
+ * can be adapted to a Flow.Publisher, or the publisher of any reactive streams implementation, by delegating each method.
+ *
+ * Signals to the subscriber are never concurrent. Requests made from within onNext(...) are honoured once onNext(...) returns.
+ *
+ * @author simon
+ *
+ */
+public final class ProformaPublisher {
+
+	/**
+	 * The subscriber receiving the chunks of a proforma publisher
+	 *
+	 * @author simon
+	 *
+	 */
+	public interface Subscriber {
+		/**
+		 * Called once when the subscriber subscribes, before any other method
+		 * @param subscription	The subscription through which the subscriber requests chunks
+		 */
+		public void onSubscribe(Subscription subscription);
+		/**
+		 * Called with each chunk requested by the subscriber
+		 * @param chunk	The chunk of characters which the subscriber may keep
+		 */
+		public void onNext(CharBuffer chunk);
+		/**
+		 * Called once if the proforma cannot be written. No further methods are called
+		 * @param error	The cause of the failure
+		 */
+		public void onError(Throwable error);
+		/**
+		 * Called once when the whole proforma has been written. No further methods are called
+		 */
+		public void onComplete();
+	}
+
+	/**
+	 * The subscription of a subscriber to a proforma publisher
+	 *
+	 * @author simon
+	 *
+	 */
+	public interface Subscription {
+		/**
+		 * Request the given number of further chunks
+		 * @param n	The number of chunks. A number that is not positive fails the subscription
+		 */
+		public void request(long n);
+		/**
+		 * Stop writing the proforma. No further chunks are sent
+		 */
+		public void cancel();
+	}
+
+	private final RenderCursor cursor;
+	private final AtomicBoolean subscribed = new AtomicBoolean(false);
+
+	/**
+	 * Create a publisher for the given proforma output
+	 * @param po			The proforma output to publish
+	 * @param indent		The indent level at which to write the output
+	 * @param chunkSize	The number of characters after which each chunk is emitted
+	 */
+	ProformaPublisher(ProformaOutput<?> po, int indent, int chunkSize) {
+		this.cursor = new RenderCursor(po, indent, chunkSize);
+	}
+
+	/**
+	 * Subscribe to the output of the proforma. A proforma publisher accepts a single subscriber, further subscribers are failed
+	 * @param subscriber		The subscriber to receive the chunks
+	 */
+	public void subscribe(Subscriber subscriber) {
+		if (subscriber == null) throw new NullPointerException("subscriber");
+		if (!subscribed.compareAndSet(false, true)) {
+			subscriber.onSubscribe(new Subscription() {
+				@Override
+				public void request(long n) {}
+				@Override
+				public void cancel() {}
+			});
+			subscriber.onError(new ProformaError("A proforma publisher can only be subscribed to once"));
+			return;
+		}
+		Emitter emitter = new Emitter(subscriber);
+		subscriber.onSubscribe(emitter);
+		emitter.drain();
+	}
+
+	/**
+	 * Emits chunks to the subscriber as they are requested
+	 */
+	private final class Emitter implements Subscription {
+		private final Subscriber subscriber;
+		private final AtomicLong demand = new AtomicLong();
+		/**
+		 * The number of times drain has been called while chunks are being emitted
+		 */
+		private final AtomicInteger wip = new AtomicInteger();
+		private volatile boolean cancelled = false;
+		private volatile Throwable invalid;
+		private boolean done = false;
+
+		private Emitter(Subscriber subscriber) {
+			this.subscriber = subscriber;
+		}
+
+		@Override
+		public void request(long n) {
+			if (n <= 0) {
+				invalid = new IllegalArgumentException("The number of chunks requested must be positive, not "+n);
+			} else {
+				long current, next;
+				do {
+					current = demand.get();
+					if (current == Long.MAX_VALUE) break;
+					next = current + n;
+					if (next < 0) next = Long.MAX_VALUE;
+				} while (!demand.compareAndSet(current, next));
+			}
+			drain();
+		}
+
+		@Override
+		public void cancel() {
+			cancelled = true;
+			drain();
+		}
+
+		/**
+		 * Emit chunks while there is demand. Only one thread emits at a time, other threads record that there is more to do
+		 */
+		private void drain() {
+			if (wip.getAndIncrement() != 0) return;
+			int missed = 1;
+			do {
+				while (!done) {
+					if (cancelled) {
+						done = true;
+						cursor.close();
+					} else if (invalid != null) {
+						done = true;
+						cursor.close();
+						subscriber.onError(invalid);
+					} else if (demand.get() > 0) {
+						CharBuffer chunk;
+						try {
+							chunk = cursor.next();
+						} catch (Throwable e) {
+							done = true;
+							subscriber.onError(e);
+							break;
+						}
+						if (chunk == null) {
+							done = true;
+							subscriber.onComplete();
+						} else {
+							if (demand.get() != Long.MAX_VALUE) demand.decrementAndGet();
+							subscriber.onNext(chunk);
+						}
+					} else {
+						break;
+					}
+				}
+				missed = wip.addAndGet(-missed);
+			} while (missed != 0);
+		}
+	}
+
+}
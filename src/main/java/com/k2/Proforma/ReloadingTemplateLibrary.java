@@ -0,0 +1,325 @@
+package com.k2.Proforma;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.stream.Stream;
+
+/**
+ * A reloading template library holds the proformas parsed from the template files in a directory and replaces them as the template
+ * files are changed
+ *
+ * The proformas are parsed by a template cache, so templates are found, parsed and embedded exactly as they are by the TemplateCache.
+ * The library holds a snapshot of the frozen proformas of every template indexed by name. Looking up a proforma reads the current
+ * snapshot without locking or touching the file system.
+ *
+ * Once started the library watches the directory and its sub directories. A background thread waits for changes to stop for a quiet
+ * period and then reloads the templates. Only the templates that changed, or that embed a template that changed, are parsed and
+ * compiled again; every other proforma is carried into the next snapshot as it is. The next snapshot is built in full before it
+ * replaces the current snapshot in a single atomic swap, so a proforma found after the swap never embeds a proforma from before it.
+ * Frozen proformas are never changed, so threads already writing a replaced proforma finish writing the version they found.
+ *
+ * A template that fails to parse keeps its previous version, as do the templates embedding it, and the failure is reported to the
+ * listener of the library. The templates can also be reloaded on demand by calling reload().
+ *
+ * @author simon
+ *
+ */
+public class ReloadingTemplateLibrary implements ProformaLibrary, Closeable {
+
+	/**
+	 * The quiet period, in milliseconds, for which changes must stop before the templates are reloaded unless another is given
+	 */
+	public static final long DEFAULT_QUIET_PERIOD = 100;
+
+	private static final ProformaLibrary[] NONE = new ProformaLibrary[0];
+
+	/**
+	 * The listener of a reloading template library
+	 *
+	 * Listeners are called on the thread reloading the templates and must not block
+	 *
+	 * @author simon
+	 *
+	 */
+	public interface Listener {
+		/**
+		 * Called once a new snapshot has replaced the previous snapshot
+		 * @param names		The names of the templates that were added, replaced or removed
+		 * @param version	The version of the new snapshot
+		 */
+		public void reloaded(Collection<String> names, long version);
+		/**
+		 * Called when a template or the directory cannot be read, in which case the previous version of the template is kept
+		 * @param name		The name of the template that failed or null if the directory failed
+		 * @param error		The cause of the failure
+		 */
+		public void failed(String name, ProformaError error);
+	}
+
+	/**
+	 * An immutable snapshot of the proformas of the library
+	 */
+	private static final class Snapshot {
+		private final Map<String, Proforma> proformas;
+		private final long version;
+
+		private Snapshot(Map<String, Proforma> proformas, long version) {
+			this.proformas = proformas;
+			this.version = version;
+		}
+	}
+
+	private final TemplateCache cache;
+	private final Listener listener;
+	private final long quietPeriod;
+	/**
+	 * The current snapshot, replaced as a whole each time the templates change
+	 */
+	private final AtomicReference<Snapshot> snapshot = new AtomicReference<Snapshot>(
+			new Snapshot(Collections.<String, Proforma>emptyMap(), 0));
+	/**
+	 * The included libraries in the order in which they were included. The array is never changed once assigned
+	 */
+	private volatile ProformaLibrary[] included = NONE;
+	private WatchService watcher;
+	private Thread thread;
+
+	/**
+	 * Create a reloading template library for the UTF-8 template files with the default extension in the given directory
+	 * @param directory	The directory holding the template files
+	 */
+	public ReloadingTemplateLibrary(Path directory) {
+		this(directory, TemplateCache.DEFAULT_EXTENSION, StandardCharsets.UTF_8, DEFAULT_QUIET_PERIOD, null);
+	}
+
+	/**
+	 * Create a reloading template library for the template files with the given extension and character set in the given directory
+	 *
+	 * The templates are loaded before the library is returned. They are not watched until the library is started
+	 *
+	 * @param directory		The directory holding the template files
+	 * @param extension		The extension of the template files, including any leading dot
+	 * @param charset		The character set in which the template files are encoded
+	 * @param quietPeriod	The time in milliseconds for which changes must stop before the templates are reloaded
+	 * @param listener		The listener told of each reload and failure or null
+	 */
+	public ReloadingTemplateLibrary(Path directory, String extension, Charset charset, long quietPeriod, Listener listener) {
+		this.cache = new TemplateCache(directory, extension, charset);
+		this.quietPeriod = Math.max(0, quietPeriod);
+		this.listener = listener;
+		reload();
+	}
+
+	/**
+	 * Get the directory holding the template files of this library
+	 * @return	The directory
+	 */
+	public Path getDirectory() { return cache.getDirectory(); }
+
+	/**
+	 * Get the proforma with the given name from the current snapshot
+	 * @param name	The name of the proforma
+	 * @return	The frozen proforma or null if there is no template with the given name here or in the included libraries
+	 */
+	@Override
+	public Proforma getProforma(String name) {
+		Proforma proforma = snapshot.get().proformas.get(name);
+		if (proforma != null) return proforma;
+		for (ProformaLibrary library : included) {
+			proforma = library.getProforma(name);
+			if (proforma != null) return proforma;
+		}
+		return null;
+	}
+
+	/**
+	 * Include the given libraries to provide proformas for names with no template file and reload the templates, which may embed them
+	 * @param libraries	The libraries to include
+	 */
+	@Override
+	public synchronized void include(ProformaLibrary ... libraries) {
+		for (ProformaLibrary library : libraries) {
+			if (library == this) throw new ProformaError("Unable to include a reloading template library in itself");
+		}
+		cache.include(libraries);
+		ProformaLibrary[] grown = new ProformaLibrary[included.length + libraries.length];
+		System.arraycopy(included, 0, grown, 0, included.length);
+		System.arraycopy(libraries, 0, grown, included.length, libraries.length);
+		included = grown;
+		reload();
+	}
+
+	/**
+	 * Get the proformas of every template in the current snapshot
+	 * @return	The proformas
+	 */
+	@Override
+	public Collection<Proforma> getAllProfomas() {
+		return snapshot.get().proformas.values();
+	}
+
+	/**
+	 * Get the names of the templates in the current snapshot
+	 * @return	The names of the templates
+	 */
+	public Collection<String> getNames() {
+		return snapshot.get().proformas.keySet();
+	}
+
+	/**
+	 * Get the version of the current snapshot, which is incremented each time the snapshot is replaced
+	 * @return	The version
+	 */
+	public long getVersion() {
+		return snapshot.get().version;
+	}
+
+	/**
+	 * Reload the templates that have changed since they were last loaded and replace the current snapshot if any have changed
+	 * @return	True if the snapshot was replaced
+	 */
+	public synchronized boolean reload() {
+		Snapshot current = snapshot.get();
+		Collection<String> names;
+		try {
+			names = cache.getNames();
+		} catch (ProformaError e) {
+			fail(null, e);
+			return false;
+		}
+		Map<String, Proforma> next = new HashMap<String, Proforma>();
+		List<String> changed = new ArrayList<String>();
+		for (String name : names) {
+			Proforma proforma;
+			try {
+				proforma = cache.getProforma(name);
+			} catch (ProformaError e) {
+				fail(name, e);
+				proforma = current.proformas.get(name);
+			}
+			if (proforma == null) continue;
+			next.put(name, proforma);
+			if (proforma != current.proformas.get(name)) changed.add(name);
+		}
+		for (String name : current.proformas.keySet()) {
+			if (!next.containsKey(name)) changed.add(name);
+		}
+		if (changed.isEmpty()) return false;
+		Snapshot replacement = new Snapshot(Collections.unmodifiableMap(next), current.version + 1);
+		snapshot.set(replacement);
+		if (listener != null) listener.reloaded(Collections.unmodifiableList(changed), replacement.version);
+		return true;
+	}
+
+	/**
+	 * Start watching the directory of this library, reloading the templates in the background whenever they change
+	 * @return	This library for method chaining
+	 */
+	public synchronized ReloadingTemplateLibrary start() {
+		if (thread != null) return this;
+		try {
+			watcher = cache.getDirectory().getFileSystem().newWatchService();
+			register();
+		} catch (IOException e) {
+			throw new ProformaError("Unable to watch the templates in {}", e, cache.getDirectory());
+		}
+		thread = new Thread(this::watch, "proforma-reload " + cache.getDirectory());
+		thread.setDaemon(true);
+		thread.start();
+		// Changes made before the directories were registered are picked up now
+		reload();
+		return this;
+	}
+
+	/**
+	 * Stop watching the directory of this library. The current snapshot remains available
+	 */
+	@Override
+	public void close() {
+		Thread stopping;
+		synchronized (this) {
+			stopping = thread;
+			if (stopping == null) return;
+			thread = null;
+			try {
+				watcher.close();
+			} catch (IOException e) {
+				throw new ProformaError("Unable to stop watching the templates in {}", e, cache.getDirectory());
+			}
+		}
+		try {
+			stopping.join();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	/**
+	 * Register the directory of this library and all its sub directories with the watch service. Directories already registered are
+	 * registered again, which leaves them as they are
+	 */
+	private void register() throws IOException {
+		if (!Files.isDirectory(cache.getDirectory())) return;
+		try (Stream<Path> files = Files.walk(cache.getDirectory())) {
+			Iterator<Path> i = files.iterator();
+			while (i.hasNext()) {
+				Path dir = i.next();
+				if (Files.isDirectory(dir)) dir.register(watcher, StandardWatchEventKinds.ENTRY_CREATE,
+						StandardWatchEventKinds.ENTRY_MODIFY, StandardWatchEventKinds.ENTRY_DELETE);
+			}
+		}
+	}
+
+	/**
+	 * Wait for changes, then for the changes to stop for the quiet period, and reload the templates until the watch service is closed
+	 */
+	private void watch() {
+		try {
+			while (true) {
+				drain(watcher.take());
+				WatchKey key;
+				while ((key = watcher.poll(quietPeriod, TimeUnit.MILLISECONDS)) != null) drain(key);
+				synchronized (this) {
+					if (thread == null) return;
+					try {
+						// New sub directories are watched from now on
+						register();
+					} catch (IOException e) {
+						fail(null, new ProformaError("Unable to watch the templates in {}", e, cache.getDirectory()));
+					}
+					reload();
+				}
+			}
+		} catch (ClosedWatchServiceException | InterruptedException e) {
+			// Closed by close()
+		}
+	}
+
+	private static void drain(WatchKey key) {
+		// Each reload reads every template stamp so the events themselves are not needed
+		key.pollEvents();
+		key.reset();
+	}
+
+	private void fail(String name, ProformaError error) {
+		if (listener != null) listener.failed(name, error);
+	}
+
+}
@@ -0,0 +1,53 @@
+package com.k2.Proforma;
+
+import java.io.IOException;
+import java.io.Writer;
+
+/**
+ * A render buffer is the reusable buffer into which a render context writes proformas before draining them to an output sink
+ * 
+ * @author simon
+ *
+ */
+abstract class RenderBuffer extends Writer {
+	
+	/**
+	 * The number of characters or bytes written since the buffer was last flushed
+	 */
+	long count = 0;
+	
+	/**
+	 * The number of characters or bytes written before the buffer was last flushed since it was last reset
+	 */
+	long flushed = 0;
+	
+	/**
+	 * Scratch space into which numbers are formatted before they are written to this buffer
+	 */
+	final char[] digits = new char[DecimalFormatter.MAX_DIGITS];
+	
+	/**
+	 * The escaping writer reused to escape the output of value formatters written to this buffer. Created when first required
+	 */
+	EscapingWriter escaper;
+	
+	/**
+	 * Drain everything held in this buffer to its sink without flushing the sink
+	 * @throws IOException	If the sink cannot be written
+	 */
+	abstract void drain() throws IOException;
+	
+	/**
+	 * Direct this buffer to the given sink discarding anything not yet drained
+	 * @param sink	The sink to which the buffer is drained
+	 * @return	This buffer for method chaining
+	 */
+	abstract RenderBuffer reset(OutputSink sink);
+
+	/**
+	 * The buffer is reused and so is never closed
+	 */
+	@Override
+	public void close() {}
+
+}
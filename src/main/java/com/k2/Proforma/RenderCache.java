@@ -0,0 +1,222 @@
+package com.k2.Proforma;
+
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * A render cache holds the output of proformas so that proforma outputs with the same parameter values and value sources are not
+ * written again
+ *
+ * The output is cached against the compiled proforma, the indent level, indent string and carriage return, the parameter values set on
+ * the proforma output, including numeric values, and its value source or collection of value sources. Parameter values and value sources are compared with equals()
+ * so they must implement equals() and hashCode() by value and must not be changed while their output is cached. Proforma outputs whose
+ * value sources are iterators, streams or spliterators are never cached.
+ *
+ * The output of a proforma embedded in another proforma is part of the output of the proforma embedding it so changes to embedded
+ * proformas are not detected. Render caches are intended for frozen proformas.
+ *
+ * The cache is bounded by both the number of entries and the total number of characters held. When either bound is exceeded the least
+ * recently used entries are evicted. The numbers of hits, misses and evictions are counted so that the cache can be sized.
+ *
+ * A render cache is thread safe and can be shared by any number of proforma outputs.
+ *
+ * @author simon
+ *
+ */
+public class RenderCache {
+
+	private final int maxEntries;
+	private final long maxChars;
+	private final LinkedHashMap<Key, char[]> entries = new LinkedHashMap<Key, char[]>(16, 0.75f, true);
+	private long chars = 0;
+	private long hits = 0;
+	private long misses = 0;
+	private long evictions = 0;
+
+	/**
+	 * Create a render cache holding at most the given number of entries and characters
+	 * @param maxEntries		The maximum number of outputs to cache
+	 * @param maxChars		The maximum total number of characters to cache
+	 */
+	public RenderCache(int maxEntries, long maxChars) {
+		if (maxEntries <= 0) throw new ProformaError("The maximum number of entries in a render cache must be positive, not {}", maxEntries);
+		if (maxChars <= 0) throw new ProformaError("The maximum number of characters in a render cache must be positive, not {}", maxChars);
+		this.maxEntries = maxEntries;
+		this.maxChars = maxChars;
+	}
+
+	/**
+	 * Create the key for the output of the given proforma output
+	 * @param compiled	The compiled proforma being written
+	 * @param i			The indent level
+	 * @param po			The proforma output
+	 * @param values		The parameter values of the proforma output
+	 * @param source		The value source of the proforma output
+	 * @return	The key or null if the output cannot be cached
+	 */
+	static Key key(CompiledProforma compiled, int i, ProformaOutput<?> po, Object values, Object source) {
+		Object sources = po.valueSources;
+		if (sources != null && !(sources instanceof Collection)) return null;
+		if (ValueSources.isSequence(source) && !(source instanceof Collection)) return null;
+		if (!(values instanceof Map)) return null;
+		NumericValues numerics = po.getNumericValues();
+		return new Key(compiled, i, po.getIndent(), po.getCarriageReturn(), new HashMap<Object, Object>((Map<?,?>)values),
+				(numerics == null) ? null : numerics.copy(), po.getFormatters(), po.getEscaping(), source, sources);
+	}
+
+	/**
+	 * Get the cached output for the given key counting a hit or a miss
+	 * @param key	The key
+	 * @return	The cached output or null if the output is not cached
+	 */
+	synchronized char[] get(Key key) {
+		char[] output = entries.get(key);
+		if (output == null) {
+			misses++;
+		} else {
+			hits++;
+		}
+		return output;
+	}
+
+	/**
+	 * Cache the given output evicting the least recently used entries as necessary
+	 * @param key		The key
+	 * @param output		The output
+	 */
+	synchronized void put(Key key, char[] output) {
+		if (output.length > maxChars) return;
+		char[] replaced = entries.put(key, output);
+		if (replaced != null) chars -= replaced.length;
+		chars += output.length;
+		Iterator<char[]> eldest = entries.values().iterator();
+		while (entries.size() > maxEntries || chars > maxChars) {
+			chars -= eldest.next().length;
+			eldest.remove();
+			evictions++;
+		}
+	}
+
+	/**
+	 * Remove all the entries from this cache. The counters are not reset
+	 */
+	public synchronized void clear() {
+		entries.clear();
+		chars = 0;
+	}
+
+	/**
+	 * Get the number of times cached output has been written
+	 * @return	The number of hits
+	 */
+	public synchronized long getHits() { return hits; }
+
+	/**
+	 * Get the number of times output was not cached and so was written
+	 * @return	The number of misses
+	 */
+	public synchronized long getMisses() { return misses; }
+
+	/**
+	 * Get the number of entries evicted to keep the cache within its bounds
+	 * @return	The number of evictions
+	 */
+	public synchronized long getEvictions() { return evictions; }
+
+	/**
+	 * Get the number of outputs cached
+	 * @return	The number of entries
+	 */
+	public synchronized int size() { return entries.size(); }
+
+	/**
+	 * Get the total number of characters cached
+	 * @return	The number of characters
+	 */
+	public synchronized long getChars() { return chars; }
+
+	@Override
+	public synchronized String toString() {
+		return "RenderCache [entries="+entries.size()+"/"+maxEntries+", chars="+chars+"/"+maxChars+
+				", hits="+hits+", misses="+misses+", evictions="+evictions+"]";
+	}
+
+	/**
+	 * The key of a cached output
+	 */
+	static final class Key {
+		private final CompiledProforma compiled;
+		private final int i;
+		private final String indent;
+		private final String cr;
+		private final Map<Object, Object> values;
+		private final NumericValues numerics;
+		/**
+		 * The formatters registered on the proforma output, compared by identity since registering a formatter creates new formatters
+		 */
+		private final Formatters formatters;
+		private final Escaping escaping;
+		private final Object source;
+		private final Object sources;
+		private final int hash;
+
+		private Key(CompiledProforma compiled, int i, String indent, String cr, Map<Object, Object> values, NumericValues numerics, Formatters formatters, Escaping escaping, Object source, Object sources) {
+			this.compiled = compiled;
+			this.i = i;
+			this.indent = indent;
+			this.cr = cr;
+			this.values = values;
+			this.numerics = numerics;
+			this.formatters = formatters;
+			this.escaping = escaping;
+			this.source = source;
+			this.sources = sources;
+			int h = System.identityHashCode(compiled);
+			h = 31*h + i;
+			h = 31*h + hash(indent);
+			h = 31*h + hash(cr);
+			h = 31*h + values.hashCode();
+			h = 31*h + hash(numerics);
+			h = 31*h + System.identityHashCode(formatters);
+			h = 31*h + escaping.ordinal();
+			h = 31*h + hash(source);
+			h = 31*h + hash(sources);
+			this.hash = h;
+		}
+
+		private static int hash(Object o) {
+			return (o == null) ? 0 : o.hashCode();
+		}
+
+		private static boolean equal(Object a, Object b) {
+			return (a == null) ? b == null : a.equals(b);
+		}
+
+		@Override
+		public int hashCode() {
+			return hash;
+		}
+
+		@Override
+		public boolean equals(Object obj) {
+			if (this == obj) return true;
+			if (!(obj instanceof Key)) return false;
+			Key other = (Key)obj;
+			return hash == other.hash &&
+					compiled == other.compiled &&
+					i == other.i &&
+					equal(indent, other.indent) &&
+					equal(cr, other.cr) &&
+					values.equals(other.values) &&
+					equal(numerics, other.numerics) &&
+					formatters == other.formatters &&
+					escaping == other.escaping &&
+					equal(source, other.source) &&
+					equal(sources, other.sources);
+		}
+	}
+
+}
@@ -0,0 +1,354 @@
+package com.k2.Proforma;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.util.Arrays;
+
+/**
+ * The render context holds the stack of proforma outputs used while writing a proforma
+ *
+ * Each embedded proforma that draws its values from a parameter pushes a frame onto the stack for the duration of its output
+ * and pops it again afterwards. Frames are proforma outputs sharing the parameter values, indent string, carriage return and flush
+ * settings of the frame below them and are reused for every element of a collection and for every embedded proforma written at
+ * the same depth. Once the stack has grown to the depth of the proforma being written, writing it allocates no further frames.
+ *
+ * The render context also provides the output buffer into which proformas are written and applies the flush policy of the proforma
+ * output being written, tracking the lines and elements written and the characters and time since the buffer was last flushed.
+ * Output buffers, and the slots holding the conditions evaluated by each compiled proforma, are borrowed from a per thread cache for the
+ * duration of each write so that proforma outputs created for a single write do not each allocate them.
+ *
+ * A render context belongs to a single proforma output and so is not thread safe.
+ *
+ * @author simon
+ *
+ */
+class RenderContext {
+
+	/**
+	 * The frames of the stack indexed by depth. Frames are created on first use and reused thereafter
+	 */
+	@SuppressWarnings("unchecked")
+	private ProformaOutput<Object>[] frames = (ProformaOutput<Object>[])new ProformaOutput<?>[4];
+	/**
+	 * The depth of the current frame or -1 if no frame is pushed
+	 */
+	private int depth = -1;
+	/**
+	 * The frame used to output a proforma for each of a collection of value sources
+	 */
+	private ProformaOutput<Object> sourcesFrame;
+	/**
+	 * True while a proforma is being written using this render context
+	 */
+	private boolean active = false;
+	/**
+	 * The flush policy of the proforma output being written
+	 */
+	private FlushPolicy policy = FlushPolicy.NEVER;
+	/**
+	 * The number of compiled proformas currently being written. Lines written at level 1 are top level lines
+	 */
+	private int level = 0;
+	/**
+	 * The number of collection elements currently being written
+	 */
+	private int elements = 0;
+	/**
+	 * The value of System.nanoTime() when the writer was last flushed by a time based flush policy
+	 */
+	private long lastFlush;
+	/**
+	 * The buffer into which the current proforma is written
+	 */
+	private RenderBuffer buffer;
+	/**
+	 * The number of parameter parts written, lines and parts excluded by their conditions and elements of collections of value sources
+	 * written using this render context. The counts only ever increase so that the counts for writing a proforma are the differences
+	 * between their values before and after it is written
+	 */
+	long lookups, suppressed, iterated;
+	/**
+	 * The character buffer of each thread not currently in use
+	 */
+	private static final ThreadLocal<OutputBuffer> CHARS = new ThreadLocal<OutputBuffer>();
+	/**
+	 * The UTF-8 buffer of each thread not currently in use
+	 */
+	private static final ThreadLocal<Utf8Buffer> BYTES = new ThreadLocal<Utf8Buffer>();
+	/**
+	 * The sink reused to drain the buffer to a writer
+	 */
+	private WriterSink writerSink;
+	/**
+	 * The condition slots of the compiled proforma being written at each level. Slots are created on first use and reused thereafter
+	 */
+	private byte[][] conditions;
+	/**
+	 * The condition slots of each thread not currently in use
+	 */
+	private static final ThreadLocal<byte[][]> CONDITIONS = new ThreadLocal<byte[][]>();
+	/**
+	 * The value of a condition slot that has not been evaluated
+	 */
+	static final byte UNKNOWN = 0;
+	/**
+	 * The value of a condition slot whose condition evaluated to true
+	 */
+	static final byte TRUE = 1;
+	/**
+	 * The value of a condition slot whose condition evaluated to false
+	 */
+	static final byte FALSE = 2;
+
+	/**
+	 * Begin writing a proforma on the given writer with the given flush policy
+	 * @param out		The writer on which the proforma is to be written
+	 * @param policy		The flush policy to apply
+	 * @return		The buffer to write on or null if a proforma is already being written using this render context
+	 */
+	Writer begin(Writer out, FlushPolicy policy) {
+		if (active) return null;
+		if (writerSink == null) writerSink = new WriterSink(out);
+		return begin(writerSink.reset(out), policy);
+	}
+
+	/**
+	 * Begin writing a proforma on the given sink with the given flush policy
+	 * @param sink		The sink to which the proforma is to be written
+	 * @param policy		The flush policy to apply
+	 * @return		The buffer to write on or null if a proforma is already being written using this render context
+	 */
+	Writer begin(OutputSink sink, FlushPolicy policy) {
+		if (active) return null;
+		this.active = true;
+		this.policy = policy;
+		this.level = 0;
+		this.elements = 0;
+		if (policy.timed()) lastFlush = System.nanoTime();
+		conditions = CONDITIONS.get();
+		if (conditions == null) {
+			conditions = new byte[4][];
+		} else {
+			CONDITIONS.set(null);
+		}
+		if (sink instanceof EncodingSink && ((EncodingSink)sink).utf8()) {
+			Utf8Buffer bytes = BYTES.get();
+			if (bytes == null) {
+				bytes = new Utf8Buffer(8192);
+			} else {
+				BYTES.set(null);
+			}
+			buffer = bytes;
+		} else {
+			OutputBuffer chars = CHARS.get();
+			if (chars == null) {
+				chars = new OutputBuffer(8192);
+			} else {
+				CHARS.set(null);
+			}
+			buffer = chars;
+		}
+		return buffer.reset(sink);
+	}
+
+	/**
+	 * Finish writing a proforma draining the buffer to the sink and flushing the sink unless the flush policy is NEVER
+	 * @param out	The buffer on which the proforma was written
+	 */
+	void finish(Writer out) {
+		if (policy.flushes()) {
+			flush(out);
+		} else {
+			try {
+				buffer.drain();
+			} catch (IOException e) {
+				throw new ProformaError(e);
+			}
+		}
+	}
+
+	/**
+	 * End writing a proforma using this render context
+	 */
+	void end() {
+		active = false;
+		depth = -1;
+		buffer.reset(null);
+		if (buffer instanceof Utf8Buffer) {
+			BYTES.set((Utf8Buffer)buffer);
+		} else {
+			CHARS.set((OutputBuffer)buffer);
+		}
+		buffer = null;
+		CONDITIONS.set(conditions);
+		conditions = null;
+		if (writerSink != null) writerSink.reset(null);
+	}
+
+	/**
+	 * Get the number of characters written since the buffer was last flushed
+	 * @return	The number of characters written
+	 */
+	long written() { return buffer.count; }
+
+	/**
+	 * Get the number of characters, or bytes when writing UTF-8, written since this render context began writing
+	 * @return	The number of characters or bytes written or 0 if this render context is not writing
+	 */
+	long output() { return (buffer == null) ? 0 : buffer.flushed + buffer.count; }
+
+	/**
+	 * Identify whether this render context is writing UTF-8 bytes rather than characters
+	 * @return	True if the output is counted in bytes
+	 */
+	boolean bytes() { return buffer instanceof Utf8Buffer; }
+
+	/**
+	 * Enter the output of a compiled proforma
+	 */
+	void enter() { level++; }
+
+	/**
+	 * Exit the output of a compiled proforma
+	 */
+	void exit() { level--; }
+
+	/**
+	 * Get the condition slots for the compiled proforma being written at the current level with every slot unevaluated
+	 * 
+	 * The slots are only valid while the compiled proforma is written for the current value source and are reused by the next compiled
+	 * proforma written at the same level
+	 * 
+	 * @param size	The number of slots required
+	 * @return	The condition slots
+	 */
+	byte[] conditions(int size) {
+		if (conditions == null) conditions = new byte[4][];
+		if (level >= conditions.length) conditions = Arrays.copyOf(conditions, Math.max(level+1, conditions.length*2));
+		byte[] slots = conditions[level];
+		if (slots == null || slots.length < size) {
+			slots = new byte[Math.max(size, 8)];
+			conditions[level] = slots;
+		} else {
+			Arrays.fill(slots, 0, size, UNKNOWN);
+		}
+		return slots;
+	}
+
+	/**
+	 * Called at the end of each line after the carriage return has been written
+	 * @param out	The writer on which the line was written
+	 */
+	void endLine(Writer out) {
+		if (policy.flushes() && policy.flushLine(
+				level == 1,
+				buffer.count,
+				policy.timed() ? System.nanoTime() - lastFlush : 0)) {
+			flush(out);
+		}
+	}
+
+	/**
+	 * Called after the memoised output of an embedded proforma including carriage returns has been written
+	 * 
+	 * Lines of embedded proformas are not top level lines so only policies flushing after a number of characters or milliseconds apply
+	 * @param out	The writer on which the output was written
+	 */
+	void endEmbeddedLines(Writer out) {
+		if (policy.flushes() && policy.flushLine(
+				false,
+				buffer.count,
+				policy.timed() ? System.nanoTime() - lastFlush : 0)) {
+			flush(out);
+		}
+	}
+
+	/**
+	 * Called before each element of a collection of value sources is written
+	 */
+	void beginElement() {
+		elements++;
+		iterated++;
+	}
+
+	/**
+	 * Called after each element of a collection of value sources has been written
+	 * @param out	The writer on which the element was written
+	 */
+	void endElement(Writer out) {
+		if (policy.flushElement(--elements == 0)) flush(out);
+	}
+
+	/**
+	 * Called after each chunk of a collection written in parallel has been written, flushing the writer unless the policy is NEVER
+	 * @param out	The writer on which the chunk was written
+	 */
+	void endChunk(Writer out) {
+		if (policy.flushes()) flush(out);
+	}
+
+	private void flush(Writer out) {
+		try {
+			out.flush();
+		} catch (IOException e) {
+			throw new ProformaError("Unable to flush, message {}", e, e.getMessage());
+		}
+		if (policy.timed()) lastFlush = System.nanoTime();
+	}
+
+	/**
+	 * Push a frame for the given proforma drawing its settings and parameter values from the given parent proforma output
+	 * @param proforma	The proforma to be written using the frame
+	 * @param parent		The proforma output providing the settings and parameter values of the frame
+	 * @return		The frame with no value source set
+	 */
+	ProformaOutput<Object> push(Proforma proforma, ProformaOutput<?> parent) {
+		if (++depth == frames.length) {
+			@SuppressWarnings("unchecked")
+			ProformaOutput<Object>[] grown = (ProformaOutput<Object>[])new ProformaOutput<?>[frames.length*2];
+			System.arraycopy(frames, 0, grown, 0, frames.length);
+			frames = grown;
+		}
+		ProformaOutput<Object> frame = frames[depth];
+		if (frame == null) {
+			frame = new ProformaOutput<Object>(proforma);
+			frame.context = this;
+			frames[depth] = frame;
+		}
+		return frame.reset(proforma, parent);
+	}
+
+	/**
+	 * Pop the current frame releasing its value source
+	 */
+	void pop() {
+		frames[depth--].with(null);
+	}
+
+	/**
+	 * Get the frame used to output the given proforma output for each of its value sources
+	 *
+	 * The frame takes the indent string, carriage return, flush and parallel settings of the given proforma output but not its parameter values
+	 *
+	 * @param po		The proforma output with a collection of value sources
+	 * @return		The frame for the value sources
+	 */
+	ProformaOutput<Object> sources(ProformaOutput<?> po) {
+		if (sourcesFrame == null) {
+			sourcesFrame = new ProformaOutput<Object>(po.getProforma());
+			sourcesFrame.context = this;
+		}
+		return sourcesFrame.reset(po.getProforma(), po, false);
+	}
+
+	/**
+	 * Get the number of frames created by this render context
+	 * @return	The number of frames created
+	 */
+	int size() {
+		int size = 0;
+		while (size < frames.length && frames[size] != null) size++;
+		return size;
+	}
+
+}
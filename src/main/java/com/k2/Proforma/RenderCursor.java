@@ -0,0 +1,226 @@
+package com.k2.Proforma;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.nio.CharBuffer;
+import java.util.ArrayDeque;
+import java.util.Collections;
+import java.util.Iterator;
+
+/**
+ * A render cursor writes a proforma output a chunk at a time, suspending between chunks
+ *
+ * Writing a proforma normally recurses through embedded proformas and collections of value sources until the whole output has been
+ * written. The render cursor instead keeps the position within each compiled proforma and each sequence of value sources on an explicit
+ * stack so that it can stop once a chunk of output has been written and carry on from the same position when the next chunk is
+ * requested. Nothing is written until a chunk is requested so iterators and streams of value sources are consumed only as fast as the
+ * chunks are taken.
+ *
+ * Collections are written sequentially by a render cursor whatever the parallel settings of the proforma output and the flush policy
+ * is ignored as each chunk is handed over as soon as it has been written.
+ *
+ * A render cursor is not thread safe. Chunks must be requested by one thread at a time.
+ *
+ * @author simon
+ *
+ */
+final class RenderCursor {
+
+	/**
+	 * The position within a compiled proforma or a sequence of value sources
+	 */
+	private interface Task {
+		/**
+		 * Write the next step of this task
+		 * @throws IOException	If the writer throws an IOException
+		 */
+		void advance() throws IOException;
+		/**
+		 * Release the resources held by this task when the cursor is closed before the task is complete
+		 */
+		void release();
+	}
+
+	private final ProformaOutput<?> po;
+	private final int indent;
+	private final int chunkSize;
+	private final ArrayDeque<Task> tasks = new ArrayDeque<Task>();
+	private final ChunkSink sink = new ChunkSink();
+	private RenderContext ctx;
+	private Writer out;
+	private boolean closed = false;
+
+	/**
+	 * Create a render cursor for the given proforma output
+	 * @param po			The proforma output to write
+	 * @param indent		The indent level at which to write the output
+	 * @param chunkSize	The number of characters after which a chunk is handed over
+	 */
+	RenderCursor(ProformaOutput<?> po, int indent, int chunkSize) {
+		if (chunkSize <= 0) throw new ProformaError("The chunk size must be positive, not {}", chunkSize);
+		this.po = po;
+		this.indent = indent;
+		this.chunkSize = chunkSize;
+	}
+
+	private void start() {
+		ctx = po.context();
+		out = ctx.begin(sink, FlushPolicy.NEVER);
+		if (out == null) throw new ProformaError("The proforma output is already writing a proforma and cannot be published");
+		CompiledProforma compiled = po.getProforma().compile();
+		if (po.valueSources != null) {
+			tasks.push(new Sequence(compiled, indent, ctx.sources(po), po.valueSources, false));
+		} else {
+			tasks.push(new Plan(compiled, indent, po));
+		}
+	}
+
+	/**
+	 * Write the next chunk of output
+	 * @return	The next chunk or null if the whole output has been written
+	 */
+	CharBuffer next() {
+		if (closed) return null;
+		if (ctx == null) start();
+		while (true) {
+			try {
+				while (!tasks.isEmpty() && ctx.written() < chunkSize) {
+					tasks.peek().advance();
+				}
+				out.flush();
+			} catch (IOException e) {
+				close();
+				throw new ProformaError(e);
+			} catch (RuntimeException e) {
+				close();
+				throw e;
+			} catch (Error e) {
+				close();
+				throw e;
+			}
+			boolean complete = tasks.isEmpty();
+			CharBuffer chunk = sink.take(complete);
+			if (complete) close();
+			if (chunk != null || complete) return chunk;
+		}
+	}
+
+	/**
+	 * Stop writing, releasing the value sources and frames held by the cursor
+	 */
+	void close() {
+		if (closed) return;
+		closed = true;
+		while (!tasks.isEmpty()) tasks.pop().release();
+		if (ctx != null) ctx.end();
+	}
+
+	/**
+	 * Hand an embedded proforma to the cursor to be written after the current opcode
+	 * @param proforma	The embedded proforma
+	 * @param i			The indent level at which to write the embedded proforma
+	 * @param parent		The proforma output of the proforma embedding the proforma
+	 */
+	void embed(Proforma proforma, int i, ProformaOutput<?> parent) {
+		CompiledProforma compiled = proforma.compile();
+		Parameter<?> valueSourceParameter = proforma.valueSourceParameter();
+		if (valueSourceParameter == null) {
+			tasks.push(new Plan(compiled, i, parent));
+			return;
+		}
+		Object value = parent.resolve(valueSourceParameter);
+		tasks.push(new Sequence(compiled, i, ctx.push(proforma, parent), value, true));
+	}
+
+	/**
+	 * The position within a compiled proforma
+	 */
+	private final class Plan implements Task {
+		private final CompiledProforma compiled;
+		private final int i;
+		private final ProformaOutput<?> po;
+		private final byte[] conditions;
+		private int pc = 0;
+
+		private Plan(CompiledProforma compiled, int i, ProformaOutput<?> po) {
+			this.compiled = compiled;
+			this.i = i;
+			this.po = po;
+			this.conditions = (compiled.conditions() > 0) ? new byte[compiled.conditions()] : null;
+		}
+
+		@Override
+		public void advance() throws IOException {
+			pc = compiled.step(pc, i, out, po, conditions, RenderCursor.this);
+			if (pc < 0) tasks.remove(this);
+		}
+
+		@Override
+		public void release() {}
+	}
+
+	/**
+	 * The position within a sequence of value sources, or a single value source, for which a compiled proforma is written
+	 */
+	private final class Sequence implements Task {
+		private final CompiledProforma compiled;
+		private final int i;
+		private final ProformaOutput<Object> frame;
+		private final Object value;
+		private final Iterator<?> sources;
+		private final boolean pushed;
+
+		private Sequence(CompiledProforma compiled, int i, ProformaOutput<Object> frame, Object value, boolean pushed) {
+			this.compiled = compiled;
+			this.i = i;
+			this.frame = frame;
+			this.value = value;
+			this.pushed = pushed;
+			this.sources = ValueSources.isSequence(value) ? ValueSources.iterator(value) : Collections.singleton(value).iterator();
+		}
+
+		@Override
+		public void advance() {
+			if (sources.hasNext()) {
+				tasks.push(new Plan(compiled, i, frame.with(sources.next())));
+			} else {
+				tasks.remove(this);
+				release();
+			}
+		}
+
+		@Override
+		public void release() {
+			if (pushed) {
+				ctx.pop();
+			} else {
+				frame.with(null);
+			}
+			ValueSources.release(value);
+		}
+	}
+
+	/**
+	 * Accumulates the characters of the chunk being written
+	 */
+	private static final class ChunkSink extends CharArraySink {
+
+		/**
+		 * Take the characters written so far as a chunk
+		 * @param complete	True if the whole output has been written
+		 * @return	The chunk or null if there are no characters to take
+		 */
+		private CharBuffer take(boolean complete) {
+			int len = count;
+			// Hold back a high surrogate so that surrogate pairs are never split between chunks
+			if (!complete && len > 0 && Character.isHighSurrogate(chars[len-1])) len--;
+			if (len == 0) return null;
+			char[] chunk = new char[len];
+			System.arraycopy(chars, 0, chunk, 0, len);
+			System.arraycopy(chars, len, chars, 0, count - len);
+			count -= len;
+			return CharBuffer.wrap(chunk);
+		}
+	}
+
+}
@@ -0,0 +1,331 @@
+package com.k2.Proforma;
+
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+/**
+ * Render metrics record how often, how quickly and how much each named proforma writes
+ *
+ * Metrics are recorded for a proforma output by setting the render metrics of the proforma output, or for every proforma output
+ * created from then on by setting the default render metrics. Each time a proforma with a name is written, either by its proforma
+ * output or embedded in another proforma, the metrics of that name are updated with:
+ *
+ * The number of times the proforma was written
+ * The time taken to write it, in a histogram of powers of two nanoseconds from which percentiles are estimated
+ * The number of characters written, or bytes when writing UTF-8 to a stream, channel or byte buffer
+ * The number of elements of collections of value sources written
+ * The number of conditional lines and parts excluded because their conditions were false
+ * The number of parameter values written
+ *
+ * Each measure includes the proformas embedded in the proforma, so the metrics of a template are its total cost. The clones created by
+ * with(...) and includeIf(...) have no name of their own but are recorded under the name of the proforma from which they were cloned.
+ * Other proformas with no name are measured as part of the named proformas that embed them. Chunks of collections written in parallel are timed as part of the
+ * proforma writing them but their counts are not recorded, nor is output written through a proforma publisher.
+ *
+ * Proforma outputs without render metrics only count the measures in fields of their render context, so metrics cost nothing
+ * noticeable unless they are being recorded. Recording reads the clock twice for each named proforma written and adds to counters that
+ * are spread across threads, so metrics can be left recording in production. A snapshot of the metrics can be taken at any time and
+ * the metrics exported over JMX by registering them with the platform MBean server.
+ *
+ * @author simon
+ *
+ */
+public final class RenderMetrics implements RenderMetricsMXBean {
+
+	/**
+	 * The number of buckets in the latency histogram. Bucket b counts the renders taking less than 2^b nanoseconds and at least
+	 * 2^(b-1) nanoseconds. The last bucket counts every render taking longer
+	 */
+	public static final int BUCKETS = 40;
+
+	private static volatile RenderMetrics defaultMetrics;
+
+	private final ConcurrentHashMap<String, Template> templates = new ConcurrentHashMap<String, Template>();
+	private volatile boolean enabled = true;
+	private ObjectName registered;
+
+	/**
+	 * Create render metrics recording nothing until they are set on a proforma output or made the default
+	 */
+	public RenderMetrics() {}
+
+	/**
+	 * Set the render metrics taken by every proforma output created from now on
+	 * @param metrics	The default render metrics or null to record no metrics by default
+	 */
+	public static void setDefault(RenderMetrics metrics) {
+		defaultMetrics = metrics;
+	}
+
+	/**
+	 * Get the render metrics taken by every proforma output when it is created
+	 * @return	The default render metrics or null if no metrics are recorded by default
+	 */
+	public static RenderMetrics getDefault() { return defaultMetrics; }
+
+	@Override
+	public boolean isEnabled() { return enabled; }
+
+	@Override
+	public void setEnabled(boolean enabled) {
+		this.enabled = enabled;
+	}
+
+	/**
+	 * Record the metrics of a named proforma that has been written
+	 * @param name		The name of the proforma
+	 * @param ctx		The render context with which it was written
+	 * @param nanos		The time taken to write it
+	 * @param lookups	The parameter values counted by the render context before it was written
+	 * @param suppressed	The excluded lines and parts counted by the render context before it was written
+	 * @param iterated	The elements counted by the render context before it was written
+	 * @param output		The output counted by the render context before it was written
+	 */
+	void record(String name, RenderContext ctx, long nanos, long lookups, long suppressed, long iterated, long output) {
+		Template template = templates.get(name);
+		if (template == null) {
+			template = new Template();
+			Template existing = templates.putIfAbsent(name, template);
+			if (existing != null) template = existing;
+		}
+		template.renders.increment();
+		template.nanos.add(nanos);
+		template.max.accumulate(nanos);
+		template.histogram.incrementAndGet(bucket(nanos));
+		long written = ctx.output() - output;
+		if (written > 0) {
+			if (ctx.bytes()) {
+				template.bytes.add(written);
+			} else {
+				template.chars.add(written);
+			}
+		}
+		template.lookups.add(ctx.lookups - lookups);
+		template.suppressed.add(ctx.suppressed - suppressed);
+		template.iterated.add(ctx.iterated - iterated);
+	}
+
+	private static int bucket(long nanos) {
+		int b = 64 - Long.numberOfLeadingZeros(nanos);
+		return (b < BUCKETS) ? b : BUCKETS-1;
+	}
+
+	/**
+	 * Get a snapshot of the metrics of the template with the given name
+	 * @param name	The name of the template
+	 * @return	The snapshot or null if the template has not been written since the metrics were last reset
+	 */
+	public Snapshot snapshot(String name) {
+		Template template = templates.get(name);
+		return (template == null) ? null : template.snapshot(name);
+	}
+
+	/**
+	 * Get a snapshot of the metrics of every template written since the metrics were last reset
+	 * @return	The snapshots indexed and ordered by template name
+	 */
+	public Map<String, Snapshot> snapshot() {
+		Map<String, Snapshot> snapshots = new TreeMap<String, Snapshot>();
+		for (Map.Entry<String, Template> template : templates.entrySet()) {
+			snapshots.put(template.getKey(), template.getValue().snapshot(template.getKey()));
+		}
+		return Collections.unmodifiableMap(snapshots);
+	}
+
+	@Override
+	public List<Snapshot> getTemplates() {
+		return new ArrayList<Snapshot>(snapshot().values());
+	}
+
+	@Override
+	public long getRenders() {
+		long renders = 0;
+		for (Template template : templates.values()) renders += template.renders.sum();
+		return renders;
+	}
+
+	@Override
+	public void reset() {
+		templates.clear();
+	}
+
+	/**
+	 * Register these render metrics with the platform MBean server
+	 * @param objectName	The object name under which to register the metrics, e.g. com.k2.Proforma:type=RenderMetrics
+	 * @return	These render metrics for method chaining
+	 */
+	public synchronized RenderMetrics register(String objectName) {
+		if (registered != null) throw new ProformaError("The render metrics are already registered as {}", registered);
+		try {
+			ObjectName name = new ObjectName(objectName);
+			ManagementFactory.getPlatformMBeanServer().registerMBean(this, name);
+			registered = name;
+		} catch (JMException e) {
+			throw new ProformaError("Unable to register the render metrics as {}", e, objectName);
+		}
+		return this;
+	}
+
+	/**
+	 * Unregister these render metrics from the platform MBean server if they are registered
+	 */
+	public synchronized void unregister() {
+		if (registered == null) return;
+		try {
+			MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+			if (server.isRegistered(registered)) server.unregisterMBean(registered);
+			registered = null;
+		} catch (JMException e) {
+			throw new ProformaError("Unable to unregister the render metrics {}", e, registered);
+		}
+	}
+
+	/**
+	 * The counters of a template, spread across threads so that concurrent renders of the same template do not contend
+	 */
+	private static final class Template {
+		private final LongAdder renders = new LongAdder();
+		private final LongAdder nanos = new LongAdder();
+		private final LongAccumulator max = new LongAccumulator(Math::max, 0);
+		private final AtomicLongArray histogram = new AtomicLongArray(BUCKETS);
+		private final LongAdder chars = new LongAdder();
+		private final LongAdder bytes = new LongAdder();
+		private final LongAdder iterated = new LongAdder();
+		private final LongAdder suppressed = new LongAdder();
+		private final LongAdder lookups = new LongAdder();
+
+		private Snapshot snapshot(String name) {
+			long[] buckets = new long[BUCKETS];
+			for (int b=0; b<BUCKETS; b++) buckets[b] = histogram.get(b);
+			return new Snapshot(name, renders.sum(), nanos.sum(), max.get(), buckets, chars.sum(), bytes.sum(), iterated.sum(),
+					suppressed.sum(), lookups.sum());
+		}
+	}
+
+	/**
+	 * An immutable snapshot of the metrics of a template
+	 *
+	 * The counters of a template are read one after another while it may be being written so a snapshot is not exact, but each
+	 * counter is accurate to within the renders in progress
+	 *
+	 * @author simon
+	 *
+	 */
+	public static final class Snapshot {
+		private final String name;
+		private final long renders;
+		private final long totalNanos;
+		private final long maxNanos;
+		private final long[] histogram;
+		private final long chars;
+		private final long bytes;
+		private final long elements;
+		private final long suppressed;
+		private final long lookups;
+
+		private Snapshot(String name, long renders, long totalNanos, long maxNanos, long[] histogram, long chars, long bytes,
+				long elements, long suppressed, long lookups) {
+			this.name = name;
+			this.renders = renders;
+			this.totalNanos = totalNanos;
+			this.maxNanos = maxNanos;
+			this.histogram = histogram;
+			this.chars = chars;
+			this.bytes = bytes;
+			this.elements = elements;
+			this.suppressed = suppressed;
+			this.lookups = lookups;
+		}
+
+		/**
+		 * @return	The name of the template
+		 */
+		public String getName() { return name; }
+		/**
+		 * @return	The number of times the template was written
+		 */
+		public long getRenders() { return renders; }
+		/**
+		 * @return	The total time spent writing the template in nanoseconds
+		 */
+		public long getTotalNanos() { return totalNanos; }
+		/**
+		 * @return	The mean time taken to write the template in nanoseconds
+		 */
+		public long getMeanNanos() { return (renders == 0) ? 0 : totalNanos / renders; }
+		/**
+		 * @return	The longest time taken to write the template in nanoseconds
+		 */
+		public long getMaxNanos() { return maxNanos; }
+		/**
+		 * @return	The estimated median time taken to write the template in nanoseconds
+		 */
+		public long getP50Nanos() { return percentile(50); }
+		/**
+		 * @return	The estimated 99th percentile of the time taken to write the template in nanoseconds
+		 */
+		public long getP99Nanos() { return percentile(99); }
+		/**
+		 * @return	The number of renders in each bucket of the latency histogram
+		 */
+		public long[] getHistogram() { return histogram.clone(); }
+		/**
+		 * @return	The number of characters written by the template
+		 */
+		public long getChars() { return chars; }
+		/**
+		 * @return	The number of UTF-8 bytes written by the template
+		 */
+		public long getBytes() { return bytes; }
+		/**
+		 * @return	The number of elements of collections of value sources written by the template
+		 */
+		public long getElements() { return elements; }
+		/**
+		 * @return	The number of conditional lines and parts excluded from the output of the template
+		 */
+		public long getSuppressed() { return suppressed; }
+		/**
+		 * @return	The number of parameter values written by the template
+		 */
+		public long getLookups() { return lookups; }
+
+		/**
+		 * Estimate the given percentile of the time taken to write the template as the upper bound of the histogram bucket in which it
+		 * falls, which is at most twice the true value, and never more than the longest time taken
+		 * @param percentile	The percentile, from 0 to 100
+		 * @return	The estimated percentile in nanoseconds or 0 if the template has not been written
+		 */
+		public long percentile(double percentile) {
+			long total = 0;
+			for (long count : histogram) total += count;
+			if (total == 0) return 0;
+			long rank = (long)Math.ceil(total * Math.min(100, Math.max(0, percentile)) / 100);
+			long seen = 0;
+			for (int b=0; b<histogram.length; b++) {
+				seen += histogram[b];
+				if (seen >= rank && seen > 0) return Math.min(maxNanos, (b == 0) ? 0 : (1L << b) - 1);
+			}
+			return maxNanos;
+		}
+
+		@Override
+		public String toString() {
+			return name + ": " + renders + " renders, mean " + getMeanNanos() + "ns, p99 " + getP99Nanos() + "ns, max " + maxNanos + "ns, "
+					+ chars + " chars, " + bytes + " bytes, " + elements + " elements, " + suppressed + " suppressed, " + lookups + " lookups";
+		}
+	}
+
+}
@@ -0,0 +1,44 @@
+package com.k2.Proforma;
+
+import java.util.List;
+
+/**
+ * The management interface through which render metrics are exported over JMX
+ *
+ * The metrics of each template are exported as composite data with an item for each getter of RenderMetrics.Snapshot
+ *
+ * @author simon
+ *
+ */
+public interface RenderMetricsMXBean {
+
+	/**
+	 * Get a snapshot of the metrics of every template written since the metrics were last reset
+	 * @return	The snapshots ordered by template name
+	 */
+	public List<RenderMetrics.Snapshot> getTemplates();
+
+	/**
+	 * Get the number of times any template has been written since the metrics were last reset
+	 * @return	The number of renders
+	 */
+	public long getRenders();
+
+	/**
+	 * Identify whether metrics are being recorded
+	 * @return	True if metrics are being recorded
+	 */
+	public boolean isEnabled();
+
+	/**
+	 * Start or stop recording metrics. Metrics already recorded are kept
+	 * @param enabled	True to record metrics
+	 */
+	public void setEnabled(boolean enabled);
+
+	/**
+	 * Discard the metrics of every template
+	 */
+	public void reset();
+
+}
@@ -0,0 +1,336 @@
+package com.k2.Proforma;
+
+import java.io.IOException;
+import java.io.StringWriter;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import com.k2.Expressions.expression.K2Expression;
+
+/**
+ * A render profiler times each line and part of the proformas written by a proforma output
+ *
+ * When a proforma output has a render profiler the render loop writing its render plans times every opcode. The times are accumulated
+ * in a tree of frames with a frame for each proforma written, a frame for each of its lines and a frame for each part of each line:
+ *
+ * line n			A line of a proforma, numbered from 1
+ * if alias			The evaluation of the condition of a conditional line or part
+ * ${alias}			A parameter part, with a lookup frame for finding its value and a format frame for converting it to text and writing it
+ * 					to the output buffer. The value of a numeric parameter is written without being looked up so has neither frame
+ * @name			An embedded proforma, including the push of its frame, with frames for its lines beneath it
+ * literal			Literal text written to the output buffer
+ * indent, cr		Indents and carriage returns, including any flush of the output made at the end of a line
+ * part class		Any other implementation of part
+ * flush			The flush of the output once a proforma has been written, which is when most output reaches its writer or sink
+ *
+ * Each frame counts the times it was entered and the nanoseconds spent in it. The self time of a frame is its total time less the
+ * total time of its children. Elements of a collection of value sources written by the same proforma are accumulated in the same
+ * frames, and frames with the same name under the same parent are merged.
+ *
+ * The profile can be read as a tree of frames or written in the collapsed stack format read by flame graph tools, with a line for each
+ * frame giving the names of the frames from the root to the frame separated by semicolons followed by the self time of the frame.
+ *
+ * Profiling reads the clock twice for every opcode written so it is much slower than writing without a profiler, and collections of
+ * value sources are not written in parallel while profiling. A render profiler must only be used by one thread at a time.
+ *
+ * @author simon
+ *
+ */
+public final class RenderProfiler {
+
+	/**
+	 * A frame of the profile
+	 *
+	 * @author simon
+	 *
+	 */
+	public static final class Frame {
+		private final String name;
+		private final Frame parent;
+		private Map<String, Frame> children;
+		private long count;
+		private long total;
+
+		private Frame(String name, Frame parent) {
+			this.name = name;
+			this.parent = parent;
+		}
+
+		/**
+		 * @return	The name of the frame
+		 */
+		public String getName() { return name; }
+		/**
+		 * @return	The number of times the frame was entered
+		 */
+		public long getCount() { return count; }
+		/**
+		 * @return	The nanoseconds spent in the frame and its children
+		 */
+		public long getTotalNanos() { return total; }
+		/**
+		 * @return	The nanoseconds spent in the frame and not in its children
+		 */
+		public long getSelfNanos() {
+			long self = total;
+			if (children != null) for (Frame child : children.values()) self -= child.total;
+			return Math.max(0, self);
+		}
+		/**
+		 * @return	The children of the frame in the order in which they were first entered
+		 */
+		public List<Frame> getChildren() {
+			return (children == null) ? Collections.<Frame>emptyList() : Collections.unmodifiableList(new ArrayList<Frame>(children.values()));
+		}
+		/**
+		 * Get the child of this frame with the given name
+		 * @param name	The name of the child
+		 * @return	The child or null if this frame has no child with the given name
+		 */
+		public Frame getChild(String name) {
+			return (children == null) ? null : children.get(name);
+		}
+
+		private Frame child(String name) {
+			if (children == null) children = new LinkedHashMap<String, Frame>();
+			Frame child = children.get(name);
+			if (child == null) {
+				child = new Frame(name, this);
+				children.put(name, child);
+			}
+			return child;
+		}
+
+		@Override
+		public String toString() {
+			return name + " " + count + " calls, " + total + "ns total, " + getSelfNanos() + "ns self";
+		}
+	}
+
+	/**
+	 * The frame names of the lines and opcodes of a render plan, built when the render plan is first profiled
+	 */
+	static final class Plan {
+		/**
+		 * The name of the proforma
+		 */
+		final String name;
+		/**
+		 * The index of the line to which each opcode belongs indexed by program counter
+		 */
+		final int[] lines;
+		/**
+		 * The frame name of each line
+		 */
+		final String[] lineNames;
+		/**
+		 * The frame name of each opcode indexed by program counter
+		 */
+		final String[] parts;
+
+		Plan(Proforma proforma, int[] code, Object[] operands) {
+			this.name = name(proforma);
+			this.lines = new int[code.length];
+			this.parts = new String[code.length];
+			int line = 0;
+			for (int pc=0; pc<code.length; pc += CompiledProforma.width(code[pc])) {
+				lines[pc] = line;
+				parts[pc] = part(code, operands, pc);
+				// Every line but the last ends with a carriage return
+				if (code[pc] == CompiledProforma.CR) line++;
+			}
+			this.lineNames = new String[line+1];
+			for (int l=0; l<lineNames.length; l++) lineNames[l] = "line " + (l+1);
+		}
+
+		private static String part(int[] code, Object[] operands, int pc) {
+			switch (code[pc]) {
+			case CompiledProforma.IF:
+				return "if " + expression((K2Expression<?>)operands[code[pc+1]]);
+			case CompiledProforma.INDENT:
+			case CompiledProforma.INDENT_PART:
+				return "indent";
+			case CompiledProforma.LITERAL:
+				return "literal";
+			case CompiledProforma.PARAMETER:
+				return "${" + frameName(((ParameterPart)operands[code[pc+1]]).parameter().getAlias()) + "}";
+			case CompiledProforma.PROFORMA:
+				return "@" + name((Proforma)operands[code[pc+1]]);
+			case CompiledProforma.PART:
+				return "part " + operands[code[pc+1]].getClass().getSimpleName();
+			case CompiledProforma.CR:
+				return "cr";
+			default:
+				return "op " + code[pc];
+			}
+		}
+
+		private static String expression(K2Expression<?> expression) {
+			String alias = expression.getAlias();
+			return frameName((alias == null) ? expression.getClass().getSimpleName() : alias);
+		}
+
+		private static String name(Proforma proforma) {
+			return (proforma.metricsName() == null) ? "proforma" : frameName(proforma.metricsName());
+		}
+
+		/**
+		 * Semicolons separate frames in the collapsed stack format so cannot appear in frame names
+		 */
+		private static String frameName(String name) {
+			return name.replace(';', ',');
+		}
+	}
+
+	static final String LOOKUP = "lookup";
+	static final String FORMAT = "format";
+	static final String FLUSH = "flush";
+
+	private final Frame root = new Frame("", null);
+	private Frame current = root;
+	private long[] starts = new long[16];
+	private int depth = 0;
+
+	/**
+	 * Create an empty render profiler
+	 */
+	public RenderProfiler() {}
+
+	/**
+	 * Get the root of the profile whose children are the frames of the proformas written by proforma outputs
+	 * @return	The root frame, which is never entered
+	 */
+	public Frame getRoot() { return root; }
+
+	/**
+	 * Get the frame with the given path of names from the root
+	 * @param names	The names of the frames from the child of the root to the frame required
+	 * @return	The frame or null if there is no frame with the given path
+	 */
+	public Frame getFrame(String ... names) {
+		Frame frame = root;
+		for (String name : names) {
+			frame = frame.getChild(name);
+			if (frame == null) return null;
+		}
+		return frame;
+	}
+
+	/**
+	 * Discard the profile
+	 */
+	public void reset() {
+		if (depth > 0) throw new ProformaError("Unable to reset a render profiler while a proforma is being profiled");
+		root.children = null;
+	}
+
+	/**
+	 * Write the profile in the collapsed stack format with the self time of each frame in nanoseconds. Frames with no self time are omitted
+	 * @param out	The writer
+	 * @throws IOException	If the writer throws an IOException
+	 */
+	public void writeCollapsed(Writer out) throws IOException {
+		StringBuilder stack = new StringBuilder();
+		for (Frame frame : root.getChildren()) collapse(frame, stack, out);
+	}
+
+	/**
+	 * Get the profile in the collapsed stack format
+	 * @return	The collapsed stacks
+	 */
+	public String toCollapsed() {
+		StringWriter out = new StringWriter();
+		try {
+			writeCollapsed(out);
+		} catch (IOException e) {
+			throw new ProformaError(e);
+		}
+		return out.toString();
+	}
+
+	private static void collapse(Frame frame, StringBuilder stack, Writer out) throws IOException {
+		int length = stack.length();
+		if (length > 0) stack.append(';');
+		stack.append(frame.name);
+		long self = frame.getSelfNanos();
+		if (self > 0) {
+			out.append(stack).append(' ').append(Long.toString(self)).append('\n');
+		}
+		if (frame.children != null) for (Frame child : frame.children.values()) collapse(child, stack, out);
+		stack.setLength(length);
+	}
+
+	/**
+	 * Identify whether a proforma is being profiled
+	 * @return	True if a frame has been entered and not exited
+	 */
+	boolean active() { return depth > 0; }
+
+	/**
+	 * Get the number of frames entered and not yet exited
+	 * @return	The depth
+	 */
+	int depth() { return depth; }
+
+	/**
+	 * Enter the child of the current frame with the given name, starting its clock
+	 * @param name	The name of the frame
+	 */
+	void enter(String name) {
+		current = current.child(name);
+		current.count++;
+		if (depth == starts.length) starts = Arrays.copyOf(starts, depth*2);
+		starts[depth++] = System.nanoTime();
+	}
+
+	/**
+	 * Start profiling a render plan, entering the frame of its proforma if it is written by its proforma output rather than embedded in
+	 * another proforma
+	 * @param plan	The frame names of the render plan
+	 * @return	The depth to which to unwind once the render plan has been written
+	 */
+	int enter(Plan plan) {
+		int depth = this.depth;
+		if (depth == 0) enter(plan.name);
+		return depth;
+	}
+
+	/**
+	 * Enter the frame of the opcode at the given program counter, first entering the frame of its line if it starts a new line
+	 * @param plan	The frame names of the render plan
+	 * @param pc		The program counter
+	 * @param line	The index of the line whose frame is entered or -1 if no line frame has been entered
+	 * @return	The index of the line of the opcode
+	 */
+	int enter(Plan plan, int pc, int line) {
+		int l = plan.lines[pc];
+		if (l != line) {
+			if (line >= 0) exit();
+			enter(plan.lineNames[l]);
+		}
+		enter(plan.parts[pc]);
+		return l;
+	}
+
+	/**
+	 * Exit the current frame adding the time since it was entered to its total
+	 */
+	void exit() {
+		current.total += System.nanoTime() - starts[--depth];
+		current = current.parent;
+	}
+
+	/**
+	 * Exit frames until the given depth is reached, which exits the frames left entered when writing fails
+	 * @param to	The depth to return to
+	 */
+	void unwind(int to) {
+		while (depth > to) exit();
+	}
+
+}
@@ -33,10 +33,15 @@ public class StringPart extends AbstractPart implements Part {
 		this.value = clone.value;
 	}
 	
+	/**
+	 * Get the static string value of this part
+	 * @return	The string value of this part
+	 */
+	String value() { return value; }
+	
 	@Override
 	public Writer write(int indent, Writer out, ProformaOutput<?> po) throws IOException {
 		out.write(value);
-		if (po.autoFlush()) out.flush();
 		return out;
 	}
 
@@ -0,0 +1,417 @@
+package com.k2.Proforma;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.nio.file.attribute.FileTime;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.stream.Stream;
+
+/**
+ * A template cache is a proforma library of proformas parsed from template files in a directory
+ *
+ * The proforma with a given name is parsed by the ProformaParser from the file with that name and the template extension in the
+ * directory of the cache. Names may contain / to find templates in sub directories, but names of files outside the directory of the
+ * cache, such as absolute paths or names climbing out of it through .., are rejected. Proformas embedded in a template with ${@name}
+ * are found in the same cache, so templates may embed each other and themselves. Names for which there is no template file are looked
+ * up in the included libraries in the order in which they were included.
+ *
+ * Parsed proformas are frozen and cached against the path of their template file, together with the modification time and size of
+ * the template file and of every template file embedded in it. A cached proforma is returned for as long as none of those files has
+ * changed, so each template is parsed once for each change. Checking a cached proforma reads the attributes of its files but not
+ * their contents. The absence of a template file is cached in the same way, so names found in the included libraries are looked
+ * up there without parsing until a template file with that name is created, and templates embedding them are then parsed again.
+ *
+ * Cached proformas are found without locking. Templates are parsed by one thread at a time so that templates embedding each other
+ * are parsed together.
+ *
+ * @author simon
+ *
+ */
+public class TemplateCache implements ProformaLibrary {
+
+	/**
+	 * The extension of template files unless another is given
+	 */
+	public static final String DEFAULT_EXTENSION = ".proforma";
+
+	private static final ProformaLibrary[] NONE = new ProformaLibrary[0];
+
+	private final Path directory;
+	/**
+	 * The absolute and normalised directory within which every template file must be found
+	 */
+	private final Path root;
+	private final String extension;
+	private final Charset charset;
+	/**
+	 * The cached proformas indexed by the path of their template file
+	 */
+	private final ConcurrentHashMap<Path, Entry> entries = new ConcurrentHashMap<Path, Entry>();
+	/**
+	 * The included libraries in the order in which they were included. The array is never changed once assigned
+	 */
+	private volatile ProformaLibrary[] included = NONE;
+	/**
+	 * The number of template files parsed by this cache
+	 */
+	private volatile long parsed = 0;
+
+	/**
+	 * Create a template cache for the UTF-8 template files with the default extension in the given directory
+	 * @param directory	The directory holding the template files
+	 */
+	public TemplateCache(Path directory) {
+		this(directory, DEFAULT_EXTENSION, StandardCharsets.UTF_8);
+	}
+
+	/**
+	 * Create a template cache for the template files with the given extension and character set in the given directory
+	 * @param directory	The directory holding the template files
+	 * @param extension	The extension of the template files, including any leading dot
+	 * @param charset	The character set in which the template files are encoded
+	 */
+	public TemplateCache(Path directory, String extension, Charset charset) {
+		if (directory == null) throw new ProformaError("A template cache needs a directory");
+		this.directory = directory;
+		this.root = directory.toAbsolutePath().normalize();
+		this.extension = (extension == null) ? "" : extension;
+		this.charset = (charset == null) ? StandardCharsets.UTF_8 : charset;
+	}
+
+	/**
+	 * Get the directory holding the template files of this cache
+	 * @return	The directory
+	 */
+	public Path getDirectory() { return directory; }
+
+	/**
+	 * Get the proforma with the given name parsing its template file if it has changed since it was last parsed
+	 * @param name	The name of the proforma
+	 * @return	The frozen proforma or null if there is no template file with the given name here or in the included libraries
+	 */
+	@Override
+	public Proforma getProforma(String name) {
+		Path path = path(name);
+		Entry entry = entries.get(path);
+		if (entry != null && entry.isCurrent()) return proforma(name, entry);
+		return load(name, path);
+	}
+
+	/**
+	 * Include the given libraries to provide proformas for names with no template file in the directory of this cache
+	 * @param libraries	The libraries to include
+	 */
+	@Override
+	public synchronized void include(ProformaLibrary ... libraries) {
+		ProformaLibrary[] grown = new ProformaLibrary[included.length + libraries.length];
+		System.arraycopy(included, 0, grown, 0, included.length);
+		int i = included.length;
+		for (ProformaLibrary library : libraries) {
+			if (library == null) throw new ProformaError("Unable to include a null library");
+			if (library == this) throw new ProformaError("Unable to include a template cache in itself");
+			grown[i++] = library;
+		}
+		included = grown;
+		// Proformas found in included libraries may now be found elsewhere
+		entries.clear();
+	}
+
+	/**
+	 * Get the proformas of every template file in the directory of this cache and its sub directories
+	 * @return	The proformas parsing any that have changed
+	 */
+	@Override
+	public Collection<Proforma> getAllProfomas() {
+		List<Proforma> all = new ArrayList<Proforma>();
+		for (String name : getNames()) {
+			Proforma proforma = getProforma(name);
+			if (proforma != null) all.add(proforma);
+		}
+		return all;
+	}
+
+	/**
+	 * Get the names of the template files in the directory of this cache and its sub directories
+	 * @return	The names of the templates
+	 */
+	public Collection<String> getNames() {
+		List<String> names = new ArrayList<String>();
+		if (!Files.isDirectory(directory)) return names;
+		try (Stream<Path> files = Files.walk(directory)) {
+			Iterator<Path> i = files.iterator();
+			while (i.hasNext()) {
+				Path file = i.next();
+				String relative = directory.relativize(file).toString().replace(file.getFileSystem().getSeparator(), "/");
+				if (relative.endsWith(extension) && relative.length() > extension.length() && Files.isRegularFile(file)) {
+					names.add(relative.substring(0, relative.length() - extension.length()));
+				}
+			}
+		} catch (IOException e) {
+			throw new ProformaError("Unable to list the templates in {}", e, directory);
+		}
+		return names;
+	}
+
+	/**
+	 * Discard every cached proforma so that each template is parsed again when it is next requested
+	 */
+	public void clear() {
+		entries.clear();
+	}
+
+	/**
+	 * Get the number of template files parsed by this cache
+	 * @return	The number of templates parsed
+	 */
+	public long getParseCount() { return parsed; }
+
+	/**
+	 * Get the path of the template file with the given name, which must be within the directory of this cache
+	 */
+	private Path path(String name) {
+		if (name == null) throw new ProformaError("Unable to find a template without a name");
+		Path path = root.resolve(name + extension).normalize();
+		if (!path.startsWith(root) || path.equals(root)) throw new ProformaError("The template name '{}' is outside the directory {}", name, directory);
+		return path;
+	}
+
+	/**
+	 * Parse the template with the given name and any templates embedded in it that have changed
+	 */
+	private synchronized Proforma load(String name, Path path) {
+		Entry entry = entries.get(path);
+		if (entry != null && entry.isCurrent()) return proforma(name, entry);
+		Session session = new Session();
+		Proforma proforma = session.getProforma(name);
+		session.publish();
+		return session.frozen(proforma);
+	}
+
+	/**
+	 * Get the proforma of the given current entry, finding it in the included libraries if the entry records that there is no
+	 * template file with the given name
+	 */
+	private Proforma proforma(String name, Entry entry) {
+		return (entry.proforma == null) ? fromIncluded(name) : entry.proforma;
+	}
+
+	/**
+	 * Find the proforma with the given name in the included libraries
+	 */
+	private Proforma fromIncluded(String name) {
+		for (ProformaLibrary library : included) {
+			Proforma proforma = library.getProforma(name);
+			if (proforma != null) return proforma;
+		}
+		return null;
+	}
+
+	/**
+	 * The modification time and size of a template file when it was parsed
+	 */
+	private static final class Stamp {
+		/**
+		 * The stamp of a template file that did not exist when it was looked up
+		 */
+		private static final Stamp MISSING = new Stamp(null, -1);
+
+		private final FileTime modified;
+		private final long size;
+
+		private Stamp(FileTime modified, long size) {
+			this.modified = modified;
+			this.size = size;
+		}
+
+		/**
+		 * Read the stamp of the given file
+		 * @return	The stamp or null if there is no such file
+		 */
+		private static Stamp of(Path path) {
+			try {
+				BasicFileAttributes attributes = Files.readAttributes(path, BasicFileAttributes.class);
+				if (!attributes.isRegularFile()) return null;
+				return new Stamp(attributes.lastModifiedTime(), attributes.size());
+			} catch (NoSuchFileException e) {
+				return null;
+			} catch (IOException e) {
+				throw new ProformaError("Unable to read the attributes of {}", e, path);
+			}
+		}
+
+		private boolean matches(Stamp other) {
+			if (this == MISSING) return other == null;
+			return other != null && size == other.size && modified.equals(other.modified);
+		}
+	}
+
+	/**
+	 * A cached proforma and the stamps of the template files from which it was parsed, or a null proforma and the missing stamp of a
+	 * template file that does not exist
+	 */
+	private static final class Entry {
+		private final Proforma proforma;
+		private final Map<Path, Stamp> files;
+
+		private Entry(Proforma proforma, Map<Path, Stamp> files) {
+			this.proforma = proforma;
+			this.files = files;
+		}
+
+		private boolean isCurrent() {
+			for (Map.Entry<Path, Stamp> file : files.entrySet()) {
+				if (!file.getValue().matches(Stamp.of(file.getKey()))) return false;
+			}
+			return true;
+		}
+	}
+
+	/**
+	 * A session parses a template and the changed templates embedded in it, which are found through the session while they are
+	 * parsed so that templates can embed each other. The proformas parsed by a session are frozen together once they are all parsed
+	 *
+	 * Each parsed template is cached against the stamps of its own file and of the files of the templates embedded in it, directly or
+	 * indirectly, so that changing a template does not invalidate templates parsed in the same session that do not embed it. Templates
+	 * that embed each other, directly or through other templates, share a single set of stamps so that each depends on every file read
+	 * while any of them was parsed
+	 */
+	private final class Session implements ProformaLibrary {
+		private final Map<Path, Proforma> parsing = new LinkedHashMap<Path, Proforma>();
+		/**
+		 * The stamps of the files on which each parsed template depends indexed by the path of the template file
+		 */
+		private final Map<Path, Map<Path, Stamp>> dependencies = new HashMap<Path, Map<Path, Stamp>>();
+		/**
+		 * The stamps of the templates being parsed, innermost first, to which the files read are added. The templates of a cycle share
+		 * the same stamps so the same stamps may appear more than once
+		 */
+		private final ArrayDeque<Map<Path, Stamp>> stack = new ArrayDeque<Map<Path, Stamp>>();
+		private final Map<Proforma, Proforma> frozen = new IdentityHashMap<Proforma, Proforma>();
+
+		@Override
+		public Proforma getProforma(String name) {
+			Path path = path(name);
+			Proforma proforma = parsing.get(path);
+			if (proforma != null) {
+				Map<Path, Stamp> files = dependencies.get(path);
+				if (parsing(files)) {
+					join(files);
+				} else {
+					record(files);
+				}
+				return proforma;
+			}
+			Entry entry = entries.get(path);
+			if (entry != null && entry.isCurrent()) {
+				record(entry.files);
+				return proforma(name, entry);
+			}
+			// The stamp is read before the file so that a change made while it is read is seen when the proforma is next requested
+			Stamp stamp = Stamp.of(path);
+			if (stamp == null) {
+				// Templates embedding a name with no template file depend on its absence
+				Map<Path, Stamp> missing = Collections.singletonMap(path, Stamp.MISSING);
+				record(missing);
+				entries.put(path, new Entry(null, missing));
+				return fromIncluded(name);
+			}
+			Map<Path, Stamp> files = new HashMap<Path, Stamp>();
+			files.put(path, stamp);
+			record(files);
+			dependencies.put(path, files);
+			proforma = new Proforma(name);
+			parsing.put(path, proforma);
+			stack.push(files);
+			try (Reader in = Files.newBufferedReader(path, charset)) {
+				ProformaParser.parse(proforma, in, this);
+			} catch (IOException e) {
+				throw new ProformaError("Unable to read the template {}", e, path);
+			} finally {
+				stack.pop();
+			}
+			parsed++;
+			return proforma;
+		}
+
+		/**
+		 * Identify whether the given stamps are those of a template still being parsed
+		 */
+		private boolean parsing(Map<Path, Stamp> files) {
+			for (Map<Path, Stamp> parsed : stack) {
+				if (parsed == files) return true;
+			}
+			return false;
+		}
+
+		/**
+		 * Join the templates being parsed inside the template with the given stamps, which embed that template and so form a cycle
+		 * with it, to the stamps of that template. The stamps of every template inside it have already been added to its stamps
+		 */
+		private void join(Map<Path, Stamp> cycle) {
+			Map<Map<Path, Stamp>, Boolean> inner = new IdentityHashMap<Map<Path, Stamp>, Boolean>();
+			int joined = 0;
+			while (stack.peek() != cycle) {
+				Map<Path, Stamp> files = stack.pop();
+				cycle.putAll(files);
+				inner.put(files, Boolean.TRUE);
+				joined++;
+			}
+			for (Map.Entry<Path, Map<Path, Stamp>> template : dependencies.entrySet()) {
+				if (inner.containsKey(template.getValue())) template.setValue(cycle);
+			}
+			for (int i=0; i<joined; i++) stack.push(cycle);
+		}
+
+		/**
+		 * Add the given stamps to every template being parsed
+		 */
+		private void record(Map<Path, Stamp> files) {
+			for (Map<Path, Stamp> parsed : stack) {
+				if (parsed != files) parsed.putAll(files);
+			}
+		}
+
+		/**
+		 * Freeze the parsed proformas and cache each against the stamps of the files on which it depends
+		 */
+		private void publish() {
+			for (Map.Entry<Path, Proforma> p : parsing.entrySet()) {
+				entries.put(p.getKey(), new Entry(frozen(p.getValue()), dependencies.get(p.getKey())));
+			}
+		}
+
+		/**
+		 * Get the frozen copy of the given proforma if it was parsed by this session. Proformas from included libraries are returned as they are
+		 */
+		private Proforma frozen(Proforma proforma) {
+			return (proforma == null || !parsing.containsValue(proforma)) ? proforma : proforma.freeze(frozen);
+		}
+
+		@Override
+		public void include(ProformaLibrary... libraries) {
+			throw new ProformaError("Unable to include libraries while templates are parsed");
+		}
+
+		@Override
+		public Collection<Proforma> getAllProfomas() {
+			return parsing.values();
+		}
+	}
+
+}
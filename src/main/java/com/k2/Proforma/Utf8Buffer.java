@@ -0,0 +1,218 @@
+package com.k2.Proforma;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * The UTF-8 buffer is the reusable byte buffer into which proformas are written when the output is to be encoded as UTF-8
+ *
+ * Literals of compiled proformas are encoded once when the proforma is compiled and copied into the buffer as bytes. The indent
+ * string and carriage return are encoded once and the encoded bytes reused while they remain unchanged. Everything else, typically
+ * the values of parameters, is written as characters which are encoded directly into the buffer.
+ *
+ * Unpaired surrogates are replaced by '?' as they are by the UTF-8 charset encoder.
+ *
+ * The buffer is drained to an encoding sink which receives the bytes without encoding them again.
+ *
+ * @author simon
+ *
+ */
+class Utf8Buffer extends RenderBuffer {
+
+	private final byte[] buf;
+	private int pos = 0;
+	private EncodingSink sink;
+	/**
+	 * A high surrogate waiting for the low surrogate that follows it
+	 */
+	private char high = 0;
+
+	private String indent;
+	private byte[] indentBytes;
+	private String cr;
+	private byte[] crBytes;
+
+	/**
+	 * Create a UTF-8 buffer of the given size
+	 * @param size	The number of bytes the buffer holds before it is drained
+	 */
+	Utf8Buffer(int size) {
+		this.buf = new byte[size];
+	}
+
+	@Override
+	Utf8Buffer reset(OutputSink sink) {
+		this.sink = (EncodingSink)sink;
+		this.pos = 0;
+		this.count = 0;
+		this.flushed = 0;
+		this.high = 0;
+		return this;
+	}
+
+	/**
+	 * Write pre-encoded bytes into this buffer
+	 * @param bytes	The UTF-8 encoded bytes
+	 * @throws IOException	If the buffer cannot be drained
+	 */
+	void write(byte[] bytes) throws IOException {
+		if (high != 0) unpaired();
+		count += bytes.length;
+		int off = 0;
+		int len = bytes.length;
+		while (len > 0) {
+			if (pos == buf.length) drainBuffer();
+			int n = Math.min(len, buf.length - pos);
+			System.arraycopy(bytes, off, buf, pos, n);
+			pos += n;
+			off += n;
+			len -= n;
+		}
+	}
+
+	/**
+	 * Write the given indent string, reusing its encoded bytes if it is the indent string last written
+	 * @param indent	The indent string
+	 * @throws IOException	If the buffer cannot be drained
+	 */
+	void writeIndent(String indent) throws IOException {
+		if (indent != this.indent) {
+			this.indentBytes = indent.getBytes(StandardCharsets.UTF_8);
+			this.indent = indent;
+		}
+		write(indentBytes);
+	}
+
+	/**
+	 * Write the given carriage return, reusing its encoded bytes if it is the carriage return last written
+	 * @param cr	The carriage return
+	 * @throws IOException	If the buffer cannot be drained
+	 */
+	void writeCarriageReturn(String cr) throws IOException {
+		if (cr != this.cr) {
+			this.crBytes = cr.getBytes(StandardCharsets.UTF_8);
+			this.cr = cr;
+		}
+		write(crBytes);
+	}
+
+	@Override
+	public void write(int c) throws IOException {
+		encode((char)c);
+	}
+
+	@Override
+	public void write(String str) throws IOException {
+		write(str, 0, str.length());
+	}
+
+	@Override
+	public void write(String str, int off, int len) throws IOException {
+		int end = off + len;
+		while (off < end) {
+			// Copy runs of ASCII characters directly
+			while (high == 0 && off < end && pos < buf.length) {
+				char c = str.charAt(off);
+				if (c >= 0x80) break;
+				buf[pos++] = (byte)c;
+				off++;
+				count++;
+			}
+			if (off < end) encode(str.charAt(off++));
+		}
+	}
+
+	@Override
+	public void write(char[] cbuf, int off, int len) throws IOException {
+		int end = off + len;
+		while (off < end) {
+			while (high == 0 && off < end && pos < buf.length) {
+				char c = cbuf[off];
+				if (c >= 0x80) break;
+				buf[pos++] = (byte)c;
+				off++;
+				count++;
+			}
+			if (off < end) encode(cbuf[off++]);
+		}
+	}
+
+	private void encode(char c) throws IOException {
+		if (high != 0) {
+			if (Character.isLowSurrogate(c)) {
+				int cp = Character.toCodePoint(high, c);
+				high = 0;
+				ensure(4);
+				buf[pos++] = (byte)(0xF0 | (cp >> 18));
+				buf[pos++] = (byte)(0x80 | ((cp >> 12) & 0x3F));
+				buf[pos++] = (byte)(0x80 | ((cp >> 6) & 0x3F));
+				buf[pos++] = (byte)(0x80 | (cp & 0x3F));
+				count += 4;
+				return;
+			}
+			unpaired();
+		}
+		if (c < 0x80) {
+			ensure(1);
+			buf[pos++] = (byte)c;
+			count++;
+		} else if (c < 0x800) {
+			ensure(2);
+			buf[pos++] = (byte)(0xC0 | (c >> 6));
+			buf[pos++] = (byte)(0x80 | (c & 0x3F));
+			count += 2;
+		} else if (Character.isHighSurrogate(c)) {
+			high = c;
+		} else if (Character.isLowSurrogate(c)) {
+			ensure(1);
+			buf[pos++] = '?';
+			count++;
+		} else {
+			ensure(3);
+			buf[pos++] = (byte)(0xE0 | (c >> 12));
+			buf[pos++] = (byte)(0x80 | ((c >> 6) & 0x3F));
+			buf[pos++] = (byte)(0x80 | (c & 0x3F));
+			count += 3;
+		}
+	}
+
+	/**
+	 * Replace a high surrogate that is not followed by a low surrogate
+	 */
+	private void unpaired() throws IOException {
+		high = 0;
+		ensure(1);
+		buf[pos++] = '?';
+		count++;
+	}
+
+	private void ensure(int n) throws IOException {
+		if (pos + n > buf.length) drainBuffer();
+	}
+
+	private void drainBuffer() throws IOException {
+		if (pos > 0) sink.write(buf, 0, pos);
+		pos = 0;
+	}
+
+	/**
+	 * Drain all the bytes in this buffer to the sink replacing any unpaired high surrogate at the end of the output
+	 */
+	@Override
+	void drain() throws IOException {
+		if (high != 0) unpaired();
+		drainBuffer();
+	}
+
+	/**
+	 * Drain this buffer and flush the sink
+	 */
+	@Override
+	public void flush() throws IOException {
+		drain();
+		sink.flush();
+		flushed += count;
+		count = 0;
+	}
+
+}
@@ -0,0 +1,197 @@
+package com.k2.Proforma;
+
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.lang.reflect.Field;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * A value accessor reads the value for a parameter alias from a value source object of a specific class
+ *
+ * Accessors are resolved once for each combination of value source class and alias and cached thereafter. An accessor reads the
+ * field that the parameter evaluator would read, the field declared with the same name as the alias by the class of the value source
+ * or the nearest of its superclasses, through a method handle bound to that field.
+ *
+ * Fields of type int, long, short or byte can also be read as a long, and those of type double as a double, without boxing their values.
+ *
+ * @author simon
+ *
+ */
+abstract class ValueAccessor {
+
+	/**
+	 * The value is read as an object
+	 */
+	static final int OBJECT = 0;
+	/**
+	 * The value is integral and can be read as a long without boxing
+	 */
+	static final int LONG = 1;
+	/**
+	 * The value is a double and can be read as a double without boxing
+	 */
+	static final int DOUBLE = 2;
+
+	/**
+	 * Marks a combination of class and alias for which no accessor can be bound
+	 */
+	private static final ValueAccessor NONE = new ValueAccessor() {
+		@Override
+		Object get(Object source) { return null; }
+	};
+
+	/**
+	 * The accessors bound for each value source class indexed by alias
+	 */
+	private static final ClassValue<ConcurrentMap<String, ValueAccessor>> ACCESSORS = new ClassValue<ConcurrentMap<String, ValueAccessor>>() {
+		@Override
+		protected ConcurrentMap<String, ValueAccessor> computeValue(Class<?> type) {
+			return new ConcurrentHashMap<String, ValueAccessor>();
+		}
+	};
+
+	/**
+	 * Read the value from the given source
+	 * @param source		The value source object
+	 * @return		The value read from the source
+	 */
+	abstract Object get(Object source);
+
+	/**
+	 * Get how the value can be read from the source
+	 * @return	OBJECT, LONG or DOUBLE
+	 */
+	int kind() { return OBJECT; }
+
+	/**
+	 * Read an integral value from the given source. Only call this method if the kind of this accessor is LONG
+	 * @param source		The value source object
+	 * @return		The value read from the source
+	 */
+	long getLong(Object source) { return ((Number)get(source)).longValue(); }
+
+	/**
+	 * Read a double value from the given source. Only call this method if the kind of this accessor is DOUBLE
+	 * @param source		The value source object
+	 * @return		The value read from the source
+	 */
+	double getDouble(Object source) { return ((Number)get(source)).doubleValue(); }
+
+	/**
+	 * Get the accessor for the given alias on instances of the given class
+	 * @param cls		The class of the value source
+	 * @param alias		The alias of the parameter
+	 * @return		The accessor or null if no field can be found for the alias
+	 */
+	static ValueAccessor of(Class<?> cls, String alias) {
+		ConcurrentMap<String, ValueAccessor> accessors = ACCESSORS.get(cls);
+		ValueAccessor accessor = accessors.get(alias);
+		if (accessor == null) {
+			accessor = bind(cls, alias);
+			ValueAccessor existing = accessors.putIfAbsent(alias, accessor);
+			if (existing != null) accessor = existing;
+		}
+		return (accessor == NONE) ? null : accessor;
+	}
+
+	private static ValueAccessor bind(Class<?> cls, String alias) {
+		if (alias == null || alias.isEmpty()) return NONE;
+		Field field = field(cls, alias);
+		if (field != null) {
+			ValueAccessor accessor = handle(field);
+			if (accessor != null) return accessor;
+		}
+		return NONE;
+	}
+
+	private static Field field(Class<?> cls, String alias) {
+		for (Class<?> c = cls; c != null; c = c.getSuperclass()) {
+			try {
+				return c.getDeclaredField(alias);
+			} catch (NoSuchFieldException e) {}
+		}
+		return null;
+	}
+
+	/**
+	 * Get how values of the given type can be read
+	 * @param type	The type of a field
+	 * @return	OBJECT, LONG or DOUBLE
+	 */
+	private static int kind(Class<?> type) {
+		if (type == int.class || type == long.class || type == short.class || type == byte.class) return LONG;
+		if (type == double.class) return DOUBLE;
+		return OBJECT;
+	}
+
+	/**
+	 * Bind a field to a method handle
+	 * @param field		The field
+	 * @return		The accessor or null if the field is not accessible
+	 */
+	private static ValueAccessor handle(Field field) {
+		try {
+			field.setAccessible(true);
+			return handle(MethodHandles.lookup().unreflectGetter(field));
+		} catch (Exception e) {
+			return null;
+		}
+	}
+
+	private static ValueAccessor handle(MethodHandle handle) {
+		final MethodHandle getter = handle.asType(MethodType.methodType(Object.class, Object.class));
+		switch (kind(handle.type().returnType())) {
+		case LONG:
+			final MethodHandle longGetter = handle.asType(MethodType.methodType(long.class, Object.class));
+			return new HandleAccessor(getter) {
+				@Override
+				int kind() { return LONG; }
+				@Override
+				long getLong(Object source) {
+					try {
+						return (long)longGetter.invokeExact(source);
+					} catch (Throwable e) {
+						throw new ProformaError("Unable to read value from {}, message {}", e, source, e.getMessage());
+					}
+				}
+			};
+		case DOUBLE:
+			final MethodHandle doubleGetter = handle.asType(MethodType.methodType(double.class, Object.class));
+			return new HandleAccessor(getter) {
+				@Override
+				int kind() { return DOUBLE; }
+				@Override
+				double getDouble(Object source) {
+					try {
+						return (double)doubleGetter.invokeExact(source);
+					} catch (Throwable e) {
+						throw new ProformaError("Unable to read value from {}, message {}", e, source, e.getMessage());
+					}
+				}
+			};
+		default:
+			return new HandleAccessor(getter);
+		}
+	}
+
+	/**
+	 * An accessor reading values through a method handle
+	 */
+	private static class HandleAccessor extends ValueAccessor {
+		private final MethodHandle getter;
+		private HandleAccessor(MethodHandle getter) {
+			this.getter = getter;
+		}
+		@Override
+		Object get(Object source) {
+			try {
+				return (Object)getter.invokeExact(source);
+			} catch (Throwable e) {
+				throw new ProformaError("Unable to read value from {}, message {}", e, source, e.getMessage());
+			}
+		}
+	}
+
+}
@@ -0,0 +1,83 @@
+package com.k2.Proforma;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.time.format.DateTimeFormatter;
+import java.time.temporal.TemporalAccessor;
+
+/**
+ * A value formatter writes the values of parameters directly to the output buffer of a proforma
+ *
+ * By default the value of a parameter is converted to a string which is then written. A value formatter instead appends the characters
+ * of the value to the writer it is given, which is the buffer into which the proforma is being written, so that no intermediate string
+ * need be created.
+ *
+ * A value formatter can be attached to a parameter through its formatWith(...) method or registered for a type of value on a proforma
+ * output through its setFormatter(...) method. A formatter attached to the parameter takes precedence over one registered for the type
+ * of the value. Formatters registered for a type also apply to values of its subclasses and implementations. Each element of a value
+ * that is a collection, iterable, iterator, stream or spliterator is formatted in turn. Null values are not formatted.
+ *
+ * Value formatters may be called by several threads at once, when proformas are written concurrently or collections written in
+ * parallel, and so must be thread safe.
+ *
+ * @author simon
+ *
+ * @param <T>	The type of the values formatted
+ */
+public interface ValueFormatter<T> {
+
+	/**
+	 * Write the given value to the given writer
+	 * @param value	The value, never null
+	 * @param out	The writer on which to write the value
+	 * @throws IOException	If the writer throws an IOException
+	 */
+	public void format(T value, Writer out) throws IOException;
+
+	/**
+	 * Create a value formatter writing dates and times with the given date time formatter
+	 * @param formatter	The date time formatter
+	 * @return	A value formatter appending the formatted temporal to the writer
+	 * @param <T>	The type of the temporal values
+	 */
+	public static <T extends TemporalAccessor> ValueFormatter<T> of(final DateTimeFormatter formatter) {
+		return new ValueFormatter<T>() {
+			@Override
+			public void format(T value, Writer out) {
+				formatter.formatTo(value, out);
+			}
+		};
+	}
+
+	/**
+	 * Create a value formatter writing the digits of int, long, short, byte and double values without creating a string for them
+	 * 
+	 * Other numbers are written as strings
+	 * 
+	 * @return	A value formatter for numbers
+	 */
+	public static ValueFormatter<Number> decimal() {
+		return new ValueFormatter<Number>() {
+			@Override
+			public void format(Number value, Writer out) throws IOException {
+				DecimalFormatter.write(value, out);
+			}
+		};
+	}
+
+	/**
+	 * Create a value formatter caching the output of the given formatter for each value
+	 * 
+	 * The cached output is written whenever an equal value is formatted again so the values must be immutable and implement equals()
+	 * and hashCode() by value. Once the given number of values are cached further values are formatted each time they are written.
+	 * 
+	 * @param formatter		The formatter whose output is cached
+	 * @param maxEntries		The maximum number of values for which output is cached
+	 * @return	A value formatter caching the output of the given formatter
+	 * @param <T>	The type of the values formatted
+	 */
+	public static <T> ValueFormatter<T> cached(ValueFormatter<T> formatter, int maxEntries) {
+		return new CachingFormatter<T>(formatter, maxEntries);
+	}
+
+}
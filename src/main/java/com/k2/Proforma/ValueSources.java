@@ -0,0 +1,71 @@
+package com.k2.Proforma;
+
+import java.nio.file.Path;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.Spliterator;
+import java.util.Spliterators;
+import java.util.stream.BaseStream;
+
+/**
+ * Value sources identifies values holding a sequence of value sources and iterates over them
+ *
+ * Collections, other iterables, iterators, streams and spliterators are sequences of value sources. Paths, although iterable, are not.
+ * Elements are taken from the sequence one at a time as they are written so iterators, streams and spliterators are never materialised
+ * into a collection and the memory used to write them does not grow with the number of elements. Iterators, streams and spliterators can only be iterated once so a proforma
+ * output created with one can only be written once. Streams are closed once they have been written.
+ *
+ * @author simon
+ *
+ */
+final class ValueSources {
+
+	private ValueSources() {}
+
+	/**
+	 * Identify whether the given value is a sequence of value sources
+	 * @param value	The value
+	 * @return	True if the value is a collection, iterable, iterator, stream or spliterator
+	 */
+	static boolean isSequence(Object value) {
+		// Paths are iterable over the names of their elements but are written as values
+		return (value instanceof Iterable && !(value instanceof Path)) || value instanceof Iterator || value instanceof BaseStream || value instanceof Spliterator;
+	}
+
+	/**
+	 * Get an iterator over the given sequence of value sources
+	 * @param value	The sequence of value sources
+	 * @return	An iterator over the value sources or null if the value is not a sequence of value sources
+	 */
+	static Iterator<?> iterator(Object value) {
+		if (value instanceof Path) return null;
+		if (value instanceof Iterable) return ((Iterable<?>)value).iterator();
+		if (value instanceof Iterator) return (Iterator<?>)value;
+		if (value instanceof BaseStream) return ((BaseStream<?,?>)value).iterator();
+		if (value instanceof Spliterator) return Spliterators.iterator((Spliterator<?>)value);
+		return null;
+	}
+
+	/**
+	 * Get the number of value sources in the given sequence if it is known without iterating the sequence
+	 * @param value	The sequence of value sources
+	 * @return	The number of value sources or -1 if it is not known
+	 */
+	static int size(Object value) {
+		if (value instanceof Collection) return ((Collection<?>)value).size();
+		if (value instanceof Spliterator && ((Spliterator<?>)value).hasCharacteristics(Spliterator.SIZED)) {
+			long size = ((Spliterator<?>)value).getExactSizeIfKnown();
+			return (size > Integer.MAX_VALUE) ? Integer.MAX_VALUE : (int)size;
+		}
+		return -1;
+	}
+
+	/**
+	 * Release the given sequence of value sources once it has been written, closing it if it is a stream
+	 * @param value	The sequence of value sources
+	 */
+	static void release(Object value) {
+		if (value instanceof BaseStream) ((BaseStream<?,?>)value).close();
+	}
+
+}
@@ -0,0 +1,40 @@
+package com.k2.Proforma;
+
+import java.io.IOException;
+import java.io.Writer;
+
+/**
+ * An output sink writing to a writer
+ * 
+ * @author simon
+ *
+ */
+class WriterSink implements OutputSink {
+	
+	private Writer out;
+	
+	WriterSink(Writer out) {
+		this.out = out;
+	}
+	
+	/**
+	 * Direct this sink to the given writer
+	 * @param out	The writer
+	 * @return	This sink for method chaining
+	 */
+	WriterSink reset(Writer out) {
+		this.out = out;
+		return this;
+	}
+
+	@Override
+	public void write(char[] chars, int off, int len) throws IOException {
+		out.write(chars, off, len);
+	}
+
+	@Override
+	public void flush() throws IOException {
+		out.flush();
+	}
+
+}
@@ -2,17 +2,42 @@ package com.k2.Proforma;
 
 import static org.junit.Assert.*;
 
+import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.io.PrintWriter;
 import java.io.StringWriter;
+import java.io.Writer;
 import java.lang.invoke.MethodHandles;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.channels.Channels;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.FileTime;
+import java.time.LocalDate;
+import java.time.format.DateTimeFormatter;
+import java.util.Arrays;
 import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.Random;
 import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.stream.Stream;
 
 import org.junit.Test;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import com.k2.Expressions.Evaluator;
+import com.k2.Expressions.expression.K2Expression;
 import com.k2.Expressions.expression.K2ParameterExpression;
 import com.k2.Util.CallBack;
 
@@ -559,4 +584,1344 @@ public class ProformaTest {
 	}
 
 
+	@Test
+	public void compileTest() throws IOException {
+		
+		Proforma proforma = new Proforma()
+				.add("This ", "is ", "merged")
+				.addIf(Proforma.param(Boolean.class, "if"), "This ", Proforma.param(String.class, "p1"), " is conditional");
+		
+		CompiledProforma compiled = proforma.compile();
+		
+		// INDENT, LITERAL, CR, IF, INDENT, LITERAL, PARAMETER, LITERAL, CR
+		assertEquals(9, compiled.size());
+		assertSame(compiled, proforma.compile());
+		
+		StringWriter sw = new StringWriter();
+		compiled.write(1, sw, proforma.set(Boolean.class, "if", true).set(String.class, "p1", "line"));
+		
+		assertEquals("  This is merged\n  This line is conditional\n", sw.toString());
+		
+		proforma.add("Another line");
+		
+		assertNotSame(compiled, proforma.compile());
+		assertEquals(3, proforma.compile().lineCount());
+		
+	}
+
+	@Test
+	public void frameReuseTest() throws IOException {
+		
+		List<Foo> fooList = new ArrayList<Foo>();
+		for (int i=1; i<=3; i++) {
+			fooList.add(new Foo(i, "Foo "+i, "Foo", new Too(i, "Too "+i)).add(new Bar(1, "Bar 1")).add(new Bar(2, "Bar 2")));
+		}
+		
+		ProformaOutput<?> po = fooProformaWithDrillDown.with(fooList).setIndent("\t");
+		
+		StringWriter sw1 = new StringWriter();
+		po.write(sw1);
+		StringWriter sw2 = new StringWriter();
+		po.write(sw2);
+		
+		assertEquals(sw1.toString(), sw2.toString());
+		assertTrue(sw1.toString().contains("\tName: Too 3\n"));
+		// The too and bars proformas are written at the same depth and so share a single frame
+		assertEquals(1, po.context().size());
+		
+	}
+
+	public static class Baz {
+		private String name;
+		String description = "field";
+		public Baz(String name) { this.name = name; }
+		public String getName() { return "Getter "+name; }
+	}
+	
+	@Test
+	public void accessorTest() throws IOException {
+		
+		Parameter<String> name = Proforma.param(String.class, "name");
+		Proforma proforma = new Proforma()
+				.add(name, " ", Proforma.param(String.class, "description"));
+		
+		StringWriter sw = new StringWriter();
+		proforma.with(new Baz("one")).write(sw);
+		proforma.with(new Baz("two")).set(String.class, "description", "set").write(sw);
+		
+		// Values are read from the fields of the value source as the parameter evaluator reads them, not from getters
+		assertEquals("one field\ntwo set\n", sw.toString());
+		
+		// A value explicitly set to null takes precedence over the value source
+		sw = new StringWriter();
+		proforma.with(new Baz("three")).set(String.class, "name", null).write(sw);
+		assertEquals(proforma.set(String.class, "name", null).set(String.class, "description", "field").write(new StringWriter()).toString(), sw.toString());
+		assertFalse(sw.toString().contains("three"));
+		assertNotNull(name.accessor(Baz.class));
+		assertSame(name.accessor(Baz.class), ValueAccessor.of(Baz.class, "name"));
+		assertNull(ValueAccessor.of(Baz.class, "missing"));
+		
+	}
+
+	class FlushCountingWriter extends StringWriter {
+		int flushes = 0;
+		@Override
+		public void flush() {
+			flushes++;
+			super.flush();
+		}
+	}
+	
+	@Test
+	public void flushPolicyTest() throws IOException {
+		
+		List<Foo> fooList = new ArrayList<Foo>();
+		for (int i=1; i<=3; i++) {
+			fooList.add(new Foo(i, "Foo "+i, "Foo", new Too(i, "Too "+i)).add(new Bar(1, "Bar 1")));
+		}
+		
+		FlushCountingWriter never = new FlushCountingWriter();
+		fooProformaWithDrillDown.with(fooList).setFlushPolicy(FlushPolicy.NEVER).write(never);
+		assertEquals(0, never.flushes);
+		
+		// 5 top level lines for each of the 3 foos and once at the end
+		FlushCountingWriter line = new FlushCountingWriter();
+		fooProformaWithDrillDown.with(fooList).setAutoFlush(true).write(line);
+		assertEquals(16, line.flushes);
+		assertEquals(never.toString(), line.toString());
+		
+		// Once for each foo but not for their bars and once at the end
+		FlushCountingWriter element = new FlushCountingWriter();
+		fooProformaWithDrillDown.with(fooList).setFlushPolicy(FlushPolicy.ELEMENT).write(element);
+		assertEquals(4, element.flushes);
+		
+		FlushCountingWriter chars = new FlushCountingWriter();
+		fooProformaWithDrillDown.with(fooList).setFlushPolicy(FlushPolicy.everyChars(100)).write(chars);
+		assertTrue(chars.flushes > 1);
+		assertTrue(chars.flushes < never.toString().length()/100 + 2);
+		
+	}
+
+	@Test
+	public void sinkTest() throws IOException {
+		
+		Charset utf8 = Charset.forName("UTF-8");
+		Proforma proforma = new Proforma()
+				.add("Caf\u00e9 ", Proforma.param(String.class, "p1"), " \ud83d\ude00");
+		String expected = "Caf\u00e9 value \ud83d\ude00\n";
+		
+		StringBuilder sb = proforma.set(String.class, "p1", "value").write(new StringBuilder());
+		assertEquals(expected, sb.toString());
+		
+		ByteArrayOutputStream stream = new ByteArrayOutputStream();
+		proforma.set(String.class, "p1", "value").write(stream, utf8);
+		assertEquals(expected, new String(stream.toByteArray(), utf8));
+		
+		ByteArrayOutputStream channel = new ByteArrayOutputStream();
+		proforma.set(String.class, "p1", "value").write(Channels.newChannel(channel), utf8);
+		assertEquals(expected, new String(channel.toByteArray(), utf8));
+		
+		ByteBuffer buffer = proforma.set(String.class, "p1", "value").write(ByteBuffer.allocate(64), utf8);
+		assertEquals(expected, new String(buffer.array(), 0, buffer.position(), utf8));
+		
+		try {
+			proforma.set(String.class, "p1", "value").write(ByteBuffer.allocate(4), utf8);
+			fail("Expected the byte buffer to overflow");
+		} catch (ProformaError e) {}
+		
+	}
+	
+	@Test
+	public void largeOutputTest() throws IOException {
+		
+		// Each line is 6 characters so surrogate pairs fall across the 8192 character blocks of the output buffer
+		Proforma proforma = new Proforma();
+		StringBuilder expected = new StringBuilder();
+		for (int i=0; i<5000; i++) {
+			proforma.add("\ud83d\ude00", i%10, "\ud83d\ude01");
+			expected.append("\ud83d\ude00").append(i%10).append("\ud83d\ude01\n");
+		}
+		
+		Charset utf8 = Charset.forName("UTF-8");
+		ByteArrayOutputStream stream = new ByteArrayOutputStream();
+		proforma.setCarriageReturn("\n").write(stream, utf8);
+		assertEquals(expected.toString(), new String(stream.toByteArray(), utf8));
+		
+		StringWriter sw = new StringWriter();
+		proforma.setCarriageReturn("\n").write(sw);
+		assertEquals(expected.toString(), sw.toString());
+		
+	}
+
+	@Test
+	public void utf8Test() throws IOException {
+		
+		Charset utf8 = Charset.forName("UTF-8");
+		Proforma proforma = new Proforma()
+				.add("\u00a3 ", Proforma.param(String.class, "p1"), " \u20ac")
+				.add(Proforma.indent(), Proforma.param(String.class, "p2"));
+		
+		String value = "a\u00e9\u4e2d\ud83d\ude00\ud83db\ude00";
+		String expected = proforma.set(String.class, "p1", value).set(String.class, "p2", "\ud83d").setIndent("\u00b7").write(1, new StringWriter()).toString();
+		
+		ByteArrayOutputStream stream = new ByteArrayOutputStream();
+		proforma.set(String.class, "p1", value).set(String.class, "p2", "\ud83d").setIndent("\u00b7").write(1, OutputSink.of(stream, utf8));
+		assertArrayEquals(expected.getBytes(utf8), stream.toByteArray());
+		
+		Charset latin1 = Charset.forName("ISO-8859-1");
+		ByteArrayOutputStream latin = new ByteArrayOutputStream();
+		proforma.set(String.class, "p1", value).set(String.class, "p2", "\ud83d").setIndent("\u00b7").write(1, OutputSink.of(latin, latin1));
+		assertArrayEquals(expected.getBytes(latin1), latin.toByteArray());
+		
+	}
+
+	@Test
+	public void libraryTest() throws Exception {
+		
+		Proforma a = new Proforma("a").add("A");
+		Proforma b = new Proforma("b").add("B");
+		Proforma common = new Proforma("b").add("Common B");
+		
+		ConcurrentProformaLibrary base = new ConcurrentProformaLibrary(common, new Proforma("c").add("C"));
+		final ConcurrentProformaLibrary library = new ConcurrentProformaLibrary(a, b);
+		library.include(base);
+		
+		assertSame(a, library.getProforma("a"));
+		assertSame(b, library.getProforma("b"));
+		assertEquals("C\n", library.getProforma("c").setCarriageReturn("\n").write(new StringWriter()).toString());
+		assertNull(library.getProforma("d"));
+		assertEquals(2, library.getAllProfomas().size());
+		
+		// Changes to an included library are seen through the cache of the including library
+		Proforma c2 = new Proforma("c").add("C2");
+		base.add(c2);
+		assertSame(c2, library.getProforma("c"));
+		library.remove("b");
+		assertSame(common, library.getProforma("b"));
+		
+		try {
+			base.include(library);
+			fail("Including a library that includes this library should fail");
+		} catch (ProformaError e) {}
+		
+		final int threads = 8;
+		final AtomicInteger found = new AtomicInteger();
+		final CountDownLatch done = new CountDownLatch(threads);
+		for (int t=0; t<threads; t++) {
+			new Thread(new Runnable() {
+				@Override
+				public void run() {
+					for (int i=0; i<10000; i++) {
+						if (library.getProforma("a") != null && library.getProforma("c") != null) found.incrementAndGet();
+					}
+					done.countDown();
+				}
+			}).start();
+		}
+		done.await();
+		assertEquals(threads*10000, found.get());
+		
+	}
+
+	@Test
+	public void freezeTest() throws Exception {
+		
+		final Proforma frozen = new Proforma("foo")
+				.add("ID: ", Proforma.param(Integer.class, "id"))
+				.add("Name: ", Proforma.param(String.class, "name"), Proforma.includeIf("verbose", " (verbose)"))
+				.addIf(Proforma.param(Boolean.class, "verbose"), "Description: ", Proforma.param(String.class, "description"))
+				.add("Bars: ", barProforma.with(Proforma.param(List.class, "bars")))
+				.freeze();
+		
+		assertTrue(frozen.isFrozen());
+		assertSame(frozen, frozen.freeze());
+		assertTrue(frozen.with(Proforma.param(Foo.class, "foo")).isFrozen());
+		assertFalse(barProforma.isFrozen());
+		try {
+			frozen.add("More");
+			fail("Adding a line to a frozen proforma should fail");
+		} catch (ProformaError e) {}
+		try {
+			frozen.setEmbedded(true);
+			fail("Changing a frozen proforma should fail");
+		} catch (ProformaError e) {}
+		
+		// Each thread writes its own foo and checks it sees only its own values
+		final int threads = 16;
+		final List<Foo> foos = new ArrayList<Foo>();
+		final List<String> expected = new ArrayList<String>();
+		for (int t=0; t<threads; t++) {
+			Foo foo = new Foo(t, "Foo "+t, "Description "+t);
+			for (int b=0; b<t; b++) foo.add(new Bar(b, "Foo "+t+" Bar "+b));
+			foos.add(foo);
+			expected.add(frozen.with(foo).set(Boolean.class, "verbose", t%2 == 0).setCarriageReturn("\n").write(new StringWriter()).toString());
+		}
+		
+		final AtomicInteger failures = new AtomicInteger();
+		final CountDownLatch start = new CountDownLatch(1);
+		final CountDownLatch done = new CountDownLatch(threads);
+		for (int t=0; t<threads; t++) {
+			final int id = t;
+			new Thread(new Runnable() {
+				@Override
+				public void run() {
+					try {
+						start.await();
+						for (int i=0; i<2000; i++) {
+							String out = frozen.with(foos.get(id)).set(Boolean.class, "verbose", id%2 == 0).setCarriageReturn("\n").write(new StringWriter()).toString();
+							if (!expected.get(id).equals(out)) failures.incrementAndGet();
+						}
+					} catch (Throwable e) {
+						failures.incrementAndGet();
+					} finally {
+						done.countDown();
+					}
+				}
+			}).start();
+		}
+		start.countDown();
+		done.await();
+		assertEquals(0, failures.get());
+		
+	}
+
+	@Test
+	public void parallelTest() throws IOException {
+		
+		List<Foo> foos = new ArrayList<Foo>();
+		for (int f=0; f<5000; f++) {
+			Foo foo = new Foo(f, "Foo "+f, "Description "+f);
+			for (int b=0; b<f%4; b++) foo.add(new Bar(b, "Foo "+f+" Bar "+b));
+			foos.add(foo);
+		}
+		Proforma proforma = new Proforma()
+				.add("Header ", Proforma.param(String.class, "title"))
+				.add("Foos: ", fooProformaWithDrillDown.with(Proforma.param(List.class, "foos")));
+		
+		ForkJoinPool pool = new ForkJoinPool(4);
+		try {
+			String expected = proforma.set(List.class, "foos", foos).set(String.class, "title", "Parallel").write(new StringWriter()).toString();
+			String actual = proforma.set(List.class, "foos", foos).set(String.class, "title", "Parallel").setParallel(64, pool).write(new StringWriter()).toString();
+			assertEquals(expected, actual);
+			
+			// Collections that are not random access lists and value sources set on the proforma output
+			String expectedSources = new ProformaOutput<Foo>(fooProformaWithDrillDown, foos).write(new StringWriter()).toString();
+			String actualSources = new ProformaOutput<Foo>(fooProformaWithDrillDown, new LinkedList<Foo>(foos)).setParallel(100).write(new StringWriter()).toString();
+			assertEquals(expectedSources, actualSources);
+			
+			FlushCountingWriter fw = new FlushCountingWriter();
+			new ProformaOutput<Foo>(fooProformaWithDrillDown, foos).setParallel(1000, pool).setFlushPolicy(FlushPolicy.ELEMENT).write(fw);
+			assertEquals(expectedSources, fw.toString());
+			assertEquals(6, fw.flushes);
+		} finally {
+			pool.shutdown();
+		}
+		
+	}
+
+	@Test
+	public void streamingTest() throws IOException {
+		
+		List<Foo> foos = new ArrayList<Foo>();
+		for (int f=0; f<100; f++) foos.add(new Foo(f, "Foo "+f, "Description "+f).add(new Bar(f, "Bar "+f)));
+		String expected = new ProformaOutput<Foo>(fooProformaWithDrillDown, foos).write(new StringWriter()).toString();
+		
+		assertEquals(expected, new ProformaOutput<Foo>(fooProformaWithDrillDown, foos.iterator()).write(new StringWriter()).toString());
+		assertEquals(expected, new ProformaOutput<Foo>(fooProformaWithDrillDown, foos.spliterator()).write(new StringWriter()).toString());
+		final AtomicInteger closed = new AtomicInteger();
+		assertEquals(expected, new ProformaOutput<Foo>(fooProformaWithDrillDown, foos.stream().onClose(new Runnable() {
+			@Override
+			public void run() { closed.incrementAndGet(); }
+		})).write(new StringWriter()).toString());
+		assertEquals(1, closed.get());
+		assertEquals(expected, new ProformaOutput<Foo>(fooProformaWithDrillDown, foos.stream()).setParallel(7).write(new StringWriter()).toString());
+		
+		// Embedded proformas and parameters drawing from an iterator that is never materialised
+		final int rows = 100000;
+		Iterator<Bar> generator = new Iterator<Bar>() {
+			int next = 0;
+			@Override
+			public boolean hasNext() { return next < rows; }
+			@Override
+			public Bar next() { return new Bar(next, "Bar "+(next++)); }
+		};
+		Proforma proforma = new Proforma()
+				.add("Bars: ", barProforma.with(Proforma.param(Iterator.class, "bars")))
+				.add("Names: ", Proforma.param(Stream.class, "names"));
+		FlushCountingWriter fw = new FlushCountingWriter();
+		proforma.set(Iterator.class, "bars", generator)
+				.set(Stream.class, "names", Stream.of("a", "b", "c"))
+				.setCarriageReturn("\n")
+				.write(fw);
+		String out = fw.toString();
+		assertTrue(out.startsWith("Bars: This is a Bar\n  ID: 0\n  Name: Bar 0\n"));
+		assertTrue(out.contains("  ID: 99999\n  Name: Bar 99999\n"));
+		assertTrue(out.endsWith("Names: abc\n"));
+		assertFalse(generator.hasNext());
+		
+	}
+
+	class ChunkSubscriber implements ProformaPublisher.Subscriber {
+		ProformaPublisher.Subscription subscription;
+		StringBuilder received = new StringBuilder();
+		int chunks = 0;
+		boolean complete = false;
+		Throwable error;
+		@Override
+		public void onSubscribe(ProformaPublisher.Subscription subscription) { this.subscription = subscription; }
+		@Override
+		public void onNext(CharBuffer chunk) {
+			received.append(chunk);
+			chunks++;
+		}
+		@Override
+		public void onError(Throwable error) { this.error = error; }
+		@Override
+		public void onComplete() { complete = true; }
+	}
+	
+	@Test
+	public void publishTest() throws IOException {
+		
+		List<Foo> foos = new ArrayList<Foo>();
+		for (int f=0; f<500; f++) foos.add(new Foo(f, "Foo "+f, "Description "+f).add(new Bar(f, "Bar "+f)).add(new Bar(f+1, "Bar "+(f+1))));
+		Proforma proforma = new Proforma()
+				.add("Header ", Proforma.param(String.class, "title"))
+				.add("Foos: ", fooProformaWithDrillDown.with(Proforma.param(List.class, "foos")))
+				.add("Footer");
+		String expected = proforma.set(List.class, "foos", foos).set(String.class, "title", "Published").write(new StringWriter()).toString();
+		
+		// The iterator is only consumed as chunks are requested
+		final AtomicInteger taken = new AtomicInteger();
+		final Iterator<Foo> source = foos.iterator();
+		Iterator<Foo> counting = new Iterator<Foo>() {
+			@Override
+			public boolean hasNext() { return source.hasNext(); }
+			@Override
+			public Foo next() {
+				taken.incrementAndGet();
+				return source.next();
+			}
+		};
+		ChunkSubscriber subscriber = new ChunkSubscriber();
+		proforma.set(Iterator.class, "foos", counting).set(String.class, "title", "Published").publish(0, 1024).subscribe(subscriber);
+		assertEquals(0, taken.get());
+		subscriber.subscription.request(1);
+		assertEquals(1, subscriber.chunks);
+		assertTrue(taken.get() > 0 && taken.get() < 20);
+		subscriber.subscription.request(Long.MAX_VALUE);
+		assertTrue(subscriber.complete);
+		assertNull(subscriber.error);
+		assertEquals(expected, subscriber.received.toString());
+		assertEquals(500, taken.get());
+		
+		// Value sources set on the proforma output and cancelling part way through
+		String expectedSources = new ProformaOutput<Foo>(fooProformaWithDrillDown, foos).write(new StringWriter()).toString();
+		ChunkSubscriber sources = new ChunkSubscriber();
+		new ProformaOutput<Foo>(fooProformaWithDrillDown, foos).publish().subscribe(sources);
+		sources.subscription.request(2);
+		assertEquals(2, sources.chunks);
+		assertTrue(expectedSources.startsWith(sources.received.toString()));
+		sources.subscription.cancel();
+		sources.subscription.request(1);
+		assertEquals(2, sources.chunks);
+		assertFalse(sources.complete);
+		
+		ChunkSubscriber invalid = new ChunkSubscriber();
+		new ProformaOutput<Foo>(fooProformaWithDrillDown, foos).publish().subscribe(invalid);
+		invalid.subscription.request(0);
+		assertTrue(invalid.error instanceof IllegalArgumentException);
+		
+	}
+
+	@Test
+	public void renderCacheTest() throws IOException {
+		
+		Proforma proforma = new Proforma()
+				.add("Header ", Proforma.param(String.class, "title"))
+				.add("Bars: ", barProforma.with(Proforma.param(List.class, "bars")))
+				.freeze();
+		List<Bar> bars = new ArrayList<Bar>();
+		bars.add(new Bar(1, "One"));
+		bars.add(new Bar(2, "Two"));
+		
+		RenderCache cache = new RenderCache(2, 10000);
+		String expected = proforma.set(String.class, "title", "A").set(List.class, "bars", bars).write(new StringWriter()).toString();
+		for (int i=0; i<3; i++) {
+			assertEquals(expected, proforma.set(String.class, "title", "A").set(List.class, "bars", bars).setRenderCache(cache).write(new StringWriter()).toString());
+		}
+		assertEquals(1, cache.getMisses());
+		assertEquals(2, cache.getHits());
+		assertEquals(expected.length(), cache.getChars());
+		
+		// Different parameter values, indent and carriage return are cached separately
+		assertFalse(expected.equals(proforma.set(String.class, "title", "B").set(List.class, "bars", bars).setRenderCache(cache).write(new StringWriter()).toString()));
+		proforma.set(String.class, "title", "A").set(List.class, "bars", bars).setRenderCache(cache).setCarriageReturn("\r\n").write(new StringWriter());
+		assertEquals(3, cache.getMisses());
+		assertEquals(2, cache.size());
+		assertEquals(1, cache.getEvictions());
+		
+		// Value sources that can only be iterated once are not cached
+		new ProformaOutput<Bar>(barProforma, bars.iterator()).setRenderCache(cache).write(new StringWriter());
+		assertEquals(3, cache.getMisses());
+		
+	}
+
+	@Test
+	public void memoTest() throws IOException {
+		
+		Proforma copyright = new Proforma()
+				.add("/*")
+				.add(Proforma.indent(), "Copyright")
+				.add(" */");
+		Proforma banner = new Proforma().add("// Banner").add(copyright);
+		Proforma proforma = new Proforma()
+				.add("Start ", Proforma.param(String.class, "name"))
+				.add(copyright)
+				.add(banner)
+				.addIf(Proforma.param(Boolean.class, "more"), copyright);
+		
+		assertTrue(copyright.compile().memoisable());
+		assertFalse(banner.compile().memoisable());
+		assertTrue(banner.freeze().compile().memoisable());
+		assertFalse(proforma.compile().memoisable());
+		
+		String expected = 
+				"  Start one\n" + 
+				"      /*\n" + 
+				"      Copyright\n" + 
+				"     */\n" + 
+				"\n" + 
+				"      // Banner\n" + 
+				"          /*\n" + 
+				"        Copyright\n" + 
+				"       */\n" + 
+				"\n" + 
+				"\n";
+		assertEquals(expected, proforma.set(String.class, "name", "one").set(Boolean.class, "more", false).setCarriageReturn("\n").write(1, new StringWriter()).toString());
+		assertEquals(expected, proforma.set(String.class, "name", "one").set(Boolean.class, "more", false).setCarriageReturn("\n").write(1, new StringWriter()).toString());
+		assertEquals(expected.replace("  ", "\t").replace("\n", "\r\n"), 
+				proforma.set(String.class, "name", "one").set(Boolean.class, "more", false).setIndent("\t").setCarriageReturn("\r\n").write(1, new StringWriter()).toString());
+		
+		// Changes to an embedded proforma that has not been frozen are written
+		copyright.add(" * All rights reserved");
+		assertTrue(proforma.set(String.class, "name", "one").set(Boolean.class, "more", false).write(new StringWriter()).toString().contains("All rights reserved"));
+		
+	}
+
+	class Flagged {
+		final String name;
+		final Boolean debug;
+		Flagged(String name, Boolean debug) {
+			this.name = name;
+			this.debug = debug;
+		}
+	}
+
+	class CountingCondition implements K2Expression<Boolean> {
+		final AtomicInteger count = new AtomicInteger();
+		final Parameter<Boolean> debug = Proforma.param(Boolean.class, "debug");
+		@Override
+		public Boolean evaluate(Evaluator eval) {
+			count.incrementAndGet();
+			return debug.evaluate(eval);
+		}
+		@Override
+		public Class<? extends Boolean> getJavaType() { return Boolean.class; }
+		@Override
+		public String getAlias() { return "counting"; }
+	}
+
+	@Test
+	public void conditionCacheTest() throws IOException {
+		
+		CountingCondition debug = new CountingCondition();
+		Proforma proforma = new Proforma();
+		for (int i=0; i<10; i++) {
+			proforma.addIf(debug, "Debug ", i, " ", Proforma.param(String.class, "name"));
+			proforma.add("Line ", i, Proforma.includeIf(debug, " (debug)"));
+		}
+		
+		List<Flagged> rows = new ArrayList<Flagged>();
+		rows.add(new Flagged("one", true));
+		rows.add(new Flagged("two", false));
+		rows.add(new Flagged("three", true));
+		
+		String output = new ProformaOutput<Flagged>(proforma, rows).write(new StringWriter()).toString();
+		
+		// The condition is evaluated once for each value source, not once for each of the twenty lines and parts it controls
+		assertEquals(3, debug.count.get());
+		assertTrue(output.contains("Debug 9 one\n"));
+		assertTrue(output.contains("Line 9 (debug)\n"));
+		assertFalse(output.contains("Debug 0 two"));
+		assertTrue(output.contains("Debug 0 three\n"));
+		assertEquals(50, output.split("\n").length);
+		
+		// Boolean parameters with the same alias share a slot, other conditions have a slot each
+		Proforma gates = new Proforma()
+				.addIf(Proforma.param(Boolean.class, "a"), "a")
+				.add(Proforma.includeIf("a", "a"), Proforma.includeIf("b", "b"))
+				.add(Proforma.includeIf(debug, "debug"));
+		assertEquals(3, gates.compile().conditions());
+		assertEquals(0, new Proforma().addIf(Proforma.param(Boolean.class, "a"), "a").compile().conditions());
+		
+		// The published output evaluates conditions in the same way
+		debug.count.set(0);
+		ChunkSubscriber subscriber = new ChunkSubscriber();
+		new ProformaOutput<Flagged>(proforma, rows).publish().subscribe(subscriber);
+		subscriber.subscription.request(Long.MAX_VALUE);
+		assertTrue(subscriber.complete);
+		assertEquals(output, subscriber.received.toString());
+		assertEquals(3, debug.count.get());
+		
+	}
+
+	@Test
+	public void indentTest() throws IOException {
+		
+		Proforma proforma = new Proforma()
+				.add("{")
+				.add(Proforma.indent(), "x = ", Proforma.param(String.class, "x"), ";")
+				.add("}");
+		
+		StringBuilder indent = new StringBuilder();
+		for (int d=0; d<70; d++) {
+			String expected = indent+"{\n"+indent+"-x = y;\n"+indent+"}\n";
+			assertEquals(expected, proforma.set(String.class, "x", "y").setIndent("-").setCarriageReturn("\n").write(d, new StringWriter()).toString());
+			ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+			proforma.set(String.class, "x", "y").setIndent("-").setCarriageReturn("\n").write(d, OutputSink.of(bytes, Charset.forName("UTF-8")));
+			assertEquals(expected, new String(bytes.toByteArray(), "UTF-8"));
+			indent.append("-");
+		}
+		
+		// The repeated indent strings are shared by proforma outputs with the same indent string and follow changes to the indent string
+		ProformaOutput<?> po = proforma.setIndent("\u00bb ");
+		Indents indents = po.indents();
+		assertSame(indents, proforma.setIndent("\u00bb ").indents());
+		assertSame(indents.get(8), po.indents().get(8));
+		assertEquals("\u00bb \u00bb \u00bb ", indents.get(3));
+		assertArrayEquals("\u00bb \u00bb \u00bb ".getBytes("UTF-8"), indents.utf8(3));
+		assertEquals("\t\t", po.setIndent("\t").indents().get(2));
+		assertEquals("", po.indents().get(0));
+		
+	}
+
+	public static class Cell {
+		private final long id;
+		private final short quantity;
+		private final int count;
+		private final double price;
+		public Cell(long id, short quantity) {
+			this.id = id;
+			this.quantity = quantity;
+			this.count = (int)id*3;
+			this.price = id/4.0;
+		}
+	}
+
+	@Test
+	public void numericTest() throws IOException {
+		
+		// Integral values are written as by Long.toString() and doubles round trip with no more digits than Double.toString()
+		long[] longs = {0, 1, -1, 9, 10, 99, 100, -12345, Integer.MAX_VALUE, Integer.MIN_VALUE, Long.MAX_VALUE, Long.MIN_VALUE};
+		for (long l : longs) {
+			StringWriter sw = new StringWriter();
+			DecimalFormatter.write(l, sw);
+			assertEquals(Long.toString(l), sw.toString());
+		}
+		double[] doubles = {0.0, -0.0, 1.0, -1.5, 0.1, 0.3, 123.456, 1234567.125, 0.001, 1.0/3, 2.0/3, Math.PI, 0.1+0.2, 1e7, 1e-4, 
+				Double.NaN, Double.POSITIVE_INFINITY, Double.MIN_VALUE, Double.MAX_VALUE};
+		for (double d : doubles) {
+			StringWriter sw = new StringWriter();
+			DecimalFormatter.write(d, sw);
+			assertEquals(Double.toString(d), sw.toString());
+		}
+		Random random = new Random(17);
+		for (int r=0; r<20000; r++) {
+			double d = (random.nextDouble()-0.5) * Math.pow(10, random.nextInt(12)-4);
+			if (r % 2 == 0) d = Math.round(d*100)/100.0;
+			StringWriter sw = new StringWriter();
+			DecimalFormatter.write(d, sw);
+			assertEquals(d, Double.parseDouble(sw.toString()), 0);
+			assertTrue(sw.toString().length() <= Double.toString(d).length());
+		}
+		
+		IntParameter count = Proforma.intParam("count");
+		Proforma proforma = new Proforma()
+				.add(count, " x ", Proforma.doubleParam("price"), " = ", Proforma.longParam("id"), " ", Proforma.intParam("quantity"))
+				.add(Proforma.includeIf("more", "more"), count.includeIf(Proforma.param(Boolean.class, "more")));
+		
+		// Values set as primitives
+		assertEquals("3 x 2.25 = 9000000000 -4\n\n", proforma.setInt("count", 3).setDouble("price", 2.25).setLong("id", 9000000000L)
+				.setInt("quantity", -4).set(Boolean.class, "more", false).write(new StringWriter()).toString());
+		
+		// Values read from primitive fields of value sources
+		List<Cell> cells = new ArrayList<Cell>();
+		for (int c=1; c<=3; c++) cells.add(new Cell(c, (short)(c*10)));
+		Proforma row = new Proforma().add(count, " x ", Proforma.doubleParam("price"), " = ", Proforma.longParam("id"), " ", Proforma.intParam("quantity"));
+		ProformaOutput<Cell> po = new ProformaOutput<Cell>(row, cells).setCarriageReturn("\n");
+		assertEquals("3 x 0.25 = 1 10\n6 x 0.5 = 2 20\n9 x 0.75 = 3 30\n", po.write(new StringWriter()).toString());
+		assertEquals(ValueAccessor.LONG, count.accessor(Cell.class).kind());
+		assertEquals(ValueAccessor.DOUBLE, ValueAccessor.of(Cell.class, "price").kind());
+		assertEquals(ValueAccessor.LONG, ValueAccessor.of(Cell.class, "quantity").kind());
+		assertEquals(30L, ValueAccessor.of(Cell.class, "quantity").getLong(cells.get(2)));
+		
+		// Numeric values take precedence over values set through set(...) and are boxed when evaluated
+		ProformaOutput<?> values = proforma.set(Integer.class, "count", 1).setInt("count", 2).setDouble("price", 0.5).setLong("id", 7L)
+				.setInt("quantity", 0).set(Boolean.class, "more", false);
+		assertEquals("2 x 0.5 = 7 0\n\n", values.write(new StringWriter()).toString());
+		assertEquals(Integer.valueOf(2), values.valueOf(count));
+		assertEquals(Double.valueOf(0.5), values.valueOf(Proforma.doubleParam("price")));
+		
+		// Values that are not numbers are written as the values of any other parameter
+		Proforma numeric = new Proforma().add("v=", Proforma.intParam("n"));
+		Proforma plain = new Proforma().add("v=", Proforma.param("n"));
+		assertEquals("v=123\n", numeric.set(List.class, "n", Arrays.asList(1, 2, 3)).write(new StringWriter()).toString());
+		assertEquals(plain.set(List.class, "n", Arrays.asList(1, 2, 3)).write(new StringWriter()).toString(),
+				numeric.set(List.class, "n", Arrays.asList(1, 2, 3)).write(new StringWriter()).toString());
+		assertEquals(plain.set(Object.class, "n", null).write(new StringWriter()).toString(),
+				numeric.set(Object.class, "n", null).write(new StringWriter()).toString());
+		
+		// Numeric values are part of the key of cached output
+		RenderCache cache = new RenderCache(10, 1000);
+		proforma.setInt("count", 1).setDouble("price", 0.5).setLong("id", 7L).setInt("quantity", 0).set(Boolean.class, "more", false)
+				.setRenderCache(cache).write(new StringWriter());
+		assertEquals("2 x 0.5 = 7 0\n\n", proforma.setInt("count", 2).setDouble("price", 0.5).setLong("id", 7L).setInt("quantity", 0)
+				.set(Boolean.class, "more", false).setRenderCache(cache).write(new StringWriter()).toString());
+		assertEquals(2, cache.size());
+		
+	}
+
+	enum Colour { RED, DARK_GREEN }
+
+	@Test
+	public void formatterTest() throws IOException {
+		
+		final AtomicInteger formatted = new AtomicInteger();
+		ValueFormatter<Object> lowerCase = new ValueFormatter<Object>() {
+			@Override
+			public void format(Object value, Writer out) throws IOException {
+				formatted.incrementAndGet();
+				String name = ((Enum<?>)value).name();
+				for (int c=0; c<name.length(); c++) out.write(Character.toLowerCase(name.charAt(c)));
+			}
+		};
+		
+		Parameter<LocalDate> date = Proforma.param(LocalDate.class, "date");
+		Proforma proforma = new Proforma()
+				.add(date.formatWith(ValueFormatter.<LocalDate>of(DateTimeFormatter.ofPattern("dd/MM/yyyy"))), " ", date)
+				.add(Proforma.param(Colour.class, "colour"), " ", Proforma.param(List.class, "colours"))
+				.add(Proforma.intParam("count").formatWith(ValueFormatter.cached(new ValueFormatter<Integer>() {
+					@Override
+					public void format(Integer value, Writer out) throws IOException {
+						formatted.incrementAndGet();
+						out.write("#"+value);
+					}
+				}, 10)), " ", Proforma.longParam("total"));
+		
+		// Formatters attached to parameters and registered for types, including the superclass of enums
+		assertEquals("01/02/2020 2020-02-01\ndark_green red,dark_green\n#5 7\n", proforma
+				.set(LocalDate.class, "date", LocalDate.of(2020, 2, 1))
+				.set(Colour.class, "colour", Colour.DARK_GREEN)
+				.set(List.class, "colours", Arrays.asList(Colour.RED, ",", Colour.DARK_GREEN))
+				.setInt("count", 5)
+				.setLong("total", 7L)
+				.setFormatter(Enum.class, lowerCase)
+				.setCarriageReturn("\n")
+				.write(new StringWriter()).toString());
+		assertEquals(4, formatted.get());
+		
+		// Null values are not formatted
+		assertEquals("-\n", new Proforma().add(date.formatWith(ValueFormatter.<LocalDate>of(DateTimeFormatter.ISO_DATE)), "-")
+				.setCarriageReturn("\n").write(new StringWriter()).toString());
+		
+		// Formatters registered for a numeric type apply to numeric parameters and attaching a formatter keeps the parameter numeric
+		LongParameter total = Proforma.longParam("total").formatWith(ValueFormatter.decimal());
+		Proforma totals = new Proforma().add(Proforma.longParam("total"), " ", total, " ", Proforma.doubleParam("average"));
+		assertEquals("total 7 2.5\n", totals.setLong("total", 7L).setDouble("average", 2.5)
+				.setFormatter(Long.class, new ValueFormatter<Long>() {
+					@Override
+					public void format(Long value, Writer out) throws IOException {
+						out.write("total");
+					}
+				})
+				.setCarriageReturn("\n").write(new StringWriter()).toString());
+		
+		// The output of the count formatter was cached
+		proforma.set(Colour.class, "colour", Colour.RED).set(List.class, "colours", new ArrayList<Colour>()).setInt("count", 5).setLong("total", 7L)
+				.write(new StringWriter());
+		assertEquals(4, formatted.get());
+		
+	}
+
+	@Test
+	public void escapingTest() throws IOException {
+		
+		Parameter<String> text = Proforma.param(String.class, "text");
+		Proforma proforma = new Proforma().add("<p title=\"", text, "\">", text.escape(Escaping.NONE), "</p>");
+		String value = "Fish & <Chips> \"1\" 'n'";
+		
+		// Literal text is not escaped and parameters can override the escaping of the proforma output
+		assertEquals("<p title=\"Fish &amp; &lt;Chips&gt; &quot;1&quot; &apos;n&apos;\">Fish & <Chips> \"1\" 'n'</p>\n",
+				proforma.set(String.class, "text", value).setEscaping(Escaping.XML).setCarriageReturn("\n").write(new StringWriter()).toString());
+		assertEquals("<p title=\"Fish &amp; &lt;Chips&gt; &quot;1&quot; &#39;n&#39;\">Fish & <Chips> \"1\" 'n'</p>\n",
+				proforma.set(String.class, "text", value).setEscaping(Escaping.HTML).setCarriageReturn("\n").write(new StringWriter()).toString());
+		
+		// Control characters and separators in JSON strings
+		Proforma json = new Proforma().add("{\"text\": \"", text, "\"}");
+		assertEquals("{\"text\": \"a\\\"b\\\\c\\n\\t\\u0001\\u2028\"}\n", json.set(String.class, "text", "a\"b\\c\n\t\u0001\u2028")
+				.setEscaping(Escaping.JSON).setCarriageReturn("\n").write(new StringWriter()).toString());
+		
+		// CSV fields are quoted only when they need to be, SQL literals double their quotes
+		Proforma row = new Proforma().add(Proforma.param(String.class, "a"), ",", Proforma.param(String.class, "b"), ",", Proforma.intParam("c"));
+		assertEquals("plain,\"say \"\"hi\"\", then go\",-12\n", row.set(String.class, "a", "plain").set(String.class, "b", "say \"hi\", then go")
+				.setInt("c", -12).setEscaping(Escaping.CSV).setCarriageReturn("\n").write(new StringWriter()).toString());
+		assertEquals("WHERE name = 'O''Brien'\n", new Proforma().add("WHERE name = '", text, "'").set(String.class, "text", "O'Brien")
+				.setEscaping(Escaping.SQL).setCarriageReturn("\n").write(new StringWriter()).toString());
+		
+		// Values of numeric parameters that are not numbers are escaped as the values of any other parameter
+		Proforma numeric = new Proforma().add("v=", Proforma.intParam("name"));
+		assertEquals("v=&lt;b&gt;\n", numeric.set(Object.class, "name", "<b>").setEscaping(Escaping.HTML).setCarriageReturn("\n")
+				.write(new StringWriter()).toString());
+		assertEquals("v=&lt;b&gt;\n", numeric.with(new Baz("<b>")).setEscaping(Escaping.HTML).setCarriageReturn("\n")
+				.write(new StringWriter()).toString());
+		
+		// The output of formatters and the elements of collections are escaped, as are the values of embedded proformas
+		Proforma embedded = new Proforma().setEmbedded(true).add("[", Proforma.param(Colour.class, "colour"), "]");
+		Proforma formatted = new Proforma().add(Proforma.param(List.class, "list"), embedded);
+		assertEquals("&lt;a&gt;&amp;[&lt;RED&gt;]\n", formatted
+				.set(List.class, "list", Arrays.asList("<a>", "&"))
+				.set(Colour.class, "colour", Colour.RED)
+				.setFormatter(Colour.class, new ValueFormatter<Colour>() {
+					@Override
+					public void format(Colour value, Writer out) throws IOException {
+						out.write('<');
+						out.write(value.name());
+						out.write('>');
+					}
+				})
+				.setEscaping(Escaping.XML).setCarriageReturn("\n").write(new StringWriter()).toString());
+		assertEquals("\"a,b\"\n", new Proforma().add(Proforma.param(Colour.class, "colour")
+				.formatWith(new ValueFormatter<Colour>() {
+					@Override
+					public void format(Colour value, Writer out) throws IOException {
+						out.write("a,");
+						out.write('b');
+					}
+				})).set(Colour.class, "colour", Colour.RED).setEscaping(Escaping.CSV).setCarriageReturn("\n").write(new StringWriter()).toString());
+		
+		// Escaping applies when writing bytes
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		json.set(String.class, "text", "\"\u00e9\"").setEscaping(Escaping.JSON).setCarriageReturn("\n").write(bytes, Charset.forName("UTF-8"));
+		assertEquals("{\"text\": \"\\\"\u00e9\\\"\"}\n", new String(bytes.toByteArray(), Charset.forName("UTF-8")));
+		
+	}
+
+	@Test
+	public void joinTest() throws IOException {
+		
+		Parameter<?> tags = Proforma.param(List.class, "tags");
+		Proforma proforma = new Proforma().add("Tags: ", tags.join(", "), " ", tags.join("[", "|", "]"));
+		
+		// Separators are written only between elements and the prefix and suffix around every value that is not null
+		assertEquals("Tags: a, b, c [a|b|c]\n", proforma.set(List.class, "tags", Arrays.asList("a", "b", "c"))
+				.setCarriageReturn("\n").write(new StringWriter()).toString());
+		assertEquals("Tags:  []\n", proforma.set(List.class, "tags", new ArrayList<String>())
+				.setCarriageReturn("\n").write(new StringWriter()).toString());
+		assertEquals("Tags:  \n", proforma.setCarriageReturn("\n").write(new StringWriter()).toString());
+		
+		// Single values, streams and numeric parameters are joined as single elements
+		assertEquals("(x) 1;2;3 <7>\n", new Proforma()
+				.add(Proforma.param(String.class, "single").join("(", ",", ")"), " ", Proforma.param(Stream.class, "stream").join(";"), " ",
+						Proforma.intParam("n").join("<", "", ">"))
+				.set(String.class, "single", "x")
+				.set(Stream.class, "stream", Stream.of(1, 2, 3))
+				.setInt("n", 7)
+				.setCarriageReturn("\n").write(new StringWriter()).toString());
+		
+		// Each element is written by a template drawing its values from the element and the separator is never escaped
+		Proforma item = new Proforma().setEmbedded(true).add("<", Proforma.param(String.class, "name"), ">");
+		Proforma list = new Proforma().add(Proforma.param(List.class, "items").join("{", " & ", "}").eachWith(item));
+		ProformaOutput<?> po = list.set(List.class, "items", Arrays.asList(new Baz("one"), new Baz("a&b")))
+				.setEscaping(Escaping.XML).setCarriageReturn("\n");
+		assertEquals("{<one> & <a&amp;b>}\n", po.write(new StringWriter()).toString());
+		// The template is written in a single reused frame
+		assertEquals(1, po.context().size());
+		
+	}
+
+	public static class Node {
+		private final String name;
+		private final List<Node> children;
+		public Node(String name, Node ... children) {
+			this.name = name;
+			this.children = Arrays.asList(children);
+		}
+		public String getName() { return name; }
+		public List<Node> getChildren() { return children; }
+	}
+
+	@Test
+	public void parserTest() throws IOException {
+		
+		ConcurrentProformaLibrary library = new ConcurrentProformaLibrary()
+				.add("item", new Proforma().setEmbedded(true).add("<", Proforma.param(String.class, "name"), ">"));
+		Proforma parsed = ProformaParser.parse("parsed",
+				"Hello ${name}, $5 costs $${price}\r\n" +
+				"${?vip}VIP ${level:int}\n" +
+				"${>}Items: ${@item:items}${note?noted}\n" +
+				"Total ${total:double} ${@item?noted}", library);
+		
+		Parameter<Boolean> vip = Proforma.param(Boolean.class, "vip");
+		Parameter<Boolean> noted = Proforma.param(Boolean.class, "noted");
+		Proforma built = new Proforma()
+				.add("Hello ", Proforma.param(String.class, "name"), ", $5 costs ${price}")
+				.addIf(vip, "VIP ", Proforma.intParam("level"))
+				.add(Proforma.indent(), "Items: ", library.getProforma("item").with(Proforma.param(Object.class, "items")),
+						Proforma.param(String.class, "note").includeIf(noted))
+				.add("Total ", Proforma.doubleParam("total"), " ", library.getProforma("item").includeIf(noted));
+		
+		// The parsed proforma writes the same output as the proforma built in code
+		for (boolean flag : new boolean[] {true, false}) {
+			assertEquals(built.set(String.class, "name", "Bob").set(Boolean.class, "vip", flag).setInt("level", 3)
+					.set(Boolean.class, "noted", flag).set(String.class, "note", " noted")
+					.set(List.class, "items", Arrays.asList(new Baz("a"), new Baz("b"))).setDouble("total", 1.5)
+					.set(String.class, "name", "Bob").setIndent("--").setCarriageReturn("\n").write(new StringWriter()).toString(),
+					parsed.set(String.class, "name", "Bob").set(Boolean.class, "vip", flag).setInt("level", 3)
+					.set(Boolean.class, "noted", flag).set(String.class, "note", " noted")
+					.set(List.class, "items", Arrays.asList(new Baz("a"), new Baz("b"))).setDouble("total", 1.5)
+					.set(String.class, "name", "Bob").setIndent("--").setCarriageReturn("\n").write(new StringWriter()).toString());
+		}
+		
+		// Errors report their position
+		try {
+			ProformaParser.parse("bad", "line one\nline ${two", null);
+			fail("An unclosed directive should not parse");
+		} catch (ProformaError e) {
+			assertTrue(e.getMessage(), e.getMessage().contains("at line 2 column 6 of bad"));
+		}
+		try {
+			ProformaParser.parse("bad", "${count:float}", null);
+			fail("An unknown type should not parse");
+		} catch (ProformaError e) {
+			assertTrue(e.getMessage(), e.getMessage().contains("float"));
+		}
+		
+		// Templates are parsed from files once per change, embed each other and themselves, and are reparsed when an embedded template changes
+		Path dir = Files.createTempDirectory("templates");
+		try {
+			Path tree = dir.resolve("tree.proforma");
+			Path node = dir.resolve("node.proforma");
+			Files.write(tree, "Tree\n${@node:roots}\n".getBytes(StandardCharsets.UTF_8));
+			Files.write(node, "${#embedded}\n${name}\n${?nested}${@node:children}".getBytes(StandardCharsets.UTF_8));
+			TemplateCache cache = new TemplateCache(dir);
+			cache.include(library);
+			
+			Proforma proforma = cache.getProforma("tree");
+			assertTrue(proforma.isFrozen());
+			assertSame(proforma, cache.getProforma("tree"));
+			assertSame(library.getProforma("item"), cache.getProforma("item"));
+			assertNull(cache.getProforma("missing"));
+			assertEquals(2, cache.getParseCount());
+			// The recursive templates write the same output as the recursive proformas built in code
+			Proforma nodeBuilt = new Proforma().setEmbedded(true);
+			nodeBuilt.add(Proforma.param(String.class, "name"))
+					.addIf(Proforma.param(Boolean.class, "nested"), nodeBuilt.with(Proforma.param(Object.class, "children")));
+			Proforma treeBuilt = new Proforma().add("Tree").add(nodeBuilt.with(Proforma.param(Object.class, "roots")));
+			Node root = new Node("root", new Node("a", new Node("a1"), new Node("a2")), new Node("b"));
+			String output = proforma.set(List.class, "roots", Arrays.asList(root)).set(Boolean.class, "nested", true)
+					.setIndent("\t").setCarriageReturn("\n").write(new StringWriter()).toString();
+			assertTrue(output.contains("a2"));
+			assertEquals(treeBuilt.set(List.class, "roots", Arrays.asList(root)).set(Boolean.class, "nested", true)
+					.setIndent("\t").setCarriageReturn("\n").write(new StringWriter()).toString(), output);
+			
+			Files.write(node, "${#embedded}\n-${name}\n${?nested}${@node:children}".getBytes(StandardCharsets.UTF_8));
+			Files.setLastModifiedTime(node, FileTime.fromMillis(Files.getLastModifiedTime(node).toMillis() + 2000));
+			Proforma changed = cache.getProforma("tree");
+			assertNotSame(proforma, changed);
+			assertEquals(4, cache.getParseCount());
+			assertTrue(changed.set(List.class, "roots", Arrays.asList(root)).set(Boolean.class, "nested", true)
+					.setIndent("\t").setCarriageReturn("\n").write(new StringWriter()).toString().contains("-a2"));
+			assertSame(changed, cache.getProforma("tree"));
+			assertEquals(Arrays.asList("node", "tree"), sorted(cache.getNames()));
+		} finally {
+			for (String name : new String[] {"tree.proforma", "node.proforma"}) Files.deleteIfExists(dir.resolve(name));
+			Files.delete(dir);
+		}
+		
+		// Templates that embed each other depend on every file read while any of them was parsed
+		Path cyclic = Files.createTempDirectory("cyclic");
+		try {
+			Path c = cyclic.resolve("c.proforma");
+			Files.write(cyclic.resolve("a.proforma"), "${@b}\n${@c}".getBytes(StandardCharsets.UTF_8));
+			Files.write(cyclic.resolve("b.proforma"), "b\n${@a:children}".getBytes(StandardCharsets.UTF_8));
+			Files.write(c, "c1".getBytes(StandardCharsets.UTF_8));
+			TemplateCache cache = new TemplateCache(cyclic);
+			Node root = new Node("root", new Node("leaf"));
+			assertNotNull(cache.getProforma("a"));
+			assertTrue(cache.getProforma("b").with(root).write(new StringWriter()).toString().contains("c1"));
+			
+			Files.write(c, "c2".getBytes(StandardCharsets.UTF_8));
+			Files.setLastModifiedTime(c, FileTime.fromMillis(Files.getLastModifiedTime(c).toMillis() + 2000));
+			assertNotNull(cache.getProforma("a"));
+			String output = cache.getProforma("b").with(root).write(new StringWriter()).toString();
+			assertTrue(output, output.contains("c2"));
+			assertFalse(output, output.contains("c1"));
+		} finally {
+			for (String name : new String[] {"a.proforma", "b.proforma", "c.proforma"}) Files.deleteIfExists(cyclic.resolve(name));
+			Files.delete(cyclic);
+		}
+		
+		// Templates embedding a name found in an included library are parsed again once a template file with that name is created
+		Path shadowed = Files.createTempDirectory("shadowed");
+		try {
+			Files.write(shadowed.resolve("outer.proforma"), "${@inner}".getBytes(StandardCharsets.UTF_8));
+			Proforma fromLibrary = new Proforma("inner").add("library");
+			TemplateCache cache = new TemplateCache(shadowed);
+			cache.include(new ConcurrentProformaLibrary(fromLibrary));
+			assertTrue(cache.getProforma("outer").with(new Object()).write(new StringWriter()).toString().contains("library"));
+			assertSame(fromLibrary, cache.getProforma("inner"));
+			assertSame(fromLibrary, cache.getProforma("inner"));
+			assertEquals(1, cache.getParseCount());
+			
+			Files.write(shadowed.resolve("inner.proforma"), "file".getBytes(StandardCharsets.UTF_8));
+			String output = cache.getProforma("outer").with(new Object()).write(new StringWriter()).toString();
+			assertTrue(output, output.contains("file"));
+			assertFalse(output, output.contains("library"));
+			assertEquals(3, cache.getParseCount());
+			assertNotSame(fromLibrary, cache.getProforma("inner"));
+			assertEquals(3, cache.getParseCount());
+		} finally {
+			for (String name : new String[] {"outer.proforma", "inner.proforma"}) Files.deleteIfExists(shadowed.resolve(name));
+			Files.delete(shadowed);
+		}
+		
+		// Names of files outside the directory of the cache are rejected
+		Path outer = Files.createTempDirectory("outer");
+		Path secret = outer.resolve("secret.proforma");
+		Path inner = outer.resolve("templates");
+		try {
+			Files.write(secret, "secret".getBytes(StandardCharsets.UTF_8));
+			Files.createDirectory(inner);
+			Files.write(inner.resolve("public.proforma"), "public".getBytes(StandardCharsets.UTF_8));
+			TemplateCache cache = new TemplateCache(inner);
+			String absolute = outer.toAbsolutePath().resolve("secret").toString();
+			for (String name : new String[] {"../secret", "sub/../../secret", absolute}) {
+				try {
+					cache.getProforma(name);
+					fail("The template "+name+" is outside the directory of the cache");
+				} catch (ProformaError e) {
+					assertTrue(e.getMessage(), e.getMessage().contains("outside the directory"));
+				}
+			}
+			try {
+				new TemplateCache(inner, "", StandardCharsets.UTF_8).getProforma("../secret.proforma");
+				fail("The template is outside the directory of the cache");
+			} catch (ProformaError e) {
+				assertTrue(e.getMessage(), e.getMessage().contains("outside the directory"));
+			}
+			assertNotNull(new TemplateCache(inner).getProforma("sub/../public"));
+		} finally {
+			Files.deleteIfExists(inner.resolve("public.proforma"));
+			Files.deleteIfExists(inner);
+			Files.deleteIfExists(secret);
+			Files.delete(outer);
+		}
+		
+	}
+	
+	@Test
+	public void archiveTest() throws IOException {
+
+		Parameter<Boolean> nested = Proforma.param(Boolean.class, "nested");
+		Parameter<Boolean> vip = Proforma.param(Boolean.class, "vip");
+		Proforma node = new Proforma("node").setEmbedded(true);
+		node.add(Proforma.param(String.class, "name").escape(Escaping.XML))
+				.addIf(nested, node.with(Proforma.param(Object.class, "children")));
+		Proforma item = new Proforma("item").setEmbedded(true).setAutoIncrementIndent(false).add("<", Proforma.param(String.class, "name"), ">");
+		Proforma tree = new Proforma("tree")
+				.add("Tree ", Proforma.intParam("count"), " ", Proforma.doubleParam("weight"), " ", Proforma.longParam("id"))
+				.addIf(vip, Proforma.indent(), "VIP ", Proforma.param(String.class, "note").includeIf(nested), "!")
+				.add(node.with(Proforma.param(Object.class, "roots")))
+				.add(Proforma.param(List.class, "roots").join("{", " & ", "}").eachWith(item), item.includeIf(vip));
+
+		Path file = Files.createTempFile("proformas", ".pfma");
+		try {
+			ProformaArchive.write(Arrays.asList(tree, item), file);
+			List<Proforma> restored = ProformaArchive.read(file);
+			assertEquals(2, restored.size());
+			assertEquals("tree", restored.get(0).getName());
+			assertTrue(restored.get(0).isFrozen());
+
+			// The restored proformas write the same output as the proformas archived
+			Node root = new Node("root", new Node("a<1>", new Node("a1")), new Node("b"));
+			for (boolean flag : new boolean[] {true, false}) {
+				for (Proforma proforma : new Proforma[] {tree, restored.get(0)}) {
+					assertEquals(archived(tree, root, flag), archived(proforma, root, flag));
+				}
+			}
+			assertTrue(archived(restored.get(0), root, true).contains("a&lt;1&gt;"));
+
+			// Every named proforma reachable from the archived proformas is found in the restored library
+			ConcurrentProformaLibrary library = ProformaArchive.library(file);
+			assertSame(library.getProforma("tree"), library.getProforma("tree"));
+			assertTrue(library.getProforma("tree").isFrozen());
+			assertEquals("<x>", library.getProforma("item").set(String.class, "name", "x").setCarriageReturn("\n").write(new StringWriter()).toString());
+		} finally {
+			Files.delete(file);
+		}
+
+		// The restored proformas are the same from bytes as from a file
+		List<Proforma> fromBytes = ProformaArchive.read(ByteBuffer.wrap(ProformaArchive.toBytes(Arrays.asList(tree))));
+		assertEquals(archived(tree, new Node("x"), true), archived(fromBytes.get(0), new Node("x"), true));
+
+		// Value formatters cannot be archived
+		try {
+			ProformaArchive.toBytes(Arrays.asList(new Proforma().add(Proforma.param(Integer.class, "n").formatWith(new ValueFormatter<Integer>() {
+				@Override
+				public void format(Integer value, Writer out) throws IOException {
+					out.write(value.toString());
+				}
+			}))));
+			fail("A value formatter should not be archived");
+		} catch (ProformaError e) {
+			assertTrue(e.getMessage(), e.getMessage().contains("formatter"));
+		}
+		try {
+			ProformaArchive.read(ByteBuffer.wrap(new byte[] {1, 2, 3, 4, 5, 6, 7, 8}));
+			fail("Other data should not be read as an archive");
+		} catch (ProformaError e) {
+			assertTrue(e.getMessage(), e.getMessage().contains("not a proforma archive"));
+		}
+
+		// Corrupt and truncated archives are reported as proforma errors
+		byte[] bytes = ProformaArchive.toBytes(Arrays.asList(tree));
+		for (int b=8; b<bytes.length; b++) {
+			for (byte corrupt : new byte[] {(byte)0x7F, (byte)0xFF}) {
+				byte[] damaged = bytes.clone();
+				damaged[b] = corrupt;
+				try {
+					ProformaArchive.read(ByteBuffer.wrap(damaged));
+				} catch (ProformaError e) {
+					assertTrue(e.getMessage(), e.getMessage().contains("archive") || e.getMessage().contains("class"));
+				}
+			}
+			try {
+				ProformaArchive.read(ByteBuffer.wrap(Arrays.copyOf(bytes, b)));
+				fail("A truncated archive should not be read");
+			} catch (ProformaError e) {
+				assertTrue(e.getMessage(), e.getMessage().contains("archive"));
+			}
+		}
+
+	}
+
+	@Test
+	public void reloadingTest() throws Exception {
+
+		Path dir = Files.createTempDirectory("reloading");
+		Path greeting = dir.resolve("greeting.proforma");
+		Path name = dir.resolve("name.proforma");
+		Files.write(greeting, "Hello ${@name}".getBytes(StandardCharsets.UTF_8));
+		Files.write(name, "${#embedded}\n${name}".getBytes(StandardCharsets.UTF_8));
+		List<String> failed = new CopyOnWriteArrayList<String>();
+		ReloadingTemplateLibrary library = new ReloadingTemplateLibrary(dir, TemplateCache.DEFAULT_EXTENSION, StandardCharsets.UTF_8, 10,
+				new ReloadingTemplateLibrary.Listener() {
+					@Override
+					public void reloaded(Collection<String> names, long version) {}
+					@Override
+					public void failed(String template, ProformaError error) { failed.add(template); }
+				});
+		try {
+			Proforma old = library.getProforma("greeting");
+			assertTrue(old.isFrozen());
+			assertEquals(1, library.getVersion());
+			assertEquals(Arrays.asList("greeting", "name"), sorted(library.getNames()));
+			assertFalse(library.reload());
+
+			// Changing an embedded template replaces the templates embedding it while the replaced proforma still writes as it did
+			Files.write(name, "${#embedded}\n[${name}]".getBytes(StandardCharsets.UTF_8));
+			Files.setLastModifiedTime(name, FileTime.fromMillis(Files.getLastModifiedTime(name).toMillis() + 2000));
+			assertTrue(library.reload());
+			assertEquals(2, library.getVersion());
+			assertNotSame(old, library.getProforma("greeting"));
+			assertEquals("Hello Bob\n", old.set(String.class, "name", "Bob").setCarriageReturn("\n").write(new StringWriter()).toString());
+			assertEquals("Hello [Bob]\n", library.getProforma("greeting").set(String.class, "name", "Bob")
+					.setCarriageReturn("\n").write(new StringWriter()).toString());
+
+			// A template that fails to parse keeps its previous version
+			Proforma current = library.getProforma("greeting");
+			Files.write(greeting, "Hello ${name".getBytes(StandardCharsets.UTF_8));
+			Files.setLastModifiedTime(greeting, FileTime.fromMillis(Files.getLastModifiedTime(greeting).toMillis() + 2000));
+			assertFalse(library.reload());
+			assertSame(current, library.getProforma("greeting"));
+			assertEquals(Arrays.asList("greeting"), failed);
+
+			// Once started, changes are picked up in the background
+			library.start();
+			Files.write(greeting, "Goodbye ${@name}".getBytes(StandardCharsets.UTF_8));
+			Files.setLastModifiedTime(greeting, FileTime.fromMillis(Files.getLastModifiedTime(greeting).toMillis() + 4000));
+			long deadline = System.currentTimeMillis() + 20000;
+			while (library.getProforma("greeting") == current && System.currentTimeMillis() < deadline) Thread.sleep(20);
+			assertEquals("Goodbye [Bob]\n", library.getProforma("greeting").set(String.class, "name", "Bob")
+					.setCarriageReturn("\n").write(new StringWriter()).toString());
+		} finally {
+			library.close();
+			Files.deleteIfExists(greeting);
+			Files.deleteIfExists(name);
+			Files.delete(dir);
+		}
+
+	}
+
+	@Test
+	public void metricsTest() throws Exception {
+
+		Parameter<Boolean> vip = Proforma.param(Boolean.class, "vip");
+		Proforma item = new Proforma("item").setEmbedded(true).add("<", Proforma.param(String.class, "name"), ">");
+		Proforma order = new Proforma("order")
+				.add("Order ", Proforma.param(String.class, "id"))
+				.addIf(vip, "VIP")
+				.add(item.with(Proforma.param(List.class, "items")));
+		List<Baz> items = Arrays.asList(new Baz("a"), new Baz("b"), new Baz("c"));
+
+		RenderMetrics metrics = new RenderMetrics();
+		for (int i=0; i<2; i++) {
+			order.set(String.class, "id", "1").set(Boolean.class, "vip", false).set(List.class, "items", items)
+					.setMetrics(metrics).setCarriageReturn("\n").write(new StringWriter());
+		}
+
+		// Each named proforma is measured including the proformas embedded in it
+		RenderMetrics.Snapshot orders = metrics.snapshot("order");
+		assertEquals(2, orders.getRenders());
+		assertEquals(2*"Order 1\n<a><b><c>\n".length(), orders.getChars());
+		assertEquals(0, orders.getBytes());
+		assertEquals(6, orders.getElements());
+		assertEquals(2, orders.getSuppressed());
+		assertEquals(8, orders.getLookups());
+		assertTrue(orders.getTotalNanos() > 0);
+		assertTrue(orders.getP99Nanos() <= orders.getMaxNanos());
+		assertEquals(2, Arrays.stream(orders.getHistogram()).sum());
+		RenderMetrics.Snapshot itemSnapshot = metrics.snapshot("item");
+		assertEquals(2, itemSnapshot.getRenders());
+		assertEquals(6, itemSnapshot.getLookups());
+		// Clones are recorded under the name of the proforma they were cloned from but have no name of their own
+		assertNull(item.with(Proforma.param(List.class, "items")).getName());
+		assertNull(item.includeIf(vip).getName());
+		RenderMetrics restored = new RenderMetrics();
+		ProformaArchive.read(ByteBuffer.wrap(ProformaArchive.toBytes(Arrays.asList(order)))).get(0)
+				.set(String.class, "id", "1").set(Boolean.class, "vip", false).set(List.class, "items", items)
+				.setMetrics(restored).write(new StringWriter());
+		assertEquals(1, restored.snapshot("item").getRenders());
+		assertEquals(Arrays.asList("item", "order"), new ArrayList<String>(metrics.snapshot().keySet()));
+
+		// UTF-8 output is counted in bytes and outputs take the default metrics when they are created
+		RenderMetrics.setDefault(metrics);
+		try {
+			new Proforma("utf8").add("café").setCarriageReturn("\n").write(new ByteArrayOutputStream(), StandardCharsets.UTF_8);
+			Proforma row = new Proforma("row").add("<", Proforma.param(String.class, "name"), ">");
+			row.with(new Baz("a")).write(new StringWriter());
+			new ProformaOutput<Baz>(row, items).write(new StringWriter());
+		} finally {
+			RenderMetrics.setDefault(null);
+		}
+		assertEquals(6, metrics.snapshot("utf8").getBytes());
+		assertEquals(2, metrics.snapshot("row").getRenders());
+		assertEquals(7, metrics.getRenders());
+
+		// Disabled metrics record nothing
+		metrics.setEnabled(false);
+		order.set(Boolean.class, "vip", true).setMetrics(metrics).write(new StringWriter());
+		assertEquals(2, metrics.snapshot("order").getRenders());
+		metrics.setEnabled(true);
+
+		// The metrics are exported over JMX
+		metrics.register("com.k2.Proforma:type=RenderMetrics,name=metricsTest");
+		try {
+			javax.management.MBeanServer server = java.lang.management.ManagementFactory.getPlatformMBeanServer();
+			javax.management.ObjectName name = new javax.management.ObjectName("com.k2.Proforma:type=RenderMetrics,name=metricsTest");
+			assertEquals(7L, server.getAttribute(name, "Renders"));
+			javax.management.openmbean.CompositeData[] templates = (javax.management.openmbean.CompositeData[])server.getAttribute(name, "Templates");
+			assertEquals("item", templates[0].get("name"));
+			assertEquals(6L, templates[1].get("elements"));
+			server.invoke(name, "reset", new Object[0], new String[0]);
+			assertTrue(metrics.snapshot().isEmpty());
+		} finally {
+			metrics.unregister();
+		}
+
+	}
+
+	@Test
+	public void profilerTest() throws Exception {
+
+		Parameter<Boolean> vip = Proforma.param(Boolean.class, "vip");
+		Proforma item = new Proforma("item").setEmbedded(true).add("<", Proforma.param(String.class, "name"), ">");
+		Proforma order = new Proforma("order")
+				.add("Order ", Proforma.param(String.class, "id"))
+				.addIf(vip, "VIP")
+				.add(item.with(Proforma.param(List.class, "items")));
+		List<Baz> items = Arrays.asList(new Baz("a"), new Baz("b"), new Baz("c"));
+
+		RenderProfiler profiler = new RenderProfiler();
+		for (int i=0; i<2; i++) {
+			assertEquals("Order 1\n<a><b><c>\n", order.set(String.class, "id", "1").set(Boolean.class, "vip", false)
+					.set(List.class, "items", items).setProfiler(profiler).setCarriageReturn("\n").write(new StringWriter()).toString());
+		}
+
+		// Each proforma written has frames for its lines and their parts, with embedded proformas beneath the lines that embed them
+		assertEquals(2, profiler.getFrame("order").getCount());
+		assertEquals(2, profiler.getFrame("order", "line 1", "${id}", "lookup").getCount());
+		assertEquals(2, profiler.getFrame("order", "line 1", "${id}", "format").getCount());
+		assertEquals(2, profiler.getFrame("order", "line 2", "if vip").getCount());
+		assertNull(profiler.getFrame("order", "line 2", "literal"));
+		assertEquals(2, profiler.getFrame("order", "line 3", "@item").getCount());
+		assertEquals(6, profiler.getFrame("order", "line 3", "@item", "line 1", "${name}").getCount());
+		assertEquals(2, profiler.getFrame("flush").getCount());
+		RenderProfiler.Frame line = profiler.getFrame("order", "line 3");
+		long children = 0;
+		for (RenderProfiler.Frame child : line.getChildren()) children += child.getTotalNanos();
+		assertEquals(line.getTotalNanos() - children, line.getSelfNanos());
+		assertTrue(profiler.getFrame("order").getTotalNanos() >= line.getTotalNanos());
+
+		// The profile is written as collapsed stacks of self times
+		String collapsed = profiler.toCollapsed();
+		for (String stack : collapsed.split("\n")) assertTrue(stack, stack.matches("[^ ;]+(;[^;]+)* \\d+"));
+		assertTrue(collapsed.contains("order;line 3;@item;line 1;${name};lookup "));
+
+		// Profiled output is the same as output written without a profiler, including UTF-8 output with indents
+		Proforma indented = new Proforma("indented").add("café ", Proforma.param(String.class, "id")).add(Proforma.indent(), "-")
+				.add(order.with(Proforma.param(List.class, "orders")));
+		List<Object> orders = Arrays.<Object>asList(new Object());
+		for (RenderProfiler p : new RenderProfiler[] {null, profiler}) {
+			ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+			indented.set(String.class, "id", "é1").set(Boolean.class, "vip", true).set(List.class, "items", items).set(List.class, "orders", orders)
+					.setIndent("\t").setCarriageReturn("\r\n").setProfiler(p).write(bytes, StandardCharsets.UTF_8);
+			assertEquals(indented.set(String.class, "id", "é1").set(Boolean.class, "vip", true).set(List.class, "items", items)
+					.set(List.class, "orders", orders).setIndent("\t").setCarriageReturn("\r\n").write(new StringWriter()).toString(),
+					new String(bytes.toByteArray(), StandardCharsets.UTF_8));
+		}
+		assertEquals(1, profiler.getFrame("indented", "line 3", "@order", "line 2", "if vip").getCount());
+
+		// Nothing is profiled once the profiler is removed
+		profiler.reset();
+		order.set(Boolean.class, "vip", true).setProfiler(profiler).setProfiler(null).write(new StringWriter());
+		assertTrue(profiler.getRoot().getChildren().isEmpty());
+		assertEquals("", profiler.toCollapsed());
+
+	}
+
+	private static String archived(Proforma proforma, Node root, boolean flag) {
+		return proforma.setInt("count", 3).setDouble("weight", 2.5).setLong("id", 42L).set(String.class, "note", "noted")
+				.set(Boolean.class, "vip", flag).set(Boolean.class, "nested", flag)
+				.set(List.class, "roots", Arrays.asList(root, root)).setIndent("\t").setCarriageReturn("\n")
+				.write(new StringWriter()).toString();
+	}
+
+	private static List<String> sorted(Collection<String> names) {
+		List<String> list = new ArrayList<String>(names);
+		Collections.sort(list);
+		return list;
+	}
+
 }